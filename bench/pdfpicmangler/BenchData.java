@@ -0,0 +1,158 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDJpeg;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDPixelMap;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
+
+/**
+ * Generates the benchmark inputs, so that the benchmarks run without any
+ * files. Everything is seeded and the same on every run.
+ */
+public class BenchData
+{
+    /**
+     * @param kind "photo" (smooth RGB with noise), "gray" (the same in gray)
+     *        or "drawing" (black lines and text on white, as in scanned plans)
+     */
+    public static BufferedImage image(String kind, int width, int height)
+    {
+        if ("drawing".equals(kind))
+        {
+            return drawing(width, height);
+        }
+        return photo(width, height, "gray".equals(kind));
+    }
+
+    public static BufferedImage photo(int width, int height, boolean gray)
+    {
+        BufferedImage image = new BufferedImage(width, height,
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width * 31 + height);
+
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                double u = (double) x / width;
+                double v = (double) y / height;
+                int noise = random.nextInt(16);
+                int r = (int) (127 + 100 * Math.sin(6 * u + 2 * v)) + noise;
+                int g = (int) (127 + 100 * Math.sin(3 * v - 4 * u * v)) + noise;
+                int b = (int) (127 + 100 * Math.cos(5 * u * u + v)) + noise;
+                image.setRGB(x, y, (clamp(r) << 16) | (clamp(g) << 8) | clamp(b));
+            }
+        }
+        return image;
+    }
+
+    public static BufferedImage drawing(int width, int height)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLACK);
+
+        Random random = new Random(width * 17 + height);
+        g.setStroke(new BasicStroke(Math.max(1, width / 500)));
+        for (int i = 0; i < 200; i++)
+        {
+            g.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width), random.nextInt(height));
+        }
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, Math.max(8, height / 80)));
+        for (int y = height / 40; y < height; y += height / 20)
+        {
+            g.drawString("Lorem ipsum dolor sit amet, consectetur adipiscing elit " + y, width / 20, y);
+        }
+        g.dispose();
+        return image;
+    }
+
+    public static byte[] png(BufferedImage image) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A document with one photo (jpg) and one drawing (png) per page, drawn
+     * small enough to be resampled, plus a logo that all pages share.
+     *
+     * @param imageSize width of the images in pixels
+     */
+    public static byte[] document(int pages, int imageSize) throws IOException
+    {
+        PDDocument doc = new PDDocument();
+        try
+        {
+            PDXObjectImage logo = new PDPixelMap(doc, photo(imageSize / 4, imageSize / 8, false));
+
+            for (int i = 0; i < pages; i++)
+            {
+                PDPage page = new PDPage(PDPage.PAGE_SIZE_A4);
+                doc.addPage(page);
+
+                PDXObjectImage photo = new PDJpeg(doc, photo(imageSize, imageSize * 3 / 4, i % 3 == 0), 0.85f);
+                PDXObjectImage drawing = new PDPixelMap(doc, drawing(imageSize, imageSize));
+
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                content.drawXObject(logo, 36, 790, 72, 36);
+                content.drawXObject(photo, 72, 450, 288, 216);
+                content.drawXObject(drawing, 72, 72, 360, 360);
+                content.close();
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            doc.save(bytes);
+            return bytes.toByteArray();
+        }
+        catch (COSVisitorException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        finally
+        {
+            doc.close();
+        }
+    }
+
+    private static int clamp(int v)
+    {
+        return (v < 0) ? 0 : (v > 255) ? 255 : v;
+    }
+}
@@ -0,0 +1,122 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolution analysis and the whole load, analyze, process and save cycle on
+ * generated documents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DocumentBenchmark
+{
+    @Param({ "10", "50" })
+    public int pages;
+
+    /** the engine analyzer always runs on one thread */
+    @State(Scope.Thread)
+    public static class Threads
+    {
+        @Param({ "1", "4" })
+        public int threads;
+    }
+
+    private byte[] pdf;
+    private PDDocument doc;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        pdf = BenchData.document(pages, 1200);
+    }
+
+    @Setup(Level.Iteration)
+    public void openDocument() throws IOException
+    {
+        doc = PDDocument.load(new ByteArrayInputStream(pdf));
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeDocument() throws IOException
+    {
+        doc.close();
+    }
+
+    @Benchmark
+    public ImageRegistry analyze(Threads threads) throws IOException
+    {
+        return new PlacementAnalyzer(threads.threads).analyze(doc);
+    }
+
+    @Benchmark
+    public ImageRegistry analyzeEngine() throws IOException
+    {
+        return new ResolutionAnalyzer().analyze(doc);
+    }
+
+    @Benchmark
+    public int processAndSave(Threads threads) throws IOException, COSVisitorException
+    {
+        Options opts = new Options();
+        opts.doShrink = true;
+        opts.resolution = 150;
+        opts.resolutionThreshold = 200;
+        opts.threads = threads.threads;
+
+        PDDocument fresh = PDDocument.load(new ByteArrayInputStream(pdf));
+        try
+        {
+            PDFPicMangler mangler = new PDFPicMangler(opts);
+            ImageRegistry registry = new PlacementAnalyzer(threads.threads).analyze(fresh);
+            mangler.process(fresh, registry);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            fresh.save(out);
+            return out.size();
+        }
+        finally
+        {
+            fresh.close();
+        }
+    }
+}
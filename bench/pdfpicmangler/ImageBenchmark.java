@@ -0,0 +1,108 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resampling, jpg and png encoding, and png import of single images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ImageBenchmark
+{
+    @Param({ "512", "2048" })
+    public int size;
+
+    @Param({ "photo", "gray", "drawing" })
+    public String kind;
+
+    private PDFPicMangler mangler;
+    private BufferedImage image;
+    private BufferedImage halfImage;
+    private byte[] png;
+    private PDDocument doc;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        mangler = new PDFPicMangler(new Options());
+        image = BenchData.image(kind, size, size);
+        halfImage = mangler.resizedImage(size / 2, size / 2, image);
+        png = BenchData.png(image);
+    }
+
+    @Setup(Level.Iteration)
+    public void openDocument()
+    {
+        // PDPng writes into the document's scratch file, start with an empty one
+        doc = new PDDocument();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeDocument() throws IOException
+    {
+        doc.close();
+    }
+
+    @Benchmark
+    public BufferedImage resize()
+    {
+        return mangler.resizedImage(size / 2, size / 2, image);
+    }
+
+    @Benchmark
+    public EncodedImage makeJpeg() throws IOException
+    {
+        return mangler.makeJpeg(halfImage);
+    }
+
+    @Benchmark
+    public EncodedImage makePng() throws IOException
+    {
+        return mangler.makePng(halfImage);
+    }
+
+    @Benchmark
+    public PDPng readPng() throws IOException
+    {
+        return new PDPng(doc, new ByteArrayInputStream(png));
+    }
+}
@@ -10,3 +10,10 @@ tar -xzf commons-logging-1.2-bin.tar.gz commons-logging-1.2/commons-logging-1.2.
 mv commons-logging-1.2/commons-logging-1.2.jar .
 rmdir commons-logging-1.2/
 
+
+# only needed for the benchmarks in bench/
+CENTRAL=https://repo1.maven.org/maven2
+wget $CENTRAL/org/openjdk/jmh/jmh-core/1.19/jmh-core-1.19.jar
+wget $CENTRAL/org/openjdk/jmh/jmh-generator-annprocess/1.19/jmh-generator-annprocess-1.19.jar
+wget $CENTRAL/net/sf/jopt-simple/jopt-simple/4.6/jopt-simple-4.6.jar
+wget $CENTRAL/org/apache/commons/commons-math3/3.2/commons-math3-3.2.jar
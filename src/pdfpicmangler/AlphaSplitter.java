@@ -0,0 +1,115 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+
+/**
+ * Takes rows with an alpha channel (gray and alpha, or RGB and alpha) apart,
+ * since PDF keeps transparency in a separate /SMask image.
+ *
+ * The splitter is the {@link RowSource} of the colour rows. Every row it
+ * hands out has its alpha values passed on to the encoder of the mask at
+ * the same time, so colour and mask are compressed in one pass and neither
+ * exists as a whole image in between.
+ */
+public class AlphaSplitter implements RowSource
+{
+    private final RowSource source;
+    private final FlateEncoder mask;
+    private final byte[] pixels;
+    private final byte[] alpha;
+
+    /** all alpha values and-ed together, 0xff as long as everything is opaque */
+    private int opaque = 0xff;
+
+    /**
+     * @param source rows with 2 or 4 components, alpha last
+     * @param mask encoder for gray rows of the source width
+     */
+    public AlphaSplitter(RowSource source, FlateEncoder mask)
+    {
+        this.source = source;
+        this.mask = mask;
+        pixels = new byte[source.getWidth() * source.getComponents()];
+        alpha = new byte[source.getWidth()];
+    }
+
+    public int getWidth()
+    {
+        return source.getWidth();
+    }
+
+    public int getHeight()
+    {
+        return source.getHeight();
+    }
+
+    public int getComponents()
+    {
+        return source.getComponents() - 1;
+    }
+
+    public void readRow(byte[] row) throws IOException
+    {
+        source.readRow(pixels);
+
+        int width = alpha.length;
+        int and = opaque;
+        if (source.getComponents() == 2)
+        {
+            for (int x = 0, p = 0; x < width; x++, p += 2)
+            {
+                row[x] = pixels[p];
+                and &= alpha[x] = pixels[p + 1];
+            }
+        }
+        else
+        {
+            for (int x = 0, p = 0, o = 0; x < width; x++, p += 4, o += 3)
+            {
+                row[o] = pixels[p];
+                row[o + 1] = pixels[p + 1];
+                row[o + 2] = pixels[p + 2];
+                and &= alpha[x] = pixels[p + 3];
+            }
+        }
+        opaque = and & 0xff;
+
+        mask.writeRow(alpha);
+    }
+
+    /**
+     * @return true if every pixel read so far is fully opaque, then the
+     *         mask is not needed
+     */
+    public boolean isOpaque()
+    {
+        return opaque == 0xff;
+    }
+
+    /**
+     * Completes the mask after the last row.
+     *
+     * @return the mask as 8 bit gray Flate image with PNG predictors
+     */
+    public EncodedImage finishMask() throws IOException
+    {
+        return new EncodedImage(EncodedImage.PNG, mask.finish(), getWidth(), getHeight(), 8, 1, 15);
+    }
+}
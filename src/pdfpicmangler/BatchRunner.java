@@ -0,0 +1,402 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Processes many documents in one JVM.
+ *
+ * Inputs are pdf files, directories (searched recursively for *.pdf), globs
+ * like <code>docs/**&#47;*.pdf</code>, or <code>-</code> for a list of files on
+ * stdin. Up to <code>-jobs</code> documents are processed at the same time. A
+ * document that fails is reported and skipped, the others go on. With
+ * <code>-out=dir</code> each result is written to its path relative to the
+ * directory or glob it was found by, below dir; otherwise next to the input
+ * as <code>name.small.pdf</code>.
+ */
+public class BatchRunner
+{
+    private static class Document
+    {
+        File input;
+        File output;
+    }
+
+    private static class Result
+    {
+        long inputBytes;
+        long outputBytes;
+        Throwable error;
+    }
+
+    private final Options opts;
+
+    public BatchRunner(Options opts)
+    {
+        this.opts = opts;
+    }
+
+    /**
+     * @return true if all documents were processed without error.
+     */
+    public boolean run()
+    {
+        List<Document> documents;
+        try
+        {
+            documents = collect();
+        }
+        catch (IOException e)
+        {
+            Log.warn("can not read the list of documents: " + e.getMessage());
+            return false;
+        }
+
+        MetricsReport report = (opts.reportFileName != null) ? new MetricsReport() : null;
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(opts.jobs);
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        final MetricsReport metricsReport = report;
+        for (final Document document : documents)
+        {
+            results.add(executor.submit(new Callable<Result>()
+            {
+                public Result call()
+                {
+                    return mangle(document, metricsReport);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int done = 0;
+        int failed = 0;
+        long inputBytes = 0;
+        long outputBytes = 0;
+        List<String> failures = new ArrayList<String>();
+
+        for (int i = 0; i < documents.size(); i++)
+        {
+            Document document = documents.get(i);
+            Result result;
+            try
+            {
+                result = results.get(i).get();
+            }
+            catch (InterruptedException e)
+            {
+                executor.shutdownNow();
+                Log.warn("interrupted");
+                return false;
+            }
+            catch (ExecutionException e)
+            {
+                result = new Result();
+                result.error = e.getCause();
+            }
+
+            if (result.error != null)
+            {
+                failed++;
+                failures.add(document.input + ": " + result.error);
+                Log.warn("[" + (i + 1) + "/" + documents.size() + "] " + document.input + " FAILED: " + result.error);
+                continue;
+            }
+
+            done++;
+            inputBytes += result.inputBytes;
+            outputBytes += result.outputBytes;
+            Log.println("[" + (i + 1) + "/" + documents.size() + "] " + document.input + ": "
+                    + result.inputBytes + " -> " + result.outputBytes + " bytes");
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("============================================");
+        System.out.println("documents: " + done + " done, " + failed + " failed, " + String.format("%.1f", seconds) + " s");
+        System.out.println("throughput: " + String.format("%.2f", done / seconds) + " docs/s, "
+                + String.format("%.2f", inputBytes / seconds / (1024 * 1024)) + " MB/s");
+        System.out.println("size: " + inputBytes + " -> " + outputBytes + " bytes, " + (inputBytes - outputBytes) + " bytes saved");
+        for (String failure : failures)
+        {
+            System.out.println("failed: " + failure);
+        }
+
+        if (report != null)
+        {
+            try
+            {
+                report.write(opts.reportFileName);
+            }
+            catch (IOException e)
+            {
+                Log.warn("could not write report: " + e.getMessage());
+                return false;
+            }
+        }
+        return failed == 0;
+    }
+
+    private Result mangle(Document document, MetricsReport report)
+    {
+        Result result = new Result();
+        result.inputBytes = document.input.length();
+
+        File output = document.output;
+        File parent = output.getAbsoluteFile().getParentFile();
+        File temp = new File(parent, output.getName() + ".part");
+        PDFPicMangler mangler = new PDFPicMangler(opts);
+        try
+        {
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            {
+                throw new IOException("can not create " + parent);
+            }
+
+            mangler.mangle(document.input.getPath(), temp.getPath());
+
+            if (temp.isFile())
+            {
+                // only replace an existing output once the new one is complete
+                if (output.exists() && !output.delete())
+                {
+                    throw new IOException("can not replace " + output);
+                }
+                if (!temp.renameTo(output))
+                {
+                    throw new IOException("can not rename " + temp + " to " + output);
+                }
+                result.outputBytes = output.length();
+            }
+            else
+            {
+                result.outputBytes = result.inputBytes;
+            }
+        }
+        catch (Exception e)
+        {
+            // the error is reported with the results, the trace only helps when not -quiet
+            if (Log.enabled())
+            {
+                e.printStackTrace();
+            }
+            result.error = e;
+        }
+        catch (OutOfMemoryError e)
+        {
+            // the document is gone with its stack frames, the next one may fit
+            result.error = e;
+        }
+        finally
+        {
+            if (temp.exists())
+            {
+                temp.delete();
+            }
+        }
+
+        if (report != null)
+        {
+            Metrics metrics = mangler.getMetrics();
+            metrics.file = document.input.getPath();
+            metrics.inputBytes = result.inputBytes;
+            metrics.outputBytes = (result.error != null) ? result.inputBytes : result.outputBytes;
+            if (result.error != null)
+            {
+                metrics.error = result.error.toString();
+            }
+            report.add(metrics);
+        }
+        return result;
+    }
+
+    /**
+     * Expand the inputs into the list of documents, in a stable order.
+     */
+    private List<Document> collect() throws IOException
+    {
+        List<Document> documents = new ArrayList<Document>();
+
+        for (String input : opts.inputs)
+        {
+            if (input.equals("-"))
+            {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    line = line.trim();
+                    if (line.length() > 0)
+                    {
+                        File file = new File(line);
+                        add(documents, file, file.getAbsoluteFile().getParentFile());
+                    }
+                }
+            }
+            else if (input.indexOf('*') >= 0 || input.indexOf('?') >= 0)
+            {
+                addGlob(documents, input);
+            }
+            else
+            {
+                File file = new File(input);
+                if (file.isDirectory())
+                {
+                    addTree(documents, file, file, null);
+                }
+                else
+                {
+                    add(documents, file, file.getAbsoluteFile().getParentFile());
+                }
+            }
+        }
+        return documents;
+    }
+
+    private void addGlob(List<Document> documents, String glob)
+    {
+        String normalized = glob.replace(File.separatorChar, '/');
+
+        // the part before the first wildcard that ends with a '/' is a plain directory
+        int wildcard = Math.min(indexOrLength(normalized, '*'), indexOrLength(normalized, '?'));
+        int slash = normalized.lastIndexOf('/', wildcard);
+        File root = new File((slash < 0) ? "." : (slash == 0) ? "/" : normalized.substring(0, slash));
+        String pattern = normalized.substring(slash + 1);
+
+        if (root.isDirectory())
+        {
+            addTree(documents, root, root, globToRegex(pattern));
+        }
+    }
+
+    private static int indexOrLength(String s, char c)
+    {
+        int index = s.indexOf(c);
+        return (index < 0) ? s.length() : index;
+    }
+
+    /**
+     * '**' matches any number of directories, '*' and '?' anything but '/'.
+     */
+    static Pattern globToRegex(String glob)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+            {
+                i++;
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '/')
+                {
+                    i++;
+                    regex.append("(?:.*/)?");
+                }
+                else
+                {
+                    regex.append(".*");
+                }
+            }
+            else if (c == '*')
+            {
+                regex.append("[^/]*");
+            }
+            else if (c == '?')
+            {
+                regex.append("[^/]");
+            }
+            else
+            {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @param pattern matched against the path relative to root, null: all pdf files
+     */
+    private void addTree(List<Document> documents, File root, File dir, Pattern pattern)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        Arrays.sort(files);
+
+        for (File file : files)
+        {
+            if (file.isDirectory())
+            {
+                addTree(documents, root, file, pattern);
+            }
+            else if (pattern == null)
+            {
+                String name = file.getName().toLowerCase();
+                if (name.endsWith(".pdf") && !name.endsWith(".small.pdf"))
+                {
+                    add(documents, file, root);
+                }
+            }
+            else if (pattern.matcher(relativePath(root, file)).matches())
+            {
+                add(documents, file, root);
+            }
+        }
+    }
+
+    private void add(List<Document> documents, File input, File root)
+    {
+        Document document = new Document();
+        document.input = input;
+        if (opts.outputDir != null)
+        {
+            document.output = new File(opts.outputDir, relativePath(root, input));
+        }
+        else
+        {
+            document.output = new File(input.getPath() + ".small.pdf");
+        }
+        documents.add(document);
+    }
+
+    private static String relativePath(File root, File file)
+    {
+        String rootPath = root.getAbsoluteFile().toURI().normalize().getPath();
+        String filePath = file.getAbsoluteFile().toURI().normalize().getPath();
+        if (filePath.startsWith(rootPath))
+        {
+            return filePath.substring(rootPath.length());
+        }
+        return file.getName();
+    }
+}
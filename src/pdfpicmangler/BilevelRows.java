@@ -0,0 +1,65 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+
+/**
+ * Expands the packed rows of a 1 bit image to one byte per pixel, 0 for a
+ * cleared bit and 255 for a set one, so that it can be resampled like gray.
+ */
+public class BilevelRows implements RowSource
+{
+    private final RowSource packed;
+    private final int width;
+    private final byte[] bits;
+
+    /**
+     * @param packed rows of (width + 7) / 8 bytes, most significant bit first
+     */
+    public BilevelRows(RowSource packed, int width)
+    {
+        this.packed = packed;
+        this.width = width;
+        bits = new byte[packed.getWidth() * packed.getComponents()];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return packed.getHeight();
+    }
+
+    public int getComponents()
+    {
+        return 1;
+    }
+
+    public void readRow(byte[] row) throws IOException
+    {
+        packed.readRow(bits);
+        for (int x = 0; x < width; x++)
+        {
+            row[x] = ((bits[x >> 3] << (x & 7)) & 0x80) != 0 ? (byte) 0xff : 0;
+        }
+    }
+}
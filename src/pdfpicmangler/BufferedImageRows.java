@@ -0,0 +1,65 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Reads a gray or RGB buffered image as a {@link RowSource}.
+ */
+public class BufferedImageRows implements RowSource
+{
+    private final BufferedImage image;
+    private final int components;
+    private int y;
+
+    public BufferedImageRows(BufferedImage image)
+    {
+        this(image, (image.getType() == BufferedImage.TYPE_BYTE_GRAY) ? 1 : 3);
+    }
+
+    /**
+     * @param components 1 to read an RGB image that is known to be gray as gray,
+     *        2 or 4 to read gray or RGB with alpha
+     */
+    public BufferedImageRows(BufferedImage image, int components)
+    {
+        this.image = image;
+        this.components = components;
+    }
+
+    public int getWidth()
+    {
+        return image.getWidth();
+    }
+
+    public int getHeight()
+    {
+        return image.getHeight();
+    }
+
+    public int getComponents()
+    {
+        return components;
+    }
+
+    public void readRow(byte[] row)
+    {
+        Resampler.readRow(image, y++, row, components);
+    }
+}
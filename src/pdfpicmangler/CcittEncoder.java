@@ -0,0 +1,279 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+
+/**
+ * Compresses black and white rows with CCITT Group 4 (ITU-T T.6), the
+ * format of /CCITTFaxDecode with /K -1.
+ *
+ * Rows come in packed as for a 1 bit DeviceGray image: a 0 bit is black,
+ * the most significant bit is the leftmost pixel. That is also what the
+ * decoder returns with the default /BlackIs1 false. Each row is coded
+ * against the one above it (the first against a white row) and described by
+ * its changing elements only, so the time per row depends on the number of
+ * black and white runs, not on the width.
+ *
+ * With a size limit, {@link SizeCappedOutputStream.LimitExceededException}
+ * ends the encoding as soon as the output grows beyond it.
+ */
+public class CcittEncoder
+{
+    private static final String[] WHITE_TERMINATING = {
+        "00110101", "000111", "0111", "1000", "1011", "1100", "1110", "1111",
+        "10011", "10100", "00111", "01000", "001000", "000011", "110100", "110101",
+        "101010", "101011", "0100111", "0001100", "0001000", "0010111", "0000011", "0000100",
+        "0101000", "0101011", "0010011", "0100100", "0011000", "00000010", "00000011", "00011010",
+        "00011011", "00010010", "00010011", "00010100", "00010101", "00010110", "00010111", "00101000",
+        "00101001", "00101010", "00101011", "00101100", "00101101", "00000100", "00000101", "00001010",
+        "00001011", "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+        "01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011", "00110100" };
+
+    /** runs of 64, 128, .. 1728 */
+    private static final String[] WHITE_MAKEUP = {
+        "11011", "10010", "010111", "0110111", "00110110", "00110111", "01100100", "01100101",
+        "01101000", "01100111", "011001100", "011001101", "011010010", "011010011", "011010100", "011010101",
+        "011010110", "011010111", "011011000", "011011001", "011011010", "011011011", "010011000", "010011001",
+        "010011010", "011000", "010011011" };
+
+    private static final String[] BLACK_TERMINATING = {
+        "0000110111", "010", "11", "10", "011", "0011", "0010", "00011",
+        "000101", "000100", "0000100", "0000101", "0000111", "00000100", "00000111", "000011000",
+        "0000010111", "0000011000", "0000001000", "00001100111", "00001101000", "00001101100", "00000110111",
+        "00000101000", "00000010111", "00000011000", "000011001010", "000011001011", "000011001100",
+        "000011001101", "000001101000", "000001101001", "000001101010", "000001101011", "000011010010",
+        "000011010011", "000011010100", "000011010101", "000011010110", "000011010111", "000001101100",
+        "000001101101", "000011011010", "000011011011", "000001010100", "000001010101", "000001010110",
+        "000001010111", "000001100100", "000001100101", "000001010010", "000001010011", "000000100100",
+        "000000110111", "000000111000", "000000100111", "000000101000", "000001011000", "000001011001",
+        "000000101011", "000000101100", "000001011010", "000001100110", "000001100111" };
+
+    /** runs of 64, 128, .. 1728 */
+    private static final String[] BLACK_MAKEUP = {
+        "0000001111", "000011001000", "000011001001", "000001011011", "000000110011", "000000110100",
+        "000000110101", "0000001101100", "0000001101101", "0000001001010", "0000001001011", "0000001001100",
+        "0000001001101", "0000001110010", "0000001110011", "0000001110100", "0000001110101", "0000001110110",
+        "0000001110111", "0000001010010", "0000001010011", "0000001010100", "0000001010101", "0000001011010",
+        "0000001011011", "0000001100100", "0000001100101" };
+
+    /** runs of 1792, 1856, .. 2560 of either colour */
+    private static final String[] EXTENDED_MAKEUP = {
+        "00000001000", "00000001100", "00000001101", "000000010010", "000000010011", "000000010100",
+        "000000010101", "000000010110", "000000010111", "000000011100", "000000011101", "000000011110",
+        "000000011111" };
+
+    /** vertical mode codes for a1 - b1 = -3 .. 3 */
+    private static final String[] VERTICAL = {
+        "0000010", "000010", "010", "1", "011", "000011", "0000011" };
+
+    private static final String PASS = "0001";
+    private static final String HORIZONTAL = "001";
+    private static final String EOL = "000000000001";
+
+    private static final int[][] WHITE_TERMINATING_CODES = codes(WHITE_TERMINATING);
+    private static final int[][] WHITE_MAKEUP_CODES = codes(WHITE_MAKEUP);
+    private static final int[][] BLACK_TERMINATING_CODES = codes(BLACK_TERMINATING);
+    private static final int[][] BLACK_MAKEUP_CODES = codes(BLACK_MAKEUP);
+    private static final int[][] EXTENDED_MAKEUP_CODES = codes(EXTENDED_MAKEUP);
+    private static final int[][] VERTICAL_CODES = codes(VERTICAL);
+    private static final int[] PASS_CODE = code(PASS);
+    private static final int[] HORIZONTAL_CODE = code(HORIZONTAL);
+    private static final int[] EOL_CODE = code(EOL);
+
+    private final int width;
+
+    /** changing elements of the row above and of the current row, followed by three times the width */
+    private int[] reference;
+    private int[] current;
+
+    private final SizeCappedOutputStream out;
+    private int buffer;
+    private int count;
+
+    public CcittEncoder(int width)
+    {
+        this(width, SizeCappedOutputStream.NO_LIMIT);
+    }
+
+    /**
+     * @param limit largest size of the output in bytes
+     */
+    public CcittEncoder(int width, long limit)
+    {
+        this.out = new SizeCappedOutputStream(limit);
+        this.width = width;
+        reference = new int[width + 3];
+        current = new int[width + 3];
+        findChanges(null, reference);
+    }
+
+    /**
+     * @param row (width + 7) / 8 bytes, 0 bits are black
+     */
+    public void writeRow(byte[] row) throws IOException
+    {
+        findChanges(row, current);
+
+        int a0 = -1;
+        boolean black = false;
+        int c = 0;
+        int r = 0;
+        while (a0 < width)
+        {
+            while (current[c] <= a0)
+            {
+                c++;
+            }
+            int a1 = current[c];
+
+            while (reference[r] <= a0)
+            {
+                r++;
+            }
+            // changes alternate between black (even) and white (odd); b1 has the colour opposite to a0
+            int b = r;
+            if (((b & 1) == 0) == black)
+            {
+                b++;
+            }
+            int b1 = reference[b];
+            int b2 = reference[b + 1];
+
+            if (b2 < a1)
+            {
+                writeCode(PASS_CODE);
+                a0 = b2;
+            }
+            else if (a1 - b1 >= -3 && a1 - b1 <= 3)
+            {
+                writeCode(VERTICAL_CODES[a1 - b1 + 3]);
+                a0 = a1;
+                black = !black;
+            }
+            else
+            {
+                int a2 = current[c + 1];
+                writeCode(HORIZONTAL_CODE);
+                writeRun(a1 - Math.max(a0, 0), black);
+                writeRun(a2 - a1, !black);
+                a0 = a2;
+            }
+        }
+
+        int[] swap = reference;
+        reference = current;
+        current = swap;
+    }
+
+    /**
+     * @return the complete stream, ended by EOFB and padded to a whole byte
+     */
+    public byte[] finish() throws IOException
+    {
+        writeCode(EOL_CODE);
+        writeCode(EOL_CODE);
+        if (count > 0)
+        {
+            out.write(buffer << (8 - count));
+            count = 0;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Lists the positions at which the colour changes, starting from white.
+     * Whole bytes of the current colour are skipped at once.
+     */
+    private void findChanges(byte[] row, int[] changes)
+    {
+        int n = 0;
+        if (row != null)
+        {
+            boolean black = false;
+            int x = 0;
+            while (x < width)
+            {
+                int b = row[x >> 3] & 0xff;
+                if ((x & 7) == 0 && x + 8 <= width && b == (black ? 0x00 : 0xff))
+                {
+                    x += 8;
+                    continue;
+                }
+                boolean isBlack = (b & (0x80 >> (x & 7))) == 0;
+                if (isBlack != black)
+                {
+                    changes[n++] = x;
+                    black = isBlack;
+                }
+                x++;
+            }
+        }
+        changes[n] = changes[n + 1] = changes[n + 2] = width;
+    }
+
+    private void writeRun(int length, boolean black) throws IOException
+    {
+        while (length >= 2560)
+        {
+            writeCode(EXTENDED_MAKEUP_CODES[EXTENDED_MAKEUP_CODES.length - 1]);
+            length -= 2560;
+        }
+        if (length >= 1792)
+        {
+            writeCode(EXTENDED_MAKEUP_CODES[length / 64 - 28]);
+            length %= 64;
+        }
+        else if (length >= 64)
+        {
+            writeCode((black ? BLACK_MAKEUP_CODES : WHITE_MAKEUP_CODES)[length / 64 - 1]);
+            length %= 64;
+        }
+        writeCode((black ? BLACK_TERMINATING_CODES : WHITE_TERMINATING_CODES)[length]);
+    }
+
+    private void writeCode(int[] code) throws IOException
+    {
+        buffer = (buffer << code[1]) | code[0];
+        count += code[1];
+        while (count >= 8)
+        {
+            out.write(buffer >> (count - 8));
+            count -= 8;
+        }
+        buffer &= (1 << count) - 1;
+    }
+
+    private static int[][] codes(String[] bits)
+    {
+        int[][] codes = new int[bits.length][];
+        for (int i = 0; i < bits.length; i++)
+        {
+            codes[i] = code(bits[i]);
+        }
+        return codes;
+    }
+
+    /**
+     * @return the value and the number of bits of a code written as a string of 0s and 1s
+     */
+    private static int[] code(String bits)
+    {
+        return new int[] { Integer.parseInt(bits, 2), bits.length() };
+    }
+}
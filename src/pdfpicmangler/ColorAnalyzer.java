@@ -0,0 +1,329 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds out how many colours an image really needs: whether all its pixels
+ * are gray, whether it gets along with a palette of at most
+ * {@link #MAX_COLORS} colours, and whether it is plain black and white.
+ *
+ * The image is read once, in strips of rows that run on a shared executor. A
+ * strip stops as soon as it has seen both a coloured pixel and too many
+ * colours, because then nothing can be reduced; the other strips see the
+ * flag and stop as well.
+ */
+public class ColorAnalyzer
+{
+    public static final int MAX_COLORS = 256;
+
+    private static final int MIN_STRIP_ROWS = 64;
+    private static final int BLACK = 0x000000;
+    private static final int WHITE = 0xffffff;
+
+    private final int threads;
+    // runs the strips, null to read the whole image on the calling thread
+    private final ExecutorService executor;
+
+    /**
+     * @param threads how many strips an image is split into at most
+     * @param executor runs the strips, may be shared by several users and is
+     *        not shut down; null reads the image on the calling thread
+     */
+    public ColorAnalyzer(int threads, ExecutorService executor)
+    {
+        this.threads = (executor != null) ? Math.max(1, threads) : 1;
+        this.executor = executor;
+    }
+
+    /**
+     * What an image contains.
+     */
+    public static class Colors
+    {
+        private final boolean gray;
+        private final int[] palette;
+
+        Colors(boolean gray, int[] palette)
+        {
+            this.gray = gray;
+            this.palette = palette;
+        }
+
+        /** @return true if red, green and blue are the same for every pixel */
+        public boolean isGray()
+        {
+            return gray;
+        }
+
+        /** @return true if there is nothing but black and white */
+        public boolean isBilevel()
+        {
+            if (palette == null)
+            {
+                return false;
+            }
+            for (int rgb : palette)
+            {
+                if (rgb != BLACK && rgb != WHITE)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** @return the colours as 0xrrggbb in ascending order, or null if there are more than {@link #MAX_COLORS} */
+        public int[] getPalette()
+        {
+            return palette;
+        }
+
+        /** @return the number of bits (1, 2, 4 or 8) that an index into the palette needs */
+        public int getIndexBits()
+        {
+            int size = (palette != null) ? palette.length : MAX_COLORS;
+            return (size <= 2) ? 1 : (size <= 4) ? 2 : (size <= 16) ? 4 : 8;
+        }
+    }
+
+    public Colors analyze(BufferedImage image)
+    {
+        int height = image.getHeight();
+        int strips = Math.max(1, Math.min(threads, height / MIN_STRIP_ROWS));
+        AtomicBoolean hopeless = new AtomicBoolean();
+
+        List<Strip> results = new ArrayList<Strip>();
+        for (int i = 0; i < strips; i++)
+        {
+            int from = (int) ((long) height * i / strips);
+            int to = (int) ((long) height * (i + 1) / strips);
+            results.add(new Strip(image, from, to, hopeless));
+        }
+
+        if (strips == 1)
+        {
+            results.get(0).call();
+        }
+        else
+        {
+            runStrips(results);
+        }
+
+        if (hopeless.get())
+        {
+            return new Colors(false, null);
+        }
+
+        boolean gray = true;
+        ColorTable union = new ColorTable();
+        for (Strip strip : results)
+        {
+            gray &= strip.gray;
+            if (union != null)
+            {
+                union = (strip.colors != null && union.addAll(strip.colors)) ? union : null;
+            }
+        }
+        return new Colors(gray, (union != null) ? union.toSortedArray() : null);
+    }
+
+    private void runStrips(List<Strip> strips)
+    {
+        try
+        {
+            for (Future<Strip> future : executor.invokeAll(strips))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class Strip implements Callable<Strip>
+    {
+        private final BufferedImage image;
+        private final int from, to;
+        private final AtomicBoolean hopeless;
+
+        boolean gray = true;
+        /** null once there are too many colours */
+        ColorTable colors = new ColorTable();
+
+        Strip(BufferedImage image, int from, int to, AtomicBoolean hopeless)
+        {
+            this.image = image;
+            this.from = from;
+            this.to = to;
+            this.hopeless = hopeless;
+        }
+
+        public Strip call()
+        {
+            int width = image.getWidth();
+            byte[] row = new byte[3 * width];
+            int last = -1;
+
+            for (int y = from; y < to && !hopeless.get(); y++)
+            {
+                Resampler.readRow(image, y, row, 3);
+                for (int p = 0; p < row.length; p += 3)
+                {
+                    int r = row[p] & 0xff;
+                    int g = row[p + 1] & 0xff;
+                    int b = row[p + 2] & 0xff;
+                    int rgb = (r << 16) | (g << 8) | b;
+                    if (rgb == last)
+                    {
+                        // runs of the same colour are the common case in drawings
+                        continue;
+                    }
+                    last = rgb;
+
+                    if (gray && (r != g || g != b))
+                    {
+                        gray = false;
+                    }
+                    if (colors != null && !colors.add(rgb))
+                    {
+                        colors = null;
+                    }
+                    if (!gray && colors == null)
+                    {
+                        hopeless.set(true);
+                        return this;
+                    }
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A small open addressing hash set of up to {@link #MAX_COLORS} colours,
+     * which also maps each colour to its index in a palette.
+     */
+    static class ColorTable
+    {
+        private static final int SIZE = 4 * MAX_COLORS;
+        private static final int EMPTY = -1;
+
+        private final int[] keys = new int[SIZE];
+        private final int[] values = new int[SIZE];
+        private int count;
+
+        ColorTable()
+        {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * @param palette colours as 0xrrggbb, at most {@link #MAX_COLORS}
+         */
+        ColorTable(int[] palette)
+        {
+            this();
+            for (int rgb : palette)
+            {
+                add(rgb);
+            }
+        }
+
+        /**
+         * @return false if the colour is new and the table is full
+         */
+        boolean add(int rgb)
+        {
+            int slot = slot(rgb);
+            if (keys[slot] == rgb)
+            {
+                return true;
+            }
+            if (count == MAX_COLORS)
+            {
+                return false;
+            }
+            keys[slot] = rgb;
+            values[slot] = count++;
+            return true;
+        }
+
+        boolean addAll(ColorTable other)
+        {
+            for (int rgb : other.keys)
+            {
+                if (rgb != EMPTY && !add(rgb))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the position at which the colour was added, or -1 if it is not in the table
+         */
+        int indexOf(int rgb)
+        {
+            int slot = slot(rgb);
+            return (keys[slot] == rgb) ? values[slot] : -1;
+        }
+
+        int[] toSortedArray()
+        {
+            int[] colors = new int[count];
+            int n = 0;
+            for (int rgb : keys)
+            {
+                if (rgb != EMPTY)
+                {
+                    colors[n++] = rgb;
+                }
+            }
+            Arrays.sort(colors);
+            return colors;
+        }
+
+        private int slot(int rgb)
+        {
+            int slot = (rgb * 0x9e3779b1) >>> 22;
+            while (keys[slot] != EMPTY && keys[slot] != rgb)
+            {
+                slot = (slot + 1) & (SIZE - 1);
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Splits a content stream into tokens without building objects for them.
+ *
+ * Only numbers, names and operators are told apart, everything else
+ * (strings, arrays, dictionaries, booleans) is skipped over as
+ * {@link #OTHER}. The data of inline images is skipped as well: the token
+ * after an <code>ID</code> operator is the <code>EI</code> that ends it.
+ */
+public class ContentLexer
+{
+    public static final int EOF = 0;
+    public static final int NUMBER = 1;
+    public static final int NAME = 2;
+    public static final int OPERATOR = 3;
+    public static final int OTHER = 4;
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    private int start;
+    private int type;
+    private int inlineStart = -1, inlineEnd = -1;
+
+    public ContentLexer(byte[] data)
+    {
+        this(data, data.length);
+    }
+
+    public ContentLexer(byte[] data, int length)
+    {
+        this.data = data;
+        this.end = length;
+    }
+
+    /**
+     * @return the type of the next token
+     */
+    public int next()
+    {
+        if (type == OPERATOR && isOperator("ID"))
+        {
+            return skipInlineImage();
+        }
+
+        skipSpace();
+        start = pos;
+        if (pos >= end)
+        {
+            return type = EOF;
+        }
+
+        int c = data[pos] & 0xff;
+        switch (c)
+        {
+        case '/':
+            pos++;
+            while (pos < end && isRegular(data[pos] & 0xff))
+            {
+                pos++;
+            }
+            return type = NAME;
+        case '(':
+            skipString();
+            return type = OTHER;
+        case '<':
+            if (pos + 1 < end && data[pos + 1] == '<')
+            {
+                pos += 2;
+            }
+            else
+            {
+                while (pos < end && data[pos] != '>')
+                {
+                    pos++;
+                }
+                pos++;
+            }
+            return type = OTHER;
+        case '>':
+            pos += (pos + 1 < end && data[pos + 1] == '>') ? 2 : 1;
+            return type = OTHER;
+        case '[':
+        case ']':
+        case '{':
+        case '}':
+        case ')':
+            pos++;
+            return type = OTHER;
+        }
+
+        while (pos < end && isRegular(data[pos] & 0xff))
+        {
+            pos++;
+        }
+        if (isNumeric())
+        {
+            return type = NUMBER;
+        }
+        if (isOperator("true") || isOperator("false") || isOperator("null"))
+        {
+            return type = OTHER;
+        }
+        return type = OPERATOR;
+    }
+
+    /**
+     * @return true if the current token is the given operator (or keyword).
+     */
+    public boolean isOperator(String operator)
+    {
+        int length = pos - start;
+        if (length != operator.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < length; i++)
+        {
+            if (data[start + i] != operator.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of the current {@link #NUMBER} token
+     */
+    public double number()
+    {
+        int i = start;
+        boolean negative = false;
+        if (data[i] == '-' || data[i] == '+')
+        {
+            negative = data[i] == '-';
+            i++;
+        }
+        double value = 0;
+        double scale = 0;
+        for (; i < pos; i++)
+        {
+            int c = data[i];
+            if (c == '.')
+            {
+                scale = 1;
+            }
+            else if (c >= '0' && c <= '9')
+            {
+                value = value * 10 + (c - '0');
+                scale *= 10;
+            }
+        }
+        if (scale > 1)
+        {
+            value /= scale;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the current {@link #NAME} token without the slash, #xx escapes decoded
+     */
+    public String name()
+    {
+        StringBuilder name = new StringBuilder(pos - start);
+        for (int i = start + 1; i < pos; i++)
+        {
+            int c = data[i] & 0xff;
+            if (c == '#' && i + 2 < pos)
+            {
+                int hi = Character.digit(data[i + 1], 16);
+                int lo = Character.digit(data[i + 2], 16);
+                if (hi >= 0 && lo >= 0)
+                {
+                    c = hi * 16 + lo;
+                    i += 2;
+                }
+            }
+            name.append((char) c);
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return true if the current token is a literal or hex string
+     */
+    public boolean isString()
+    {
+        if (type != OTHER || pos - start < 2)
+        {
+            return false;
+        }
+        return data[start] == '(' || (data[start] == '<' && data[start + 1] != '<');
+    }
+
+    /**
+     * @return the bytes of the current literal or hex string (an
+     *         {@link #OTHER} token that starts with '(' or '<'), escapes decoded
+     */
+    public byte[] string()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pos - start);
+        if (data[start] == '<')
+        {
+            int hi = -1;
+            for (int i = start + 1; i < pos; i++)
+            {
+                int digit = Character.digit(data[i], 16);
+                if (digit < 0)
+                {
+                    continue;
+                }
+                if (hi < 0)
+                {
+                    hi = digit;
+                }
+                else
+                {
+                    bytes.write(hi * 16 + digit);
+                    hi = -1;
+                }
+            }
+            if (hi >= 0)
+            {
+                bytes.write(hi * 16);
+            }
+            return bytes.toByteArray();
+        }
+
+        // without the outer parentheses
+        for (int i = start + 1; i < pos - 1; i++)
+        {
+            int c = data[i] & 0xff;
+            if (c != '\\')
+            {
+                bytes.write(c);
+                continue;
+            }
+            c = data[++i] & 0xff;
+            switch (c)
+            {
+            case 'n':
+                bytes.write('\n');
+                break;
+            case 'r':
+                bytes.write('\r');
+                break;
+            case 't':
+                bytes.write('\t');
+                break;
+            case 'b':
+                bytes.write('\b');
+                break;
+            case 'f':
+                bytes.write('\f');
+                break;
+            case '\r':
+                // line continuation
+                if (i + 1 < pos - 1 && data[i + 1] == '\n')
+                {
+                    i++;
+                }
+                break;
+            case '\n':
+                break;
+            default:
+                if (c >= '0' && c <= '7')
+                {
+                    int value = c - '0';
+                    for (int n = 1; n < 3 && i + 1 < pos - 1 && data[i + 1] >= '0' && data[i + 1] <= '7'; n++)
+                    {
+                        value = value * 8 + (data[++i] - '0');
+                    }
+                    bytes.write(value);
+                }
+                else
+                {
+                    bytes.write(c);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /** @return offset of the current token */
+    public int getStart()
+    {
+        return start;
+    }
+
+    /** @return offset just behind the current token */
+    public int getEnd()
+    {
+        return pos;
+    }
+
+    /** @return start of the data of the last inline image, behind ID and its white space */
+    public int getInlineStart()
+    {
+        return inlineStart;
+    }
+
+    /** @return end of the data of the last inline image, before the white space that precedes EI */
+    public int getInlineEnd()
+    {
+        return inlineEnd;
+    }
+
+    private int skipInlineImage()
+    {
+        // exactly one white space byte separates ID from the data
+        pos++;
+        inlineStart = pos;
+
+        // the data ends at white space, EI and white space (or the end of the stream)
+        int i = pos;
+        while (i + 2 < end)
+        {
+            if (isSpace(data[i] & 0xff) && data[i + 1] == 'E' && data[i + 2] == 'I'
+                    && (i + 3 >= end || isSpace(data[i + 3] & 0xff) || isDelimiter(data[i + 3] & 0xff)))
+            {
+                inlineEnd = i;
+                start = i + 1;
+                pos = i + 3;
+                return type = OPERATOR;
+            }
+            i++;
+        }
+
+        inlineEnd = end;
+        start = pos = end;
+        return type = EOF;
+    }
+
+    private void skipSpace()
+    {
+        while (pos < end)
+        {
+            int c = data[pos] & 0xff;
+            if (c == '%')
+            {
+                while (pos < end && data[pos] != '\n' && data[pos] != '\r')
+                {
+                    pos++;
+                }
+            }
+            else if (isSpace(c))
+            {
+                pos++;
+            }
+            else
+            {
+                return;
+            }
+        }
+    }
+
+    private void skipString()
+    {
+        int depth = 0;
+        while (pos < end)
+        {
+            int c = data[pos++];
+            if (c == '\\')
+            {
+                pos++;
+            }
+            else if (c == '(')
+            {
+                depth++;
+            }
+            else if (c == ')' && --depth == 0)
+            {
+                return;
+            }
+        }
+    }
+
+    private boolean isNumeric()
+    {
+        int digits = 0;
+        for (int i = start; i < pos; i++)
+        {
+            int c = data[i];
+            if (c >= '0' && c <= '9')
+            {
+                digits++;
+            }
+            else if (!(c == '.' || ((c == '-' || c == '+') && i == start)))
+            {
+                return false;
+            }
+        }
+        return digits > 0;
+    }
+
+    private static boolean isSpace(int c)
+    {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' || c == 0;
+    }
+
+    private static boolean isDelimiter(int c)
+    {
+        return c == '(' || c == ')' || c == '<' || c == '>' || c == '[' || c == ']'
+                || c == '{' || c == '}' || c == '/' || c == '%';
+    }
+
+    private static boolean isRegular(int c)
+    {
+        return !isSpace(c) && !isDelimiter(c);
+    }
+}
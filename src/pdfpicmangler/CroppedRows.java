@@ -0,0 +1,79 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+
+/**
+ * A rectangle out of the rows of another source. The rows above it are read
+ * and dropped on the first call, the rows below it are never read.
+ */
+public class CroppedRows implements RowSource
+{
+    private final RowSource rows;
+    private final int x0, y0;
+    private final int width, height;
+    private final byte[] row;
+    private boolean skipped;
+
+    /**
+     * @param x0 first column
+     * @param y0 first row, counted from the top
+     * @param x1 column behind the last one
+     * @param y1 row behind the last one
+     */
+    public CroppedRows(RowSource rows, int x0, int y0, int x1, int y1)
+    {
+        this.rows = rows;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.width = x1 - x0;
+        this.height = y1 - y0;
+        row = new byte[rows.getWidth() * rows.getComponents()];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getComponents()
+    {
+        return rows.getComponents();
+    }
+
+    public void readRow(byte[] out) throws IOException
+    {
+        if (!skipped)
+        {
+            for (int y = 0; y < y0; y++)
+            {
+                rows.readRow(row);
+            }
+            skipped = true;
+        }
+        rows.readRow(row);
+        int components = rows.getComponents();
+        System.arraycopy(row, x0 * components, out, 0, width * components);
+    }
+}
@@ -0,0 +1,297 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDCcitt;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDJpeg;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDPixelMap;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
+
+/**
+ * An image that has been encoded into memory, but is not yet part of a document.
+ *
+ * Encoding happens on worker threads, while the document (and its scratch
+ * storage) may only be modified from one thread. {@link #toXObject(PDDocument)}
+ * does the part that touches the document.
+ */
+public class EncodedImage
+{
+    public static final String JPG = "jpg";
+    public static final String PNG = "png";
+    /** CCITT Group 4, the suffix PDFBox uses for /CCITTFaxDecode images */
+    public static final String CCITT = "tiff";
+
+    private final String suffix;
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    private final int bitsPerComponent;
+    private final int components;
+    /** the /Predictor of Flate encoded data, 1 if there is none */
+    private final int predictor;
+    /** rgb triples of an /Indexed image (components is 1 then), null for DeviceGray and DeviceRGB */
+    private final byte[] palette;
+    /** gray image that becomes the /SMask, null if the image is opaque */
+    private final EncodedImage mask;
+
+    public EncodedImage(String suffix, byte[] data, int width, int height, int bitsPerComponent, int components)
+    {
+        this(suffix, data, width, height, bitsPerComponent, components, 1);
+    }
+
+    public EncodedImage(String suffix, byte[] data, int width, int height, int bitsPerComponent, int components,
+            int predictor)
+    {
+        this(suffix, data, width, height, bitsPerComponent, components, predictor, null);
+    }
+
+    public EncodedImage(String suffix, byte[] data, int width, int height, int bitsPerComponent, int components,
+            int predictor, byte[] palette)
+    {
+        this(suffix, data, width, height, bitsPerComponent, components, predictor, palette, null);
+    }
+
+    private EncodedImage(String suffix, byte[] data, int width, int height, int bitsPerComponent, int components,
+            int predictor, byte[] palette, EncodedImage mask)
+    {
+        this.suffix = suffix;
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.bitsPerComponent = bitsPerComponent;
+        this.components = components;
+        this.predictor = predictor;
+        this.palette = palette;
+        this.mask = mask;
+    }
+
+    /**
+     * @return the same image with a soft mask of the same size
+     */
+    public EncodedImage withMask(EncodedImage mask)
+    {
+        return new EncodedImage(suffix, data, width, height, bitsPerComponent, components, predictor, palette, mask);
+    }
+
+    public String getSuffix()
+    {
+        return suffix;
+    }
+
+    /**
+     * @return the number of bytes the image adds to a document, the mask included
+     */
+    public int getLength()
+    {
+        return data.length + ((mask != null) ? mask.getLength() : 0);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Serialize the image, the counterpart of {@link #readFrom(DataInputStream)}.
+     */
+    public void writeTo(DataOutputStream out) throws IOException
+    {
+        out.writeUTF(suffix);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(bitsPerComponent);
+        out.writeInt(components);
+        out.writeInt(predictor);
+        out.writeInt((palette != null) ? palette.length : -1);
+        if (palette != null)
+        {
+            out.write(palette);
+        }
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeBoolean(mask != null);
+        if (mask != null)
+        {
+            mask.writeTo(out);
+        }
+    }
+
+    public static EncodedImage readFrom(DataInputStream in) throws IOException
+    {
+        String suffix = in.readUTF();
+        if (!JPG.equals(suffix) && !PNG.equals(suffix) && !CCITT.equals(suffix))
+        {
+            throw new IOException("unknown image type: " + suffix);
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        int bitsPerComponent = in.readInt();
+        int components = in.readInt();
+        int predictor = in.readInt();
+        int paletteLength = in.readInt();
+        byte[] palette = null;
+        if (paletteLength > 3 * ColorAnalyzer.MAX_COLORS)
+        {
+            throw new IOException("bad palette length: " + paletteLength);
+        }
+        if (paletteLength >= 0)
+        {
+            palette = new byte[paletteLength];
+            in.readFully(palette);
+        }
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new IOException("bad image length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        EncodedImage mask = in.readBoolean() ? readFrom(in) : null;
+        return new EncodedImage(suffix, data, width, height, bitsPerComponent, components, predictor, palette, mask);
+    }
+
+    /**
+     * Replaces the data of an existing image stream, which keeps its
+     * dictionary. Only for lossless rewrites in the same format (the filters
+     * stay as they are). Must be called from the thread that owns the document.
+     */
+    public void replaceData(COSStream stream) throws IOException
+    {
+        OutputStream out = stream.createFilteredStream();
+        try
+        {
+            out.write(data);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Create the image XObject. Must be called from the thread that owns the document.
+     */
+    public PDXObjectImage toXObject(PDDocument doc) throws IOException
+    {
+        PDStream stream = new PDStream(doc, new ByteArrayInputStream(data), true);
+
+        COSDictionary dic = stream.getStream();
+        dic.setItem(COSName.TYPE, COSName.XOBJECT);
+        dic.setItem(COSName.SUBTYPE, COSName.IMAGE);
+        dic.setInt(COSName.WIDTH, width);
+        dic.setInt(COSName.HEIGHT, height);
+        dic.setInt(COSName.BITS_PER_COMPONENT, bitsPerComponent);
+        if (palette != null)
+        {
+            COSArray indexed = new COSArray();
+            indexed.add(COSName.INDEXED);
+            indexed.add(COSName.DEVICERGB);
+            indexed.add(COSInteger.get(palette.length / 3 - 1));
+            indexed.add(new COSString(palette));
+            dic.setItem(COSName.COLORSPACE, indexed);
+        }
+        else
+        {
+            dic.setItem(COSName.COLORSPACE, (components == 1) ? COSName.DEVICEGRAY : COSName.DEVICERGB);
+        }
+        if (mask != null)
+        {
+            dic.setItem(COSName.SMASK, mask.toXObject(doc).getCOSStream());
+        }
+        setFilter(dic);
+
+        if (JPG.equals(suffix))
+        {
+            return new PDJpeg(stream);
+        }
+        if (CCITT.equals(suffix))
+        {
+            return new PDCcitt(stream);
+        }
+        return new PDPixelMap(stream);
+    }
+
+    /**
+     * Puts the image into an existing image stream, for masks that are shared
+     * by several images. The size and the filters change, everything else in
+     * the dictionary (/ImageMask, /Decode, /Matte) stays. Must be called from
+     * the thread that owns the document.
+     */
+    public void replaceImage(COSStream stream) throws IOException
+    {
+        replaceData(stream);
+        stream.setInt(COSName.WIDTH, width);
+        stream.setInt(COSName.HEIGHT, height);
+        stream.setInt(COSName.BITS_PER_COMPONENT, bitsPerComponent);
+        setFilter(stream);
+    }
+
+    private void setFilter(COSDictionary dic)
+    {
+        dic.removeItem(COSName.DECODE_PARMS);
+
+        if (JPG.equals(suffix))
+        {
+            dic.setItem(COSName.FILTER, COSName.DCT_DECODE);
+            return;
+        }
+
+        if (CCITT.equals(suffix))
+        {
+            COSDictionary filterParams = new COSDictionary();
+            filterParams.setInt(COSName.K, -1);
+            filterParams.setInt(COSName.COLUMNS, width);
+            filterParams.setInt(COSName.ROWS, height);
+            filterParams.setDirect(true);
+            dic.setItem(COSName.FILTER, COSName.CCITTFAX_DECODE);
+            dic.setItem(COSName.DECODE_PARMS, filterParams);
+            return;
+        }
+
+        dic.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        if (predictor > 1)
+        {
+            COSDictionary filterParams = new COSDictionary();
+            filterParams.setInt(COSName.PREDICTOR, predictor);
+            filterParams.setInt(COSName.COLORS, components);
+            filterParams.setInt(COSName.BITS_PER_COMPONENT, bitsPerComponent);
+            filterParams.setInt(COSName.COLUMNS, width);
+            filterParams.setDirect(true);
+            dic.setItem(COSName.DECODE_PARMS, filterParams);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses image rows into a Flate stream with PNG predictors
+ * (/Predictor 15), choosing the row filter for each row. Palette images and
+ * images with less than 8 bits per pixel are better off without predictors,
+ * then the rows are compressed as they are.
+ *
+ * The filtered data is cut into blocks that are deflated independently,
+ * each with the last 32 KB of its predecessor as preset dictionary, and
+ * joined with sync flushes into a single zlib stream (the way pigz does it).
+ * The result decodes like any other Flate stream. The blocks are the same
+ * whether they are compressed on a thread pool or one after the other, so
+ * the output does not depend on the number of threads. Before Java 7, which
+ * has no sync flush, one Deflater takes all of the data.
+ *
+ * With a size limit, {@link SizeCappedOutputStream.LimitExceededException}
+ * ends the encoding as soon as the compressed data grows beyond it. Blocks
+ * that are done are collected while rows are still coming in, so that this
+ * happens early with several threads as well.
+ */
+public class FlateEncoder
+{
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int SYNC_FLUSH = 2;
+
+    /** Deflater.deflate(byte[], int, int, int), needed for sync flushes; null before Java 7 */
+    private static final Method DEFLATE_WITH_FLUSH = findDeflateWithFlush();
+
+    private final int bpp;
+    private final int rowLength;
+    private final int level;
+    private final boolean predictors;
+
+    private byte[] previous;
+    private final byte[][] candidates = new byte[5][];
+
+    private final Adler32 adler = new Adler32();
+    private final SizeCappedOutputStream out;
+
+    // before Java 7
+    private Deflater deflater;
+    private final byte[] buffer = new byte[65536];
+
+    // blocks, compressed on the executor or, if that is null, right away
+    private final ExecutorService executor;
+    private final List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+
+    /**
+     * @param components bytes per pixel
+     * @param level 0 (store) .. 9 (smallest)
+     * @param executor compresses the blocks, may be shared by several
+     *        encoders; null to compress them on the calling thread
+     */
+    public FlateEncoder(int width, int components, int level, ExecutorService executor) throws IOException
+    {
+        this(width * components, components, true, level, executor);
+    }
+
+    /**
+     * @param rowLength bytes per row
+     * @param bpp bytes per pixel, 1 if a pixel takes less than a byte
+     * @param predictors false to leave the rows unfiltered (/Predictor 1)
+     */
+    public FlateEncoder(int rowLength, int bpp, boolean predictors, int level, ExecutorService executor)
+            throws IOException
+    {
+        this(rowLength, bpp, predictors, level, executor, SizeCappedOutputStream.NO_LIMIT);
+    }
+
+    /**
+     * @param limit largest size of the zlib stream in bytes
+     */
+    public FlateEncoder(int rowLength, int bpp, boolean predictors, int level, ExecutorService executor, long limit)
+            throws IOException
+    {
+        this.executor = executor;
+        this.out = new SizeCappedOutputStream(limit);
+        this.bpp = bpp;
+        this.rowLength = rowLength;
+        this.level = level;
+        this.predictors = predictors;
+
+        previous = new byte[rowLength];
+        for (int i = 0; i < candidates.length; i++)
+        {
+            candidates[i] = new byte[rowLength + 1];
+            candidates[i][0] = (byte) i;
+        }
+
+        // zlib header: deflate with 32K window, no preset dictionary, compression level hint
+        int flevel = (level <= 1) ? 0 : (level <= 5) ? 1 : (level == 6) ? 2 : 3;
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        out.write(cmf);
+        out.write(flg);
+
+        if (DEFLATE_WITH_FLUSH != null)
+        {
+            block = new byte[BLOCK_SIZE];
+        }
+        else
+        {
+            deflater = new Deflater(level, true);
+        }
+    }
+
+    public void writeRow(byte[] row) throws IOException
+    {
+        try
+        {
+            compressRow(row);
+        }
+        catch (IOException e)
+        {
+            abort();
+            throw e;
+        }
+    }
+
+    private void compressRow(byte[] row) throws IOException
+    {
+        byte[] filtered = predictors ? filter(row) : row;
+        int length = predictors ? rowLength + 1 : rowLength;
+        adler.update(filtered, 0, length);
+
+        if (deflater != null)
+        {
+            deflater.setInput(filtered, 0, length);
+            while (!deflater.needsInput())
+            {
+                int amount = deflater.deflate(buffer);
+                out.write(buffer, 0, amount);
+            }
+            return;
+        }
+
+        int offset = 0;
+        while (offset < length)
+        {
+            int amount = Math.min(length - offset, BLOCK_SIZE - blockLength);
+            System.arraycopy(filtered, offset, block, blockLength, amount);
+            blockLength += amount;
+            offset += amount;
+            if (blockLength == BLOCK_SIZE)
+            {
+                submitBlock(false);
+                collectBlocks(false);
+            }
+        }
+    }
+
+    /**
+     * @return the complete zlib stream
+     */
+    public byte[] finish() throws IOException
+    {
+        try
+        {
+            if (deflater != null)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    int amount = deflater.deflate(buffer);
+                    out.write(buffer, 0, amount);
+                }
+            }
+            else
+            {
+                submitBlock(true);
+                collectBlocks(true);
+            }
+        }
+        finally
+        {
+            abort();
+        }
+
+        long checksum = adler.getValue();
+        out.write((int) (checksum >>> 24));
+        out.write((int) (checksum >>> 16));
+        out.write((int) (checksum >>> 8));
+        out.write((int) checksum);
+        return out.toByteArray();
+    }
+
+    /**
+     * Moves compressed blocks to the output, in order.
+     *
+     * @param wait false to stop at the first block that is not done yet
+     */
+    private void collectBlocks(boolean wait) throws IOException
+    {
+        try
+        {
+            while (!blocks.isEmpty() && (wait || blocks.get(0).isDone()))
+            {
+                out.write(blocks.remove(0).get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("interrupted while compressing");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("compression failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Cancels the blocks that are still waiting or releases the deflater, for
+     * an encoder that is given up before {@link #finish()}; it can not be
+     * used afterwards. The executor is left running for its other users.
+     */
+    public void abort()
+    {
+        if (deflater != null)
+        {
+            deflater.end();
+        }
+        for (Future<byte[]> pending : blocks)
+        {
+            pending.cancel(true);
+        }
+        blocks.clear();
+    }
+
+    private void submitBlock(final boolean last)
+    {
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] preset = dictionary;
+
+        if (!last)
+        {
+            dictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(data, length - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+        }
+
+        Callable<byte[]> task = new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                return compressBlock(data, length, preset, last);
+            }
+        };
+        if (executor != null)
+        {
+            blocks.add(executor.submit(task));
+        }
+        else
+        {
+            FutureTask<byte[]> done = new FutureTask<byte[]>(task);
+            done.run();
+            blocks.add(done);
+        }
+    }
+
+    private byte[] compressBlock(byte[] data, int length, byte[] preset, boolean last) throws Exception
+    {
+        Deflater blockDeflater = new Deflater(level, true);
+        try
+        {
+            if (preset != null)
+            {
+                blockDeflater.setDictionary(preset);
+            }
+            blockDeflater.setInput(data, 0, length);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+            byte[] output = new byte[65536];
+            if (last)
+            {
+                blockDeflater.finish();
+                while (!blockDeflater.finished())
+                {
+                    int amount = blockDeflater.deflate(output);
+                    compressed.write(output, 0, amount);
+                }
+            }
+            else
+            {
+                // ends on a byte boundary without the final block bit, so the next block can follow
+                int amount;
+                do
+                {
+                    amount = (Integer) DEFLATE_WITH_FLUSH.invoke(blockDeflater, output, 0, output.length, SYNC_FLUSH);
+                    compressed.write(output, 0, amount);
+                } while (amount == output.length);
+            }
+            return compressed.toByteArray();
+        }
+        catch (InvocationTargetException e)
+        {
+            throw (Exception) e.getCause();
+        }
+        finally
+        {
+            blockDeflater.end();
+        }
+    }
+
+    /**
+     * Applies all five PNG filters and keeps the one with the smallest sum of
+     * absolute values, the usual heuristic for photos and scans.
+     */
+    private byte[] filter(byte[] row)
+    {
+        byte[] none = candidates[0];
+        byte[] sub = candidates[1];
+        byte[] up = candidates[2];
+        byte[] average = candidates[3];
+        byte[] paeth = candidates[4];
+
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+        for (int i = 0; i < rowLength; i++)
+        {
+            int x = row[i] & 0xff;
+            int a = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = (i >= bpp) ? previous[i - bpp] & 0xff : 0;
+
+            byte v;
+            none[i + 1] = v = (byte) x;
+            sumNone += Math.abs(v);
+            sub[i + 1] = v = (byte) (x - a);
+            sumSub += Math.abs(v);
+            up[i + 1] = v = (byte) (x - b);
+            sumUp += Math.abs(v);
+            average[i + 1] = v = (byte) (x - ((a + b) >> 1));
+            sumAverage += Math.abs(v);
+            paeth[i + 1] = v = (byte) (x - FlateRowSource.paeth(a, b, c));
+            sumPaeth += Math.abs(v);
+        }
+        System.arraycopy(row, 0, previous, 0, rowLength);
+
+        byte[] best = none;
+        long bestSum = sumNone;
+        if (sumSub < bestSum)
+        {
+            best = sub;
+            bestSum = sumSub;
+        }
+        if (sumUp < bestSum)
+        {
+            best = up;
+            bestSum = sumUp;
+        }
+        if (sumAverage < bestSum)
+        {
+            best = average;
+            bestSum = sumAverage;
+        }
+        if (sumPaeth < bestSum)
+        {
+            best = paeth;
+        }
+        return best;
+    }
+
+    private static Method findDeflateWithFlush()
+    {
+        try
+        {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the rows of an 8 bit image stream that is uncompressed or Flate
+ * encoded, optionally with TIFF or PNG predictors, without decoding the
+ * whole stream first.
+ */
+public class FlateRowSource implements RowSource
+{
+    private final InputStream in;
+    private final int width, height;
+    private final int components;
+    private final int predictor;
+
+    private byte[] previous;
+    private byte[] current;
+
+    /**
+     * @param raw the stream data as stored in the file
+     * @param flate true if the data is FlateDecode compressed
+     * @param predictor the /Predictor decode parameter, 1 if there is none
+     */
+    public FlateRowSource(InputStream raw, boolean flate, int predictor, int width, int height, int components)
+    {
+        InputStream buffered = new BufferedInputStream(raw, 65536);
+        this.in = flate ? new InflaterInputStream(buffered) : buffered;
+        this.width = width;
+        this.height = height;
+        this.components = components;
+        this.predictor = predictor;
+
+        previous = new byte[width * components];
+        current = new byte[width * components];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getComponents()
+    {
+        return components;
+    }
+
+    public void readRow(byte[] row) throws IOException
+    {
+        int length = width * components;
+        int type = 0;
+
+        if (predictor >= 10)
+        {
+            type = in.read();
+            if (type < 0)
+            {
+                throw new EOFException("image data ends early.");
+            }
+        }
+        readFully(current, length);
+
+        if (predictor == 2)
+        {
+            for (int i = components; i < length; i++)
+            {
+                current[i] += current[i - components];
+            }
+        }
+        else if (predictor >= 10)
+        {
+            unfilter(type, current, previous, components);
+        }
+
+        System.arraycopy(current, 0, row, 0, length);
+
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+    }
+
+    /**
+     * Undoes one of the five PNG row filters.
+     */
+    static void unfilter(int type, byte[] row, byte[] previous, int bpp)
+    {
+        int length = row.length;
+        switch (type)
+        {
+        case 0:
+            break;
+        case 1:
+            for (int i = bpp; i < length; i++)
+            {
+                row[i] += row[i - bpp];
+            }
+            break;
+        case 2:
+            for (int i = 0; i < length; i++)
+            {
+                row[i] += previous[i];
+            }
+            break;
+        case 3:
+            for (int i = 0; i < length; i++)
+            {
+                int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                row[i] += (left + (previous[i] & 0xff)) >> 1;
+            }
+            break;
+        case 4:
+            for (int i = 0; i < length; i++)
+            {
+                int a = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                int b = previous[i] & 0xff;
+                int c = (i >= bpp) ? previous[i - bpp] & 0xff : 0;
+                row[i] += paeth(a, b, c);
+            }
+            break;
+        default:
+            Arrays.fill(row, (byte) 0);
+        }
+    }
+
+    static int paeth(int a, int b, int c)
+    {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+        {
+            return a;
+        }
+        return (pb <= pc) ? b : c;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length)
+        {
+            int amountRead = in.read(buffer, offset, length - offset);
+            if (amountRead < 0)
+            {
+                throw new EOFException("image data ends early.");
+            }
+            offset += amountRead;
+        }
+    }
+
+    public void close() throws IOException
+    {
+        in.close();
+    }
+}
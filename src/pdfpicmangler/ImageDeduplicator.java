@@ -0,0 +1,236 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
+
+/**
+ * Finds image streams with identical content.
+ *
+ * Two images are the same if the raw (still encoded) stream bytes have the
+ * same hash and the image dictionaries are equal, so that both decode to the
+ * same pixels.
+ */
+public class ImageDeduplicator
+{
+    private static class Group
+    {
+        COSStream first;
+        Float resolution;
+        int size;
+    }
+
+    private Map<String, List<Group>> groups = new HashMap<String, List<Group>>();
+    private Map<COSStream, Group> members = new IdentityHashMap<COSStream, Group>();
+
+    private int duplicates;
+    private long savedBytes;
+
+    /**
+     * Register one image occurrence with the resolution it is shown at.
+     */
+    public void add(PDXObjectImage img, Float resolution) throws IOException
+    {
+        COSStream stream = img.getCOSStream();
+        Group group = members.get(stream);
+
+        if (group == null)
+        {
+            String hash = hash(stream);
+            List<Group> candidates = groups.get(hash);
+            if (candidates == null)
+            {
+                candidates = new ArrayList<Group>();
+                groups.put(hash, candidates);
+            }
+
+            for (Group candidate : candidates)
+            {
+                if (sameDictionary(candidate.first, stream))
+                {
+                    group = candidate;
+                    duplicates++;
+                    savedBytes += img.getPDStream().getLength();
+                    break;
+                }
+            }
+
+            if (group == null)
+            {
+                group = new Group();
+                group.first = stream;
+                candidates.add(group);
+            }
+
+            members.put(stream, group);
+            group.size++;
+        }
+
+        if (resolution != null && (group.resolution == null || resolution < group.resolution))
+        {
+            group.resolution = resolution;
+        }
+    }
+
+    /**
+     * @return the stream that stands for all images with the same content as img.
+     */
+    public COSStream canonical(PDXObjectImage img)
+    {
+        Group group = members.get(img.getCOSStream());
+        return (group != null) ? group.first : img.getCOSStream();
+    }
+
+    /**
+     * @return the lowest resolution any copy of img is shown at, or null if unknown.
+     */
+    public Float resolution(PDXObjectImage img)
+    {
+        Group group = members.get(img.getCOSStream());
+        return (group != null) ? group.resolution : null;
+    }
+
+    /**
+     * @return true if another image stream has the same content as img
+     */
+    public boolean hasCopies(PDXObjectImage img)
+    {
+        Group group = members.get(img.getCOSStream());
+        return group != null && group.size > 1;
+    }
+
+    public int getDuplicates()
+    {
+        return duplicates;
+    }
+
+    public long getSavedBytes()
+    {
+        return savedBytes;
+    }
+
+    public String toString()
+    {
+        return "dedup: " + duplicates + " duplicate images, " + savedBytes + " bytes saved";
+    }
+
+    private static String hash(COSStream stream) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-1 not available");
+        }
+
+        InputStream is = stream.getFilteredStream();
+        byte[] buffer = new byte[65536];
+        int amountRead;
+        while ((amountRead = is.read(buffer)) != -1)
+        {
+            digest.update(buffer, 0, amountRead);
+        }
+        is.close();
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+        {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    private static boolean sameDictionary(COSStream a, COSStream b)
+    {
+        if (a.keySet().size() != b.keySet().size())
+        {
+            return false;
+        }
+
+        for (COSName key : a.keySet())
+        {
+            if (!sameValue(a.getDictionaryObject(key), b.getDictionaryObject(key)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names and numbers compare by value, arrays element-wise, everything else
+     * (dictionaries, ICC profile streams, ...) only if it is the same object.
+     */
+    private static boolean sameValue(COSBase a, COSBase b)
+    {
+        if (a instanceof COSObject)
+        {
+            a = ((COSObject) a).getObject();
+        }
+        if (b instanceof COSObject)
+        {
+            b = ((COSObject) b).getObject();
+        }
+
+        if (a == b)
+        {
+            return true;
+        }
+        if (a instanceof COSName || a instanceof COSNumber)
+        {
+            return a.equals(b);
+        }
+        if (a instanceof COSArray && b instanceof COSArray)
+        {
+            COSArray arrayA = (COSArray) a;
+            COSArray arrayB = (COSArray) b;
+            if (arrayA.size() != arrayB.size())
+            {
+                return false;
+            }
+            for (int i = 0; i < arrayA.size(); i++)
+            {
+                if (!sameValue(arrayA.get(i), arrayB.get(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
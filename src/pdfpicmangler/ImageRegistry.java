@@ -0,0 +1,168 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSStream;
+
+/**
+ * All places where images are drawn, keyed by the image stream object.
+ *
+ * The same image object can be used on many pages and under different
+ * resource names; it is still only one image and gets one resolution: the
+ * lowest one it is shown at.
+ */
+public class ImageRegistry
+{
+    public static class Placement
+    {
+        public final int page;
+        public final String name;
+        public final float dpi;
+        /** x0, y0, x1, y1 of the part that can be seen, in pixels from the top left; null for all of it */
+        public final int[] visible;
+
+        public Placement(int page, String name, float dpi)
+        {
+            this(page, name, dpi, null);
+        }
+
+        public Placement(int page, String name, float dpi, int[] visible)
+        {
+            this.page = page;
+            this.name = name;
+            this.dpi = dpi;
+            this.visible = visible;
+        }
+    }
+
+    public static class Entry
+    {
+        public final COSStream stream;
+        public final List<Placement> placements = new ArrayList<Placement>();
+        public float minDpi = Float.MAX_VALUE;
+        /** union of the visible parts of all placements, null once one of them shows the whole image */
+        public int[] visible;
+
+        Entry(COSStream stream)
+        {
+            this.stream = stream;
+        }
+    }
+
+    private Map<COSStream, Entry> entries = new IdentityHashMap<COSStream, Entry>();
+
+    public void addPlacement(COSStream stream, int page, String name, float dpi)
+    {
+        addPlacement(stream, page, name, dpi, null);
+    }
+
+    /**
+     * @param visible x0, y0, x1, y1 of the part of the image that can be
+     *        seen, in pixels from the top left; null for the whole image
+     */
+    public void addPlacement(COSStream stream, int page, String name, float dpi, int[] visible)
+    {
+        Entry entry = entries.get(stream);
+        if (entry == null)
+        {
+            entry = new Entry(stream);
+            entries.put(stream, entry);
+            entry.visible = (visible != null) ? visible.clone() : null;
+        }
+        else if (entry.visible != null)
+        {
+            if (visible == null)
+            {
+                entry.visible = null;
+            }
+            else if (isEmpty(entry.visible))
+            {
+                entry.visible = visible.clone();
+            }
+            else if (!isEmpty(visible))
+            {
+                entry.visible[0] = Math.min(entry.visible[0], visible[0]);
+                entry.visible[1] = Math.min(entry.visible[1], visible[1]);
+                entry.visible[2] = Math.max(entry.visible[2], visible[2]);
+                entry.visible[3] = Math.max(entry.visible[3], visible[3]);
+            }
+        }
+
+        entry.placements.add(new Placement(page, name, dpi, visible));
+        if (dpi < entry.minDpi)
+        {
+            entry.minDpi = dpi;
+        }
+    }
+
+    public Entry get(COSStream stream)
+    {
+        return entries.get(stream);
+    }
+
+    /**
+     * @return the lowest resolution the image is shown at, or null if it is never drawn.
+     */
+    public Float getResolution(COSStream stream)
+    {
+        Entry entry = entries.get(stream);
+        return (entry != null) ? entry.minDpi : null;
+    }
+
+    /**
+     * @return x0, y0, x1, y1 of the part of the image that any placement
+     *         shows, in pixels from the top left, or null if that is all of
+     *         it, nothing or not known
+     */
+    public int[] getVisibleRegion(COSStream stream)
+    {
+        Entry entry = entries.get(stream);
+        if (entry == null || entry.visible == null)
+        {
+            return null;
+        }
+        return isEmpty(entry.visible) ? null : entry.visible.clone();
+    }
+
+    /** @return true for a region that is clipped away completely */
+    private static boolean isEmpty(int[] visible)
+    {
+        return visible[2] <= visible[0] || visible[3] <= visible[1];
+    }
+
+    public Collection<Entry> entries()
+    {
+        return entries.values();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public void clear()
+    {
+        entries.clear();
+    }
+}
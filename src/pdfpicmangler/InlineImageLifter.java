@@ -0,0 +1,817 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+/**
+ * Moves inline images (<code>BI</code> ... <code>ID</code> data
+ * <code>EI</code>) out of the content streams into image XObjects, so that
+ * the rest of the tool can shrink them like any other image.
+ *
+ * The pages are walked first: every content stream is lexed with a
+ * {@link ContentLexer} each time it is drawn, while the transformation is
+ * tracked like in {@link PlacementAnalyzer}, and each inline image keeps the
+ * lowest resolution it is drawn at. Then the streams are rewritten: an
+ * inline image whose resolution stays above the threshold is replaced by
+ * <code>/Inl<i>n</i> Do</code>, which draws the same unit square; the
+ * content is copied around it in ranges, no token list is built. Inline
+ * images with identical bytes become one shared XObject.
+ *
+ * Only the content of pages and of forms with their own resources is
+ * rewritten, and only if it is always drawn with the same resources. A
+ * stream in which the lexer loses track of the image data (an uncompressed
+ * image shorter than its size says) is left as it is; that is known before
+ * anything is changed.
+ */
+public class InlineImageLifter
+{
+    private static final COSName MATRIX = COSName.getPDFName("Matrix");
+
+    /** the abbreviated keys of inline image dictionaries */
+    private static final Map<String, String> KEYS = new HashMap<String, String>();
+    /** the abbreviated names that may be used as values */
+    private static final Map<String, String> VALUES = new HashMap<String, String>();
+
+    static
+    {
+        KEYS.put("BPC", "BitsPerComponent");
+        KEYS.put("CS", "ColorSpace");
+        KEYS.put("D", "Decode");
+        KEYS.put("DP", "DecodeParms");
+        KEYS.put("F", "Filter");
+        KEYS.put("H", "Height");
+        KEYS.put("IM", "ImageMask");
+        KEYS.put("I", "Interpolate");
+        KEYS.put("W", "Width");
+        KEYS.put("L", "Length");
+
+        VALUES.put("G", "DeviceGray");
+        VALUES.put("RGB", "DeviceRGB");
+        VALUES.put("CMYK", "DeviceCMYK");
+        VALUES.put("I", "Indexed");
+        VALUES.put("AHx", "ASCIIHexDecode");
+        VALUES.put("A85", "ASCII85Decode");
+        VALUES.put("LZW", "LZWDecode");
+        VALUES.put("Fl", "FlateDecode");
+        VALUES.put("RL", "RunLengthDecode");
+        VALUES.put("CCF", "CCITTFaxDecode");
+        VALUES.put("DCT", "DCTDecode");
+    }
+
+    private final PDDocument document;
+    private final double threshold;
+
+    /** lifted images by the digest of their bytes and their resolved colour space */
+    private final Map<String, COSStream> shared = new HashMap<String, COSStream>();
+    /** numbers for the resource objects the colour spaces refer to, for the digest */
+    private final Map<COSBase, Integer> ids = new IdentityHashMap<COSBase, Integer>();
+    /** what the walk found in each content stream */
+    private final Map<COSStream, Scanned> scanned = new IdentityHashMap<COSStream, Scanned>();
+    /** the keys of scanned, in the order they were found */
+    private final List<COSStream> order = new ArrayList<COSStream>();
+    /** forms that are being drawn right now, to stop on forms that draw themselves */
+    private final Set<COSStream> activeForms = Collections.newSetFromMap(new IdentityHashMap<COSStream, Boolean>());
+    private final Set<COSDictionary> changedResources =
+            Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
+    private int found;
+    private int lifted;
+
+    /**
+     * @param threshold inline images drawn at this resolution or less stay where they are
+     */
+    public InlineImageLifter(PDDocument document, double threshold)
+    {
+        this.document = document;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return the number of inline images that were replaced
+     */
+    public int lift() throws IOException
+    {
+        List<?> allPages = document.getDocumentCatalog().getAllPages();
+        for (int i = 0; i < allPages.size(); i++)
+        {
+            PDPage page = (PDPage) allPages.get(i);
+            COSBase contents = page.getCOSDictionary().getDictionaryObject(COSName.CONTENTS);
+            PDResources resources = page.findResources();
+            if (resources == null)
+            {
+                continue;
+            }
+
+            // the parts of an array are one content stream, the state carries over
+            State state = new State(new double[] { 1, 0, 0, 1, 0, 0 });
+            if (contents instanceof COSStream)
+            {
+                walk((COSStream) contents, resources.getCOSDictionary(), true, state);
+            }
+            else if (contents instanceof COSArray)
+            {
+                COSArray array = (COSArray) contents;
+                for (int j = 0; j < array.size(); j++)
+                {
+                    COSBase part = array.getObject(j);
+                    if (part instanceof COSStream)
+                    {
+                        walk((COSStream) part, resources.getCOSDictionary(), true, state);
+                    }
+                }
+            }
+        }
+
+        for (COSStream stream : order)
+        {
+            rewrite(stream, scanned.get(stream));
+        }
+
+        if (found > 0)
+        {
+            Log.println("inline images: " + found + " found, " + lifted + " moved into " + shared.size() + " XObjects");
+        }
+        return lifted;
+    }
+
+    /**
+     * @return the image XObjects that were made from inline images; their
+     *         data used to be part of (usually compressed) content streams
+     */
+    public Collection<COSStream> getLiftedImages()
+    {
+        return shared.values();
+    }
+
+    /**
+     * @return the resource dictionaries that got new XObjects, their pages
+     *         and forms have new content
+     */
+    public Set<COSDictionary> getChangedResources()
+    {
+        return changedResources;
+    }
+
+    /**
+     * The transformation and its saved copies, across the parts of a page.
+     */
+    private static class State
+    {
+        double[] ctm;
+        final List<double[]> stack = new ArrayList<double[]>();
+
+        State(double[] ctm)
+        {
+            this.ctm = ctm;
+        }
+    }
+
+    /**
+     * The inline images of one content stream, from the first time it was
+     * lexed.
+     */
+    private static class Scanned
+    {
+        final COSDictionary resources;
+        /** false if new XObjects can not be added to the resources */
+        boolean liftable;
+        /** the lexer lost track of the image data, the stream stays as it is */
+        boolean broken;
+        final List<Inline> images = new ArrayList<Inline>();
+
+        Scanned(COSDictionary resources, boolean liftable)
+        {
+            this.resources = resources;
+            this.liftable = liftable;
+        }
+    }
+
+    private static class Inline
+    {
+        /** null if the image can not be taken out of the content */
+        final COSDictionary image;
+        /** from BI to behind EI */
+        final int begin, end;
+        final int dataStart, dataLength;
+        /** the lowest of all the placements */
+        double resolution = Double.MAX_VALUE;
+
+        Inline(COSDictionary image, int begin, int end, int dataStart, int dataLength)
+        {
+            this.image = image;
+            this.begin = begin;
+            this.end = end;
+            this.dataStart = dataStart;
+            this.dataLength = dataLength;
+        }
+    }
+
+    /**
+     * Interprets one content stream, for one of the places it is drawn.
+     *
+     * @param liftable false if new XObjects can not be added to the resources
+     */
+    private void walk(COSStream stream, COSDictionary resources, boolean liftable, State state) throws IOException
+    {
+        Scanned scan = scanned.get(stream);
+        boolean first = (scan == null);
+        if (first)
+        {
+            scan = new Scanned(resources, liftable);
+            scanned.put(stream, scan);
+            order.add(stream);
+        }
+        else if (!liftable || scan.resources != resources)
+        {
+            // the XObjects would be missing where it is drawn with other resources
+            scan.liftable = false;
+        }
+        if (scan.broken)
+        {
+            return;
+        }
+
+        byte[] content = PlacementAnalyzer.readAll(stream.getUnfilteredStream());
+        ContentLexer lexer = new ContentLexer(content);
+        int index = 0;
+
+        double[] operands = new double[6];
+        int numbers = 0;
+        String name = null;
+
+        int token;
+        while ((token = lexer.next()) != ContentLexer.EOF)
+        {
+            if (token == ContentLexer.NUMBER)
+            {
+                // keep the last six, that is all cm needs
+                if (numbers == 6)
+                {
+                    System.arraycopy(operands, 1, operands, 0, 5);
+                    numbers = 5;
+                }
+                operands[numbers++] = lexer.number();
+                continue;
+            }
+            if (token == ContentLexer.NAME)
+            {
+                name = lexer.name();
+                continue;
+            }
+            if (token != ContentLexer.OPERATOR)
+            {
+                continue;
+            }
+
+            if (lexer.isOperator("q"))
+            {
+                state.stack.add(state.ctm.clone());
+            }
+            else if (lexer.isOperator("Q"))
+            {
+                if (!state.stack.isEmpty())
+                {
+                    state.ctm = state.stack.remove(state.stack.size() - 1);
+                }
+            }
+            else if (lexer.isOperator("cm"))
+            {
+                if (numbers == 6)
+                {
+                    state.ctm = PlacementAnalyzer.concatenate(operands, state.ctm);
+                }
+            }
+            else if (lexer.isOperator("Do"))
+            {
+                if (name != null)
+                {
+                    draw(name, resources, state.ctm);
+                }
+            }
+            else if (lexer.isOperator("BI"))
+            {
+                int begin = lexer.getStart();
+                COSDictionary image = readDictionary(lexer, resources);
+                if (lexer.next() == ContentLexer.EOF)
+                {
+                    break;
+                }
+
+                if (first)
+                {
+                    found++;
+                    int dataStart = lexer.getInlineStart();
+                    int dataLength = checkLength(image, lexer.getInlineEnd() - dataStart);
+                    if (dataLength < 0)
+                    {
+                        Log.println("inline image data does not match its size, content stream left as it is");
+                        scan.broken = true;
+                        scan.images.clear();
+                        return;
+                    }
+                    scan.images.add(new Inline(image, begin, lexer.getEnd(), dataStart, dataLength));
+                }
+
+                Inline inline = scan.images.get(index++);
+                if (inline.image != null)
+                {
+                    inline.resolution = Math.min(inline.resolution, resolution(inline.image, state.ctm));
+                }
+            }
+            numbers = 0;
+            name = null;
+        }
+    }
+
+    /**
+     * Replaces the inline images of a stream that are drawn at more than
+     * the threshold resolution everywhere.
+     */
+    private void rewrite(COSStream stream, Scanned scan) throws IOException
+    {
+        if (!scan.liftable || scan.broken)
+        {
+            return;
+        }
+
+        byte[] content = null;
+        ByteArrayOutputStream out = null;
+        int copied = 0;
+        for (Inline inline : scan.images)
+        {
+            if (inline.image == null || inline.resolution <= threshold)
+            {
+                continue;
+            }
+            if (content == null)
+            {
+                content = PlacementAnalyzer.readAll(stream.getUnfilteredStream());
+                out = new ByteArrayOutputStream(content.length);
+            }
+            String xobject = addXObject(scan.resources, inline.image, content, inline.begin, inline.end,
+                    inline.dataStart, inline.dataLength);
+            out.write(content, copied, inline.begin - copied);
+            out.write(("/" + xobject + " Do").getBytes("ISO-8859-1"));
+            copied = inline.end;
+            lifted++;
+        }
+
+        if (out != null)
+        {
+            out.write(content, copied, content.length - copied);
+            replaceContent(stream, out.toByteArray());
+            changedResources.add(scan.resources);
+        }
+    }
+
+    private void draw(String name, COSDictionary resources, double[] ctm) throws IOException
+    {
+        COSBase xobjects = resources.getDictionaryObject(COSName.XOBJECT);
+        if (!(xobjects instanceof COSDictionary))
+        {
+            return;
+        }
+        COSBase xobject = ((COSDictionary) xobjects).getDictionaryObject(COSName.getPDFName(name));
+        if (!(xobject instanceof COSStream) || activeForms.contains(xobject))
+        {
+            return;
+        }
+        COSStream form = (COSStream) xobject;
+        if (!COSName.FORM.equals(form.getDictionaryObject(COSName.SUBTYPE)))
+        {
+            return;
+        }
+
+        double[] formCtm = ctm;
+        COSBase matrix = form.getDictionaryObject(MATRIX);
+        if (matrix instanceof COSArray && ((COSArray) matrix).size() == 6)
+        {
+            double[] m = new double[6];
+            for (int i = 0; i < 6; i++)
+            {
+                COSBase value = ((COSArray) matrix).getObject(i);
+                m[i] = (value instanceof COSNumber) ? ((COSNumber) value).doubleValue() : ((i == 0 || i == 3) ? 1 : 0);
+            }
+            formCtm = PlacementAnalyzer.concatenate(m, ctm);
+        }
+
+        // a form without resources uses those of the page it is drawn on, which may differ
+        COSBase formResources = form.getDictionaryObject(COSName.RESOURCES);
+        activeForms.add(form);
+        try
+        {
+            if (formResources instanceof COSDictionary)
+            {
+                walk(form, (COSDictionary) formResources, true, new State(formCtm));
+            }
+            else
+            {
+                walk(form, resources, false, new State(formCtm));
+            }
+        }
+        finally
+        {
+            activeForms.remove(form);
+        }
+    }
+
+    /**
+     * Reads the key value pairs up to <code>ID</code>, with the
+     * abbreviations spelled out.
+     *
+     * @return the image dictionary, or null if it can not be taken out of
+     *         the content stream (a named colour space that is not in the
+     *         resources, or something the lexer can not read)
+     */
+    private static COSDictionary readDictionary(ContentLexer lexer, COSDictionary resources)
+    {
+        COSDictionary image = new COSDictionary();
+        boolean valid = true;
+        int token;
+        while ((token = lexer.next()) != ContentLexer.EOF)
+        {
+            if (token == ContentLexer.OPERATOR && lexer.isOperator("ID"))
+            {
+                break;
+            }
+            if (token != ContentLexer.NAME)
+            {
+                valid = false;
+                continue;
+            }
+            String key = lexer.name();
+            COSBase value = readValue(lexer, lexer.next());
+            if (value == null)
+            {
+                valid = false;
+                if (lexer.isOperator("ID"))
+                {
+                    break;
+                }
+                continue;
+            }
+            image.setItem(KEYS.containsKey(key) ? KEYS.get(key) : key, value);
+        }
+        if (!valid)
+        {
+            return null;
+        }
+
+        COSBase colorSpace = resolveColorSpace(image.getDictionaryObject(COSName.COLORSPACE), resources);
+        if (image.getDictionaryObject(COSName.COLORSPACE) != null)
+        {
+            if (colorSpace == null)
+            {
+                return null;
+            }
+            image.setItem(COSName.COLORSPACE, colorSpace);
+        }
+        return image;
+    }
+
+    /**
+     * @return the object that starts with the given token, or null if it is
+     *         not one that can stand in an inline image dictionary
+     */
+    private static COSBase readValue(ContentLexer lexer, int token)
+    {
+        if (token == ContentLexer.NUMBER)
+        {
+            double value = lexer.number();
+            if (value == Math.rint(value) && Math.abs(value) < Integer.MAX_VALUE)
+            {
+                return COSInteger.get((long) value);
+            }
+            return new COSFloat((float) value);
+        }
+        if (token == ContentLexer.NAME)
+        {
+            String name = lexer.name();
+            return COSName.getPDFName(VALUES.containsKey(name) ? VALUES.get(name) : name);
+        }
+        if (token != ContentLexer.OTHER)
+        {
+            return null;
+        }
+        if (lexer.isOperator("true"))
+        {
+            return COSBoolean.TRUE;
+        }
+        if (lexer.isOperator("false"))
+        {
+            return COSBoolean.FALSE;
+        }
+        if (lexer.isOperator("["))
+        {
+            COSArray array = new COSArray();
+            while ((token = lexer.next()) != ContentLexer.EOF)
+            {
+                if (lexer.isOperator("]"))
+                {
+                    return array;
+                }
+                COSBase value = readValue(lexer, token);
+                if (value == null)
+                {
+                    return null;
+                }
+                array.add(value);
+            }
+            return null;
+        }
+        if (lexer.isOperator("<<"))
+        {
+            COSDictionary dictionary = new COSDictionary();
+            while ((token = lexer.next()) == ContentLexer.NAME)
+            {
+                String key = lexer.name();
+                COSBase value = readValue(lexer, lexer.next());
+                if (value == null)
+                {
+                    return null;
+                }
+                dictionary.setItem(key, value);
+            }
+            return lexer.isOperator(">>") ? dictionary : null;
+        }
+        if (lexer.isString())
+        {
+            return new COSString(lexer.string());
+        }
+        return null;
+    }
+
+    /**
+     * @return the colour space with names from the resources looked up
+     *         (also as base of /Indexed), or null if one is missing
+     */
+    private static COSBase resolveColorSpace(COSBase colorSpace, COSDictionary resources)
+    {
+        if (colorSpace instanceof COSName)
+        {
+            if (COSName.DEVICEGRAY.equals(colorSpace) || COSName.DEVICERGB.equals(colorSpace)
+                    || COSName.DEVICECMYK.equals(colorSpace))
+            {
+                return colorSpace;
+            }
+            COSBase named = resources.getDictionaryObject(COSName.COLORSPACE);
+            return (named instanceof COSDictionary) ? ((COSDictionary) named).getDictionaryObject((COSName) colorSpace)
+                    : null;
+        }
+        if (colorSpace instanceof COSArray && ((COSArray) colorSpace).size() == 4
+                && COSName.INDEXED.equals(((COSArray) colorSpace).getObject(0)))
+        {
+            COSArray indexed = (COSArray) colorSpace;
+            COSBase base = resolveColorSpace(indexed.getObject(1), resources);
+            if (base == null)
+            {
+                return null;
+            }
+            indexed.set(1, base);
+        }
+        return colorSpace;
+    }
+
+    /**
+     * Inline image data has no length of its own, the lexer takes the first
+     * EI that looks like one. For uncompressed images the size tells whether
+     * that was right.
+     *
+     * @return the length of the data without trailing white space, or -1
+     *         if the data is shorter than the size of the image
+     */
+    private static int checkLength(COSDictionary image, int length)
+    {
+        if (image == null || image.getDictionaryObject(COSName.FILTER) != null)
+        {
+            return length;
+        }
+        int components;
+        COSBase colorSpace = image.getDictionaryObject(COSName.COLORSPACE);
+        if (image.getBoolean(COSName.IMAGE_MASK, false) || COSName.DEVICEGRAY.equals(colorSpace)
+                || (colorSpace instanceof COSArray && COSName.INDEXED.equals(((COSArray) colorSpace).getObject(0))))
+        {
+            components = 1;
+        }
+        else if (COSName.DEVICERGB.equals(colorSpace))
+        {
+            components = 3;
+        }
+        else if (COSName.DEVICECMYK.equals(colorSpace))
+        {
+            components = 4;
+        }
+        else
+        {
+            return length;
+        }
+        int bits = image.getBoolean(COSName.IMAGE_MASK, false) ? 1 : image.getInt(COSName.BITS_PER_COMPONENT, 8);
+        long expected = (long) image.getInt(COSName.HEIGHT, 0)
+                * ((image.getInt(COSName.WIDTH, 0) * (long) components * bits + 7) / 8);
+        if (length < expected)
+        {
+            return -1;
+        }
+        return (int) expected;
+    }
+
+    /**
+     * @return the resolution like {@link PlacementAnalyzer} measures it, 0
+     *         for images without a size
+     */
+    private static double resolution(COSDictionary image, double[] ctm)
+    {
+        double xScale = Math.sqrt(ctm[0] * ctm[0] + ctm[1] * ctm[1]) / 72;
+        double yScale = Math.sqrt(ctm[2] * ctm[2] + ctm[3] * ctm[3]) / 72;
+        if (xScale == 0 || yScale == 0)
+        {
+            return 0;
+        }
+        return 0.5 * (image.getInt(COSName.WIDTH, 0) / xScale + image.getInt(COSName.HEIGHT, 0) / yScale);
+    }
+
+    /**
+     * Makes (or finds) the XObject for an inline image and puts it into the
+     * resources.
+     *
+     * @return its name in the resources
+     */
+    private String addXObject(COSDictionary resources, COSDictionary image, byte[] content, int begin, int end,
+            int dataStart, int dataLength) throws IOException
+    {
+        String digest = digest(image, content, begin, end - begin);
+        COSStream stream = shared.get(digest);
+        if (stream == null)
+        {
+            PDStream pdStream = new PDStream(document, new ByteArrayInputStream(content, dataStart, dataLength), true);
+            stream = pdStream.getStream();
+            stream.addAll(image);
+            stream.removeItem(COSName.LENGTH);
+            stream.setInt(COSName.LENGTH, dataLength);
+            stream.setItem(COSName.TYPE, COSName.XOBJECT);
+            stream.setItem(COSName.SUBTYPE, COSName.IMAGE);
+            stream.setNeedToBeUpdate(true);
+            shared.put(digest, stream);
+        }
+
+        COSBase base = resources.getDictionaryObject(COSName.XOBJECT);
+        COSDictionary xobjects;
+        if (base instanceof COSDictionary)
+        {
+            xobjects = (COSDictionary) base;
+            for (COSName key : xobjects.keySet())
+            {
+                if (xobjects.getDictionaryObject(key) == stream)
+                {
+                    return key.getName();
+                }
+            }
+        }
+        else
+        {
+            xobjects = new COSDictionary();
+            resources.setItem(COSName.XOBJECT, xobjects);
+        }
+
+        int n = 0;
+        while (xobjects.getDictionaryObject(COSName.getPDFName("Inl" + n)) != null)
+        {
+            n++;
+        }
+        String name = "Inl" + n;
+        xobjects.setItem(name, stream);
+        return name;
+    }
+
+    /**
+     * The same bytes may name a colour space that is different in the
+     * resources of another content stream, so the colour space as
+     * {@link #readDictionary} resolved it goes into the digest as well.
+     */
+    private String digest(COSDictionary image, byte[] data, int offset, int length)
+    {
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, offset, length);
+            StringBuilder colorSpace = new StringBuilder();
+            describe(image.getDictionaryObject(COSName.COLORSPACE), colorSpace);
+            md5.update(colorSpace.toString().getBytes(Charset.forName("UTF-8")));
+            return new BigInteger(1, md5.digest()).toString(16) + ":" + length;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a colour space by value; dictionaries and streams, which only
+     * come from the resources, by their identity.
+     */
+    private void describe(COSBase base, StringBuilder out)
+    {
+        if (base instanceof COSName)
+        {
+            out.append('/').append(((COSName) base).getName()).append(' ');
+        }
+        else if (base instanceof COSNumber)
+        {
+            out.append(((COSNumber) base).floatValue()).append(' ');
+        }
+        else if (base instanceof COSString)
+        {
+            out.append('<').append(new BigInteger(1, ((COSString) base).getBytes()).toString(16)).append(':')
+                    .append(((COSString) base).getBytes().length).append("> ");
+        }
+        else if (base instanceof COSArray)
+        {
+            out.append("[ ");
+            for (int i = 0; i < ((COSArray) base).size(); i++)
+            {
+                describe(((COSArray) base).getObject(i), out);
+            }
+            out.append("] ");
+        }
+        else if (base != null)
+        {
+            Integer id = ids.get(base);
+            if (id == null)
+            {
+                id = ids.size();
+                ids.put(base, id);
+            }
+            out.append('#').append(id).append(' ');
+        }
+    }
+
+    /**
+     * Puts the rewritten content into the stream, Flate compressed.
+     */
+    private static void replaceContent(COSStream stream, byte[] content) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4);
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        deflater.write(content);
+        deflater.close();
+
+        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        stream.removeItem(COSName.DECODE_PARMS);
+        OutputStream out = stream.createFilteredStream();
+        try
+        {
+            compressed.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        stream.setNeedToBeUpdate(true);
+    }
+}
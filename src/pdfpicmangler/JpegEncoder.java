@@ -0,0 +1,472 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+
+/**
+ * Baseline jpeg encoder that takes the image one row at a time.
+ *
+ * Only one MCU row (16 rows for color, 8 for gray) is buffered. Color
+ * images are written as YCbCr with 4:2:0 subsampling, gray images with one
+ * component, both with the standard huffman tables and the standard
+ * quantization tables scaled like the IJG encoder does.
+ */
+public class JpegEncoder
+{
+    private final OutputStream out;
+    private final int width, height;
+    private final int components;
+    private final int mcuSize;
+    private final int paddedWidth;
+
+    private final int[][] quant = new int[2][];
+    private final float[][] divisors = new float[2][64];
+    private final int[][][] dcCodes = new int[2][][];
+    private final int[][][] acCodes = new int[2][][];
+
+    /** one MCU row of the Y, Cb and Cr planes at full resolution */
+    private final float[][] planes;
+    private int rowsBuffered;
+    private int rowsWritten;
+    private final int[] pred = new int[3];
+
+    private final BitWriter bits;
+    private final float[] block = new float[64];
+    private final float[] temp = new float[64];
+    private final int[] zz = new int[64];
+
+    private static final float[] COS = new float[64];
+
+    static
+    {
+        for (int x = 0; x < 8; x++)
+        {
+            for (int u = 0; u < 8; u++)
+            {
+                double cu = (u == 0) ? Math.sqrt(0.5) : 1.0;
+                COS[u * 8 + x] = (float) (cu / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16));
+            }
+        }
+    }
+
+    /**
+     * Writes the headers.
+     *
+     * @param quality 0.0 .. 1.0, like the quality of the ImageIO jpeg writer
+     */
+    public JpegEncoder(OutputStream out, int width, int height, int components, float quality) throws IOException
+    {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.components = components;
+        this.mcuSize = (components == 1) ? 8 : 16;
+        this.paddedWidth = JpegParser.ceilDiv(width, mcuSize) * mcuSize;
+
+        quant[0] = scaledTable(JPEGQTable.K1Luminance.getTable(), quality);
+        quant[1] = scaledTable(JPEGQTable.K2Chrominance.getTable(), quality);
+        for (int t = 0; t < 2; t++)
+        {
+            for (int k = 0; k < 64; k++)
+            {
+                divisors[t][k] = quant[t][JpegParser.ZIGZAG[k]];
+            }
+        }
+
+        dcCodes[0] = buildCodes(JPEGHuffmanTable.StdDCLuminance);
+        acCodes[0] = buildCodes(JPEGHuffmanTable.StdACLuminance);
+        dcCodes[1] = buildCodes(JPEGHuffmanTable.StdDCChrominance);
+        acCodes[1] = buildCodes(JPEGHuffmanTable.StdACChrominance);
+
+        planes = new float[components][paddedWidth * mcuSize];
+        bits = new BitWriter(out);
+
+        writeHeaders();
+    }
+
+    /**
+     * IJG quality scaling of a quantization table (natural order).
+     */
+    static int[] scaledTable(int[] table, float quality)
+    {
+        int q = Math.max(1, Math.min(100, Math.round(quality * 100)));
+        int scale = (q < 50) ? 5000 / q : 200 - 2 * q;
+        int[] result = new int[64];
+        for (int i = 0; i < 64; i++)
+        {
+            result[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return result;
+    }
+
+    /**
+     * @return codes[value] = { code, length }
+     */
+    static int[][] buildCodes(JPEGHuffmanTable table)
+    {
+        short[] lengths = table.getLengths();
+        short[] values = table.getValues();
+        int[] bits = new int[17];
+        int[] vals = new int[values.length];
+        for (int i = 0; i < 16; i++)
+        {
+            bits[i + 1] = lengths[i];
+        }
+        for (int i = 0; i < values.length; i++)
+        {
+            vals[i] = values[i];
+        }
+        return buildCodes(bits, vals);
+    }
+
+    static int[][] buildCodes(int[] bits, int[] values)
+    {
+        int[][] codes = new int[256][];
+        int code = 0;
+        int k = 0;
+        for (int len = 1; len <= 16; len++)
+        {
+            for (int i = 0; i < bits[len]; i++, k++, code++)
+            {
+                codes[values[k]] = new int[] { code, len };
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+
+    private void writeHeaders() throws IOException
+    {
+        writeMarker(JpegParser.SOI);
+
+        int tables = (components == 1) ? 1 : 2;
+        writeMarker(JpegParser.DQT);
+        writeUInt16(2 + 65 * tables);
+        for (int t = 0; t < tables; t++)
+        {
+            out.write(t);
+            for (int k = 0; k < 64; k++)
+            {
+                out.write(quant[t][JpegParser.ZIGZAG[k]]);
+            }
+        }
+
+        writeMarker(JpegParser.SOF0);
+        writeUInt16(8 + 3 * components);
+        out.write(8);
+        writeUInt16(height);
+        writeUInt16(width);
+        out.write(components);
+        for (int c = 0; c < components; c++)
+        {
+            out.write(c + 1);
+            out.write((c == 0 && components == 3) ? 0x22 : 0x11);
+            out.write((c == 0) ? 0 : 1);
+        }
+
+        writeMarker(JpegParser.DHT);
+        writeUInt16(2 + tables * (2 * 17) + tableValues(tables));
+        writeHuffmanTable(0x00, JPEGHuffmanTable.StdDCLuminance);
+        writeHuffmanTable(0x10, JPEGHuffmanTable.StdACLuminance);
+        if (tables == 2)
+        {
+            writeHuffmanTable(0x01, JPEGHuffmanTable.StdDCChrominance);
+            writeHuffmanTable(0x11, JPEGHuffmanTable.StdACChrominance);
+        }
+
+        writeMarker(JpegParser.SOS);
+        writeUInt16(6 + 2 * components);
+        out.write(components);
+        for (int c = 0; c < components; c++)
+        {
+            out.write(c + 1);
+            out.write((c == 0) ? 0x00 : 0x11);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private static int tableValues(int tables)
+    {
+        int n = JPEGHuffmanTable.StdDCLuminance.getValues().length + JPEGHuffmanTable.StdACLuminance.getValues().length;
+        if (tables == 2)
+        {
+            n += JPEGHuffmanTable.StdDCChrominance.getValues().length + JPEGHuffmanTable.StdACChrominance.getValues().length;
+        }
+        return n;
+    }
+
+    private void writeHuffmanTable(int id, JPEGHuffmanTable table) throws IOException
+    {
+        out.write(id);
+        for (short length : table.getLengths())
+        {
+            out.write(length);
+        }
+        for (short value : table.getValues())
+        {
+            out.write(value);
+        }
+    }
+
+    private void writeMarker(int marker) throws IOException
+    {
+        out.write(0xff);
+        out.write(marker);
+    }
+
+    private void writeUInt16(int v) throws IOException
+    {
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    /**
+     * Adds the next row: width gray values or width RGB triples.
+     */
+    public void writeRow(byte[] row) throws IOException
+    {
+        int offset = rowsBuffered * paddedWidth;
+        for (int x = 0; x < paddedWidth; x++)
+        {
+            int p = Math.min(x, width - 1) * components;
+            if (components == 1)
+            {
+                planes[0][offset + x] = (row[p] & 0xff) - 128;
+            }
+            else
+            {
+                int r = row[p] & 0xff;
+                int g = row[p + 1] & 0xff;
+                int b = row[p + 2] & 0xff;
+                planes[0][offset + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+                planes[1][offset + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                planes[2][offset + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+        }
+        rowsBuffered++;
+        rowsWritten++;
+
+        if (rowsBuffered == mcuSize)
+        {
+            encodeMcuRow();
+        }
+    }
+
+    /**
+     * Encodes the last, partial MCU row and writes the end marker.
+     */
+    public void finish() throws IOException
+    {
+        if (rowsWritten != height)
+        {
+            throw new IOException("jpeg encoder got " + rowsWritten + " rows instead of " + height);
+        }
+        if (rowsBuffered > 0)
+        {
+            // repeat the last row to fill the MCU
+            for (int c = 0; c < components; c++)
+            {
+                for (int y = rowsBuffered; y < mcuSize; y++)
+                {
+                    System.arraycopy(planes[c], (rowsBuffered - 1) * paddedWidth, planes[c], y * paddedWidth, paddedWidth);
+                }
+            }
+            encodeMcuRow();
+        }
+        bits.flush();
+        writeMarker(JpegParser.EOI);
+        out.flush();
+    }
+
+    private void encodeMcuRow() throws IOException
+    {
+        for (int mx = 0; mx < paddedWidth; mx += mcuSize)
+        {
+            if (components == 1)
+            {
+                encodeBlock(planes[0], mx, 0, 1, 0, 0);
+            }
+            else
+            {
+                encodeBlock(planes[0], mx, 0, 1, 0, 0);
+                encodeBlock(planes[0], mx + 8, 0, 1, 0, 0);
+                encodeBlock(planes[0], mx, 8, 1, 0, 0);
+                encodeBlock(planes[0], mx + 8, 8, 1, 0, 0);
+                encodeBlock(planes[1], mx, 0, 2, 1, 1);
+                encodeBlock(planes[2], mx, 0, 2, 1, 2);
+            }
+        }
+        rowsBuffered = 0;
+    }
+
+    /**
+     * Transforms, quantizes and writes one block. With step 2, the block
+     * covers 16x16 pixels of the plane, averaged 2x2.
+     */
+    private void encodeBlock(float[] plane, int x0, int y0, int step, int table, int component) throws IOException
+    {
+        for (int y = 0; y < 8; y++)
+        {
+            for (int x = 0; x < 8; x++)
+            {
+                int p = (y0 + y * step) * paddedWidth + x0 + x * step;
+                float v = plane[p];
+                if (step == 2)
+                {
+                    v = (v + plane[p + 1] + plane[p + paddedWidth] + plane[p + paddedWidth + 1]) * 0.25f;
+                }
+                block[y * 8 + x] = v;
+            }
+        }
+
+        // rows, then columns: F(u, v) = sum_x sum_y T[u][x] T[v][y] f(x, y)
+        for (int y = 0; y < 8; y++)
+        {
+            for (int u = 0; u < 8; u++)
+            {
+                float sum = 0;
+                for (int x = 0; x < 8; x++)
+                {
+                    sum += COS[u * 8 + x] * block[y * 8 + x];
+                }
+                temp[y * 8 + u] = sum;
+            }
+        }
+        for (int v = 0; v < 8; v++)
+        {
+            for (int u = 0; u < 8; u++)
+            {
+                float sum = 0;
+                for (int y = 0; y < 8; y++)
+                {
+                    sum += COS[v * 8 + y] * temp[y * 8 + u];
+                }
+                block[v * 8 + u] = sum;
+            }
+        }
+
+        for (int k = 0; k < 64; k++)
+        {
+            int v = Math.round(block[JpegParser.ZIGZAG[k]] / divisors[table][k]);
+            int limit = (k == 0) ? 2047 : 1023;
+            zz[k] = (v < -limit) ? -limit : (v > limit) ? limit : v;
+        }
+
+        int diff = zz[0] - pred[component];
+        pred[component] = zz[0];
+        bits.encodeBlock(zz, diff, dcCodes[table], acCodes[table]);
+    }
+
+    /**
+     * Huffman coded output with 0xff byte stuffing.
+     */
+    static class BitWriter
+    {
+        private final OutputStream out;
+        private int buffer;
+        private int count;
+
+        BitWriter(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        void writeBits(int value, int length) throws IOException
+        {
+            buffer = (buffer << length) | (value & ((1 << length) - 1));
+            count += length;
+            while (count >= 8)
+            {
+                int b = (buffer >> (count - 8)) & 0xff;
+                out.write(b);
+                if (b == 0xff)
+                {
+                    out.write(0);
+                }
+                count -= 8;
+            }
+        }
+
+        void writeCode(int[][] codes, int symbol) throws IOException
+        {
+            int[] code = codes[symbol];
+            writeBits(code[0], code[1]);
+        }
+
+        /**
+         * Writes a block: the DC difference and the AC coefficients in zigzag order.
+         */
+        void encodeBlock(int[] zz, int diff, int[][] dc, int[][] ac) throws IOException
+        {
+            int size = bitLength(diff);
+            writeCode(dc, size);
+            if (size > 0)
+            {
+                writeBits((diff < 0) ? diff - 1 : diff, size);
+            }
+
+            int run = 0;
+            for (int k = 1; k < 64; k++)
+            {
+                int v = zz[k];
+                if (v == 0)
+                {
+                    run++;
+                    continue;
+                }
+                while (run > 15)
+                {
+                    writeCode(ac, 0xf0);
+                    run -= 16;
+                }
+                size = bitLength(v);
+                writeCode(ac, (run << 4) | size);
+                writeBits((v < 0) ? v - 1 : v, size);
+                run = 0;
+            }
+            if (run > 0)
+            {
+                writeCode(ac, 0x00);
+            }
+        }
+
+        /**
+         * Pads the last byte with one bits.
+         */
+        void flush() throws IOException
+        {
+            if (count > 0)
+            {
+                writeBits(0x7f, 8 - count);
+            }
+        }
+
+        static int bitLength(int v)
+        {
+            v = Math.abs(v);
+            return 32 - Integer.numberOfLeadingZeros(v);
+        }
+    }
+}
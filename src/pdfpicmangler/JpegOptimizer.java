@@ -0,0 +1,727 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Rewrites a baseline jpeg with huffman tables made for its own data, without
+ * touching the quantized coefficients, so the image stays exactly the same.
+ *
+ * The tables are built from symbol counts as in Annex K.2 of the standard.
+ * Sequential output takes two passes over the entropy coded input, one to
+ * count and one to write, and holds nothing but the input bytes. Progressive
+ * output (spectral selection: DC first, then the low and the high AC bands
+ * of luma, then the chroma AC) needs all coefficients in memory, two bytes
+ * each, because every scan runs over the whole image.
+ *
+ * Application segments and comments are dropped, except for the Adobe
+ * segment, which tells how to interpret the colors. Restart markers are
+ * dropped as well.
+ */
+public class JpegOptimizer
+{
+    /** the tables: DC of the first component, DC of the others, then the same for AC */
+    private static final int DC0 = 0, DC1 = 1, AC0 = 2, AC1 = 3;
+
+    private final boolean progressive;
+
+    public JpegOptimizer(boolean progressive)
+    {
+        this.progressive = progressive;
+    }
+
+    /**
+     * @return the rewritten jpeg
+     * @throws IOException if the data is not a jpeg that can be rewritten
+     *         (progressive, 12 bit, several scans) or is damaged
+     */
+    public byte[] optimize(byte[] jpeg) throws IOException
+    {
+        JpegParser header = new JpegParser(new ByteArrayInputStream(jpeg));
+        header.checkBaseline();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        if (progressive)
+        {
+            writeProgressive(jpeg, out);
+        }
+        else
+        {
+            writeSequential(jpeg, out);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeSequential(byte[] jpeg, ByteArrayOutputStream out) throws IOException
+    {
+        Counter counter = new Counter();
+        encodeSequential(new JpegParser(new ByteArrayInputStream(jpeg)), counter);
+        int[][][] tables = counter.tables();
+
+        JpegParser parser = new JpegParser(new ByteArrayInputStream(jpeg));
+        writeFrame(parser, out, false);
+        writeHuffmanTables(out, tables, parser.components.length > 1);
+        writeScanHeader(out, parser, parser.scan, 0, 63);
+
+        Writer writer = new Writer(out, tables);
+        encodeSequential(parser, writer);
+        writer.flush();
+        writeMarker(out, JpegParser.EOI);
+    }
+
+    private static void encodeSequential(JpegParser parser, Sink sink) throws IOException
+    {
+        int[] tables = tableIndices(parser, parser.scan);
+        int[][][] blocks = newMcu(parser);
+        int[] pred = new int[parser.scan.length];
+
+        for (int my = 0; my < parser.mcusPerColumn; my++)
+        {
+            for (int mx = 0; mx < parser.mcusPerLine; mx++)
+            {
+                parser.decodeMcu(blocks);
+                for (int i = 0; i < blocks.length; i++)
+                {
+                    for (int[] zz : blocks[i])
+                    {
+                        encodeDc(zz[0] - pred[i], DC0 + tables[i], sink);
+                        pred[i] = zz[0];
+                        encodeAc(zz, 1, 63, AC0 + tables[i], sink, null);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeProgressive(byte[] jpeg, ByteArrayOutputStream out) throws IOException
+    {
+        JpegParser parser = new JpegParser(new ByteArrayInputStream(jpeg));
+        Coefficients coefficients = new Coefficients(parser);
+
+        writeFrame(parser, out, true);
+        JpegParser.Component[] components = parser.components;
+
+        // all DC coefficients first, interleaved unless there is only one component
+        Counter counter = new Counter();
+        encodeProgressiveDc(parser, coefficients, counter);
+        int[][][] tables = counter.tables();
+        writeHuffmanTables(out, tables, components.length > 1, true, false);
+        writeScanHeader(out, parser, components, 0, 0);
+        Writer writer = new Writer(out, tables);
+        encodeProgressiveDc(parser, coefficients, writer);
+        writer.flush();
+
+        for (int c = 0; c < components.length; c++)
+        {
+            int[][] bands = (c == 0) ? new int[][] { { 1, 5 }, { 6, 63 } } : new int[][] { { 1, 63 } };
+            for (int[] band : bands)
+            {
+                counter = new Counter();
+                encodeProgressiveAc(parser, coefficients, c, band[0], band[1], counter);
+                tables = counter.tables();
+                writeHuffmanTables(out, tables, false, false, true);
+                writeScanHeader(out, parser, new JpegParser.Component[] { components[c] }, band[0], band[1]);
+                writer = new Writer(out, tables);
+                encodeProgressiveAc(parser, coefficients, c, band[0], band[1], writer);
+                writer.flush();
+            }
+        }
+        writeMarker(out, JpegParser.EOI);
+    }
+
+    private static void encodeProgressiveDc(JpegParser parser, Coefficients coefficients, Sink sink)
+            throws IOException
+    {
+        JpegParser.Component[] components = parser.components;
+        int[] pred = new int[components.length];
+        if (components.length == 1)
+        {
+            for (int by = 0; by < coefficients.blocksHigh(0); by++)
+            {
+                for (int bx = 0; bx < coefficients.blocksWide(0); bx++)
+                {
+                    int dc = coefficients.data[0][coefficients.offset(0, bx, by)];
+                    encodeDc(dc - pred[0], DC0, sink);
+                    pred[0] = dc;
+                }
+            }
+            return;
+        }
+
+        int mcusPerLine = JpegParser.ceilDiv(parser.width, 8 * parser.maxH);
+        int mcusPerColumn = JpegParser.ceilDiv(parser.height, 8 * parser.maxV);
+        for (int my = 0; my < mcusPerColumn; my++)
+        {
+            for (int mx = 0; mx < mcusPerLine; mx++)
+            {
+                for (int c = 0; c < components.length; c++)
+                {
+                    JpegParser.Component component = components[c];
+                    for (int j = 0; j < component.h * component.v; j++)
+                    {
+                        int bx = mx * component.h + j % component.h;
+                        int by = my * component.v + j / component.h;
+                        int dc = coefficients.data[c][coefficients.offset(c, bx, by)];
+                        encodeDc(dc - pred[c], (c == 0) ? DC0 : DC1, sink);
+                        pred[c] = dc;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void encodeProgressiveAc(JpegParser parser, Coefficients coefficients, int c, int ss, int se,
+            Sink sink) throws IOException
+    {
+        int[] eobRun = new int[1];
+        int[] zz = new int[64];
+        short[] data = coefficients.data[c];
+        for (int by = 0; by < coefficients.blocksHigh(c); by++)
+        {
+            for (int bx = 0; bx < coefficients.blocksWide(c); bx++)
+            {
+                int offset = coefficients.offset(c, bx, by);
+                for (int k = ss; k <= se; k++)
+                {
+                    zz[k] = data[offset + k];
+                }
+                encodeAc(zz, ss, se, AC0, sink, eobRun);
+            }
+        }
+        flushEobRun(AC0, sink, eobRun);
+    }
+
+    /**
+     * The quantized coefficients of all blocks of all components, in zigzag order.
+     */
+    private static class Coefficients
+    {
+        final JpegParser parser;
+        final short[][] data;
+        final int[] gridWidth;
+
+        Coefficients(JpegParser parser) throws IOException
+        {
+            this.parser = parser;
+            JpegParser.Component[] components = parser.components;
+            boolean interleaved = components.length > 1;
+
+            data = new short[components.length][];
+            gridWidth = new int[components.length];
+            for (int c = 0; c < components.length; c++)
+            {
+                int h = interleaved ? components[c].h : 1;
+                int v = interleaved ? components[c].v : 1;
+                gridWidth[c] = parser.mcusPerLine * h;
+                data[c] = new short[gridWidth[c] * parser.mcusPerColumn * v * 64];
+            }
+
+            int[] index = scanToFrame(parser, parser.scan);
+            int[][][] blocks = newMcu(parser);
+            for (int my = 0; my < parser.mcusPerColumn; my++)
+            {
+                for (int mx = 0; mx < parser.mcusPerLine; mx++)
+                {
+                    parser.decodeMcu(blocks);
+                    for (int i = 0; i < blocks.length; i++)
+                    {
+                        JpegParser.Component component = parser.scan[i];
+                        int c = index[i];
+                        for (int j = 0; j < blocks[i].length; j++)
+                        {
+                            int bx = mx * component.mcuWidth + j % component.mcuWidth;
+                            int by = my * component.mcuHeight + j / component.mcuWidth;
+                            int offset = offset(c, bx, by);
+                            for (int k = 0; k < 64; k++)
+                            {
+                                data[c][offset + k] = (short) blocks[i][j][k];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        int offset(int c, int bx, int by)
+        {
+            return (by * gridWidth[c] + bx) * 64;
+        }
+
+        /** @return blocks per row of a scan with this component alone */
+        int blocksWide(int c)
+        {
+            JpegParser.Component component = parser.components[c];
+            return JpegParser.ceilDiv(JpegParser.ceilDiv(parser.width * component.h, parser.maxH), 8);
+        }
+
+        int blocksHigh(int c)
+        {
+            JpegParser.Component component = parser.components[c];
+            return JpegParser.ceilDiv(JpegParser.ceilDiv(parser.height * component.v, parser.maxV), 8);
+        }
+    }
+
+    private static void encodeDc(int diff, int table, Sink sink) throws IOException
+    {
+        int size = JpegEncoder.BitWriter.bitLength(diff);
+        sink.symbol(table, size);
+        if (size > 0)
+        {
+            sink.bits((diff < 0) ? diff - 1 : diff, size);
+        }
+    }
+
+    /**
+     * Codes coefficients ss to se of a block. Without eobRun (sequential)
+     * every block ends with its own EOB, with it (progressive) runs of empty
+     * blocks are counted and coded together.
+     */
+    private static void encodeAc(int[] zz, int ss, int se, int table, Sink sink, int[] eobRun) throws IOException
+    {
+        int run = 0;
+        for (int k = ss; k <= se; k++)
+        {
+            int v = zz[k];
+            if (v == 0)
+            {
+                run++;
+                continue;
+            }
+            if (eobRun != null)
+            {
+                flushEobRun(table, sink, eobRun);
+            }
+            while (run > 15)
+            {
+                sink.symbol(table, 0xf0);
+                run -= 16;
+            }
+            int size = JpegEncoder.BitWriter.bitLength(v);
+            sink.symbol(table, (run << 4) | size);
+            sink.bits((v < 0) ? v - 1 : v, size);
+            run = 0;
+        }
+
+        if (run > 0)
+        {
+            if (eobRun == null)
+            {
+                sink.symbol(table, 0x00);
+            }
+            else if (++eobRun[0] == 0x7fff)
+            {
+                flushEobRun(table, sink, eobRun);
+            }
+        }
+    }
+
+    private static void flushEobRun(int table, Sink sink, int[] eobRun) throws IOException
+    {
+        if (eobRun[0] == 0)
+        {
+            return;
+        }
+        int bits = JpegEncoder.BitWriter.bitLength(eobRun[0]) - 1;
+        sink.symbol(table, bits << 4);
+        if (bits > 0)
+        {
+            sink.bits(eobRun[0], bits);
+        }
+        eobRun[0] = 0;
+    }
+
+    /**
+     * Receives the huffman symbols and the extra bits that follow them.
+     */
+    private abstract static class Sink
+    {
+        abstract void symbol(int table, int symbol) throws IOException;
+
+        abstract void bits(int value, int length) throws IOException;
+    }
+
+    private static class Counter extends Sink
+    {
+        final long[][] frequencies = new long[4][257];
+
+        void symbol(int table, int symbol)
+        {
+            frequencies[table][symbol]++;
+        }
+
+        void bits(int value, int length)
+        {
+        }
+
+        /**
+         * @return { bits, values } of the four tables
+         */
+        int[][][] tables()
+        {
+            int[][][] tables = new int[4][][];
+            for (int t = 0; t < 4; t++)
+            {
+                tables[t] = optimalTable(frequencies[t]);
+            }
+            return tables;
+        }
+    }
+
+    private static class Writer extends Sink
+    {
+        final JpegEncoder.BitWriter writer;
+        final int[][][] codes = new int[4][][];
+
+        Writer(OutputStream out, int[][][] tables)
+        {
+            writer = new JpegEncoder.BitWriter(out);
+            for (int t = 0; t < 4; t++)
+            {
+                codes[t] = JpegEncoder.buildCodes(tables[t][0], tables[t][1]);
+            }
+        }
+
+        void symbol(int table, int symbol) throws IOException
+        {
+            writer.writeCode(codes[table], symbol);
+        }
+
+        void bits(int value, int length) throws IOException
+        {
+            writer.writeBits(value, length);
+        }
+
+        void flush() throws IOException
+        {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Builds a huffman table with codes of at most 16 bits from symbol
+     * frequencies, the procedure of Annex K.2 (as in the IJG library).
+     *
+     * @return { bits (index 1..16), values }
+     */
+    static int[][] optimalTable(long[] counts)
+    {
+        long[] freq = new long[257];
+        System.arraycopy(counts, 0, freq, 0, 256);
+        boolean empty = true;
+        for (int i = 0; i < 256; i++)
+        {
+            empty &= (freq[i] == 0);
+        }
+        if (empty)
+        {
+            // an unused table still needs one code
+            freq[0] = 1;
+        }
+        // reserves one code point, so that no code consists of 1 bits only
+        freq[256] = 1;
+
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+
+        while (true)
+        {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++)
+            {
+                if (freq[i] != 0 && freq[i] <= v)
+                {
+                    v = freq[i];
+                    c1 = i;
+                }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++)
+            {
+                if (freq[i] != 0 && freq[i] <= v && i != c1)
+                {
+                    v = freq[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0)
+            {
+                break;
+            }
+
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+
+            codeSize[c1]++;
+            while (others[c1] >= 0)
+            {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+
+            codeSize[c2]++;
+            while (others[c2] >= 0)
+            {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] bits = new int[33];
+        for (int i = 0; i <= 256; i++)
+        {
+            if (codeSize[i] > 0)
+            {
+                bits[codeSize[i]]++;
+            }
+        }
+
+        // move codes longer than 16 bits up the tree
+        for (int i = 32; i > 16; i--)
+        {
+            while (bits[i] > 0)
+            {
+                int j = i - 2;
+                while (bits[j] == 0)
+                {
+                    j--;
+                }
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+
+        // remove the reserved code from the longest codes
+        int i = 16;
+        while (bits[i] == 0)
+        {
+            i--;
+        }
+        bits[i]--;
+
+        int[] result = new int[17];
+        System.arraycopy(bits, 0, result, 0, 17);
+        int count = 0;
+        for (int len = 1; len <= 16; len++)
+        {
+            count += result[len];
+        }
+        int[] values = new int[count];
+        int k = 0;
+        for (int len = 1; len <= 32; len++)
+        {
+            for (int symbol = 0; symbol < 256; symbol++)
+            {
+                if (codeSize[symbol] == len)
+                {
+                    values[k++] = symbol;
+                }
+            }
+        }
+        return new int[][] { result, values };
+    }
+
+    /**
+     * Writes SOI, the Adobe segment (if there was one), the quantization
+     * tables and the frame header.
+     */
+    private static void writeFrame(JpegParser parser, ByteArrayOutputStream out, boolean progressive)
+    {
+        writeMarker(out, JpegParser.SOI);
+
+        if (parser.adobeTransform >= 0)
+        {
+            writeMarker(out, JpegParser.APP14);
+            writeUInt16(out, 14);
+            out.write('A');
+            out.write('d');
+            out.write('o');
+            out.write('b');
+            out.write('e');
+            writeUInt16(out, 100);
+            writeUInt16(out, 0);
+            writeUInt16(out, 0);
+            out.write(parser.adobeTransform);
+        }
+
+        boolean wide = false;
+        for (int t = 0; t < 4; t++)
+        {
+            int[] table = parser.quantization[t];
+            if (table == null)
+            {
+                continue;
+            }
+            boolean sixteen = false;
+            for (int q : table)
+            {
+                sixteen |= (q > 255);
+            }
+            wide |= sixteen;
+
+            writeMarker(out, JpegParser.DQT);
+            writeUInt16(out, 2 + 1 + (sixteen ? 128 : 64));
+            out.write((sixteen ? 0x10 : 0) | t);
+            for (int q : table)
+            {
+                if (sixteen)
+                {
+                    out.write(q >> 8);
+                }
+                out.write(q);
+            }
+        }
+
+        JpegParser.Component[] components = parser.components;
+        writeMarker(out, progressive ? JpegParser.SOF2 : wide ? JpegParser.SOF1 : JpegParser.SOF0);
+        writeUInt16(out, 8 + 3 * components.length);
+        out.write(8);
+        writeUInt16(out, parser.height);
+        writeUInt16(out, parser.width);
+        out.write(components.length);
+        for (JpegParser.Component c : components)
+        {
+            out.write(c.id);
+            out.write((c.h << 4) | c.v);
+            out.write(c.tq);
+        }
+    }
+
+    private static void writeHuffmanTables(ByteArrayOutputStream out, int[][][] tables, boolean two)
+    {
+        writeHuffmanTables(out, tables, two, true, true);
+    }
+
+    /**
+     * @param two true to write the tables for the other components as well
+     */
+    private static void writeHuffmanTables(ByteArrayOutputStream out, int[][][] tables, boolean two, boolean dc,
+            boolean ac)
+    {
+        int length = 2;
+        for (int t = 0; t < 4; t++)
+        {
+            if (isWritten(t, two, dc, ac))
+            {
+                length += 17 + tables[t][1].length;
+            }
+        }
+
+        writeMarker(out, JpegParser.DHT);
+        writeUInt16(out, length);
+        for (int t = 0; t < 4; t++)
+        {
+            if (!isWritten(t, two, dc, ac))
+            {
+                continue;
+            }
+            out.write(((t >= AC0) ? 0x10 : 0) | (t & 1));
+            for (int len = 1; len <= 16; len++)
+            {
+                out.write(tables[t][0][len]);
+            }
+            for (int value : tables[t][1])
+            {
+                out.write(value);
+            }
+        }
+    }
+
+    private static boolean isWritten(int table, boolean two, boolean dc, boolean ac)
+    {
+        return ((table >= AC0) ? ac : dc) && (two || (table & 1) == 0);
+    }
+
+    private static void writeScanHeader(ByteArrayOutputStream out, JpegParser parser, JpegParser.Component[] scan,
+            int ss, int se)
+    {
+        int[] tables = (scan.length == 1) ? new int[1] : tableIndices(parser, scan);
+        writeMarker(out, JpegParser.SOS);
+        writeUInt16(out, 6 + 2 * scan.length);
+        out.write(scan.length);
+        for (int i = 0; i < scan.length; i++)
+        {
+            out.write(scan[i].id);
+            out.write((tables[i] << 4) | tables[i]);
+        }
+        out.write(ss);
+        out.write(se);
+        out.write(0);
+    }
+
+    /**
+     * @return the table (0 or 1) of each scan component: 0 for the first component of the frame, 1 for the others
+     */
+    private static int[] tableIndices(JpegParser parser, JpegParser.Component[] scan)
+    {
+        int[] index = scanToFrame(parser, scan);
+        for (int i = 0; i < index.length; i++)
+        {
+            index[i] = (index[i] == 0) ? 0 : 1;
+        }
+        return index;
+    }
+
+    private static int[] scanToFrame(JpegParser parser, JpegParser.Component[] scan)
+    {
+        int[] index = new int[scan.length];
+        for (int i = 0; i < scan.length; i++)
+        {
+            for (int c = 0; c < parser.components.length; c++)
+            {
+                if (parser.components[c] == scan[i])
+                {
+                    index[i] = c;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static int[][][] newMcu(JpegParser parser)
+    {
+        int[][][] blocks = new int[parser.scan.length][][];
+        for (int i = 0; i < blocks.length; i++)
+        {
+            blocks[i] = new int[parser.scan[i].mcuWidth * parser.scan[i].mcuHeight][64];
+        }
+        return blocks;
+    }
+
+    private static void writeMarker(ByteArrayOutputStream out, int marker)
+    {
+        out.write(0xff);
+        out.write(marker);
+    }
+
+    private static void writeUInt16(ByteArrayOutputStream out, int v)
+    {
+        out.write(v >> 8);
+        out.write(v & 0xff);
+    }
+}
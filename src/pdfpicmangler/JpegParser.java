@@ -0,0 +1,590 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the headers of a baseline (sequential huffman) jpeg stream and
+ * decodes the entropy coded data into blocks of quantized DCT coefficients.
+ *
+ * Only what is needed to work on the coefficients is implemented: there is
+ * no IDCT and no color conversion here.
+ */
+public class JpegParser
+{
+    public static final int SOI = 0xd8;
+    public static final int EOI = 0xd9;
+    public static final int SOS = 0xda;
+    public static final int DQT = 0xdb;
+    public static final int DRI = 0xdd;
+    public static final int DHT = 0xc4;
+    public static final int SOF0 = 0xc0;
+    public static final int SOF1 = 0xc1;
+    public static final int SOF2 = 0xc2;
+    public static final int APP0 = 0xe0;
+    public static final int APP14 = 0xee;
+    public static final int RST0 = 0xd0;
+
+    /** natural (row major) position of the n-th coefficient in zigzag order */
+    public static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63 };
+
+    public static class Component
+    {
+        public int id;
+        public int h, v;
+        public int tq;
+        public int dcTable, acTable;
+
+        /** blocks of this component in one MCU, horizontally and vertically */
+        public int mcuWidth, mcuHeight;
+
+        int pred;
+    }
+
+    public static class HuffmanTable
+    {
+        public final int[] bits = new int[17];
+        public final int[] values;
+
+        private final int[] lookup = new int[1 << LOOKAHEAD];
+        private final int[] maxCode = new int[18];
+        private final int[] valPtr = new int[17];
+
+        static final int LOOKAHEAD = 9;
+
+        public HuffmanTable(int[] bits, int[] values)
+        {
+            System.arraycopy(bits, 0, this.bits, 0, 17);
+            this.values = values;
+
+            Arrays.fill(lookup, 0);
+            int code = 0;
+            int k = 0;
+            for (int len = 1; len <= 16; len++)
+            {
+                valPtr[len] = k - code;
+                for (int i = 0; i < bits[len]; i++, k++, code++)
+                {
+                    if (len <= LOOKAHEAD)
+                    {
+                        int shift = LOOKAHEAD - len;
+                        for (int j = 0; j < (1 << shift); j++)
+                        {
+                            lookup[(code << shift) | j] = (len << 8) | values[k];
+                        }
+                    }
+                }
+                maxCode[len] = (bits[len] > 0) ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private final InputStream in;
+
+    public int precision;
+    public int width, height;
+    public Component[] components;
+    public final int[][] quantization = new int[4][];
+    public final HuffmanTable[] dcTables = new HuffmanTable[4];
+    public final HuffmanTable[] acTables = new HuffmanTable[4];
+    public int restartInterval;
+    /** color transform from the Adobe APP14 segment, -1 if there is none */
+    public int adobeTransform = -1;
+    public boolean progressive;
+
+    public Component[] scan;
+    public int maxH, maxV;
+    public int mcusPerLine, mcusPerColumn;
+
+    private int bitBuffer;
+    private int bitCount;
+    private int marker = -1;
+    private int mcusToRestart;
+
+    public JpegParser(InputStream in) throws IOException
+    {
+        this.in = (in instanceof BufferedInputStream) ? in : new BufferedInputStream(in, 65536);
+
+        if (readByte() != 0xff || readByte() != SOI)
+        {
+            throw new IOException("jpeg SOI marker not found.");
+        }
+        readHeaders();
+    }
+
+    /**
+     * Reads segments up to and including the next start of scan.
+     */
+    private void readHeaders() throws IOException
+    {
+        while (true)
+        {
+            int m = readMarker();
+            if (m == SOS)
+            {
+                readScanHeader();
+                return;
+            }
+            if (m == EOI)
+            {
+                throw new IOException("jpeg stream without image data.");
+            }
+
+            int length = readUInt16() - 2;
+            if (m == SOF0 || m == SOF1 || m == SOF2)
+            {
+                progressive = (m == SOF2);
+                readFrameHeader();
+            }
+            else if (m >= 0xc3 && m <= 0xcf && m != DHT && m != 0xc8 && m != 0xcc)
+            {
+                throw new IOException("unsupported jpeg type: SOF" + (m - 0xc0));
+            }
+            else if (m == DHT)
+            {
+                readHuffmanTables(length);
+            }
+            else if (m == DQT)
+            {
+                readQuantizationTables(length);
+            }
+            else if (m == DRI)
+            {
+                restartInterval = readUInt16();
+            }
+            else if (m == APP14 && length >= 12)
+            {
+                byte[] data = readBytes(length);
+                if (data[0] == 'A' && data[1] == 'd' && data[2] == 'o' && data[3] == 'b' && data[4] == 'e')
+                {
+                    adobeTransform = data[11] & 0xff;
+                }
+            }
+            else
+            {
+                skip(length);
+            }
+        }
+    }
+
+    private void readFrameHeader() throws IOException
+    {
+        precision = readByte();
+        height = readUInt16();
+        width = readUInt16();
+        int count = readByte();
+
+        if (height == 0)
+        {
+            throw new IOException("jpeg with DNL marker is not supported.");
+        }
+
+        components = new Component[count];
+        maxH = maxV = 1;
+        for (int i = 0; i < count; i++)
+        {
+            Component c = new Component();
+            c.id = readByte();
+            int hv = readByte();
+            c.h = hv >> 4;
+            c.v = hv & 15;
+            c.tq = readByte();
+            components[i] = c;
+            maxH = Math.max(maxH, c.h);
+            maxV = Math.max(maxV, c.v);
+        }
+    }
+
+    private void readHuffmanTables(int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int tc = readByte();
+            int[] bits = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++)
+            {
+                bits[i] = readByte();
+                total += bits[i];
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++)
+            {
+                values[i] = readByte();
+            }
+
+            HuffmanTable table = new HuffmanTable(bits, values);
+            if ((tc >> 4) == 0)
+            {
+                dcTables[tc & 3] = table;
+            }
+            else
+            {
+                acTables[tc & 3] = table;
+            }
+            length -= 17 + total;
+        }
+    }
+
+    private void readQuantizationTables(int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int pq = readByte();
+            int[] table = new int[64];
+            for (int i = 0; i < 64; i++)
+            {
+                table[i] = ((pq >> 4) == 0) ? readByte() : readUInt16();
+            }
+            quantization[pq & 3] = table;
+            length -= 1 + (((pq >> 4) == 0) ? 64 : 128);
+        }
+    }
+
+    private void readScanHeader() throws IOException
+    {
+        readUInt16();
+        int count = readByte();
+        scan = new Component[count];
+        for (int i = 0; i < count; i++)
+        {
+            int id = readByte();
+            int tables = readByte();
+            for (Component c : components)
+            {
+                if (c.id == id)
+                {
+                    scan[i] = c;
+                }
+            }
+            if (scan[i] == null)
+            {
+                throw new IOException("jpeg scan refers to unknown component " + id);
+            }
+            scan[i].dcTable = tables >> 4;
+            scan[i].acTable = tables & 15;
+        }
+        // spectral selection and successive approximation, fixed for baseline
+        readByte();
+        readByte();
+        readByte();
+
+        if (count == 1)
+        {
+            // non-interleaved: one block per MCU, covering the component only
+            Component c = scan[0];
+            c.mcuWidth = c.mcuHeight = 1;
+            mcusPerLine = (ceilDiv(width * c.h, maxH) + 7) / 8;
+            mcusPerColumn = (ceilDiv(height * c.v, maxV) + 7) / 8;
+        }
+        else
+        {
+            for (Component c : scan)
+            {
+                c.mcuWidth = c.h;
+                c.mcuHeight = c.v;
+            }
+            mcusPerLine = ceilDiv(width, 8 * maxH);
+            mcusPerColumn = ceilDiv(height, 8 * maxV);
+        }
+
+        for (Component c : scan)
+        {
+            c.pred = 0;
+        }
+        bitBuffer = 0;
+        bitCount = 0;
+        marker = -1;
+        mcusToRestart = restartInterval;
+    }
+
+    /**
+     * Checks that the stream is a single scan, 8 bit baseline jpeg, the
+     * only kind the entropy decoder handles.
+     */
+    public void checkBaseline() throws IOException
+    {
+        if (progressive)
+        {
+            throw new IOException("progressive jpeg is not supported.");
+        }
+        if (precision != 8)
+        {
+            throw new IOException(precision + " bit jpeg is not supported.");
+        }
+        if (scan.length != components.length)
+        {
+            throw new IOException("jpeg with more than one scan is not supported.");
+        }
+        for (Component c : components)
+        {
+            if (quantization[c.tq] == null || dcTables[c.dcTable] == null || acTables[c.acTable] == null)
+            {
+                throw new IOException("jpeg table missing.");
+            }
+        }
+    }
+
+    /**
+     * Decodes one MCU. blocks[i][j] receives the coefficients (in zigzag
+     * order, not dequantized) of the j-th block of the i-th scan component.
+     */
+    public void decodeMcu(int[][][] blocks) throws IOException
+    {
+        if (restartInterval > 0)
+        {
+            if (mcusToRestart == 0)
+            {
+                restart();
+            }
+            mcusToRestart--;
+        }
+
+        for (int i = 0; i < scan.length; i++)
+        {
+            Component c = scan[i];
+            int count = c.mcuWidth * c.mcuHeight;
+            for (int j = 0; j < count; j++)
+            {
+                decodeBlock(c, blocks[i][j]);
+            }
+        }
+    }
+
+    private void decodeBlock(Component c, int[] zz) throws IOException
+    {
+        Arrays.fill(zz, 0);
+
+        int t = decodeHuffman(dcTables[c.dcTable]);
+        if (t != 0)
+        {
+            c.pred += extend(getBits(t), t);
+        }
+        zz[0] = c.pred;
+
+        HuffmanTable ac = acTables[c.acTable];
+        for (int k = 1; k < 64; k++)
+        {
+            int rs = decodeHuffman(ac);
+            int r = rs >> 4;
+            int s = rs & 15;
+            if (s == 0)
+            {
+                if (r != 15)
+                {
+                    break;
+                }
+                k += 15;
+            }
+            else
+            {
+                k += r;
+                if (k > 63)
+                {
+                    throw new IOException("corrupt jpeg data.");
+                }
+                zz[k] = extend(getBits(s), s);
+            }
+        }
+    }
+
+    private void restart() throws IOException
+    {
+        bitBuffer = 0;
+        bitCount = 0;
+        if (marker == -1)
+        {
+            // the restart marker has not been read ahead yet
+            int b = in.read();
+            while (b != -1)
+            {
+                if (b == 0xff)
+                {
+                    b = in.read();
+                    if (b != 0 && b != 0xff)
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                b = in.read();
+            }
+        }
+        marker = -1;
+        for (Component c : scan)
+        {
+            c.pred = 0;
+        }
+        mcusToRestart = restartInterval;
+    }
+
+    private static int extend(int v, int t)
+    {
+        return (v < (1 << (t - 1))) ? v - (1 << t) + 1 : v;
+    }
+
+    private void fill() throws IOException
+    {
+        while (bitCount <= 24)
+        {
+            int b = 0;
+            if (marker == -1)
+            {
+                b = in.read();
+                if (b == 0xff)
+                {
+                    int b2 = in.read();
+                    while (b2 == 0xff)
+                    {
+                        b2 = in.read();
+                    }
+                    if (b2 != 0)
+                    {
+                        // a marker: feed zeros until the caller deals with it
+                        marker = b2;
+                        b = 0;
+                    }
+                }
+                else if (b < 0)
+                {
+                    marker = EOI;
+                    b = 0;
+                }
+            }
+            bitBuffer |= b << (24 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    private int getBits(int n) throws IOException
+    {
+        if (n == 0)
+        {
+            return 0;
+        }
+        if (bitCount < n)
+        {
+            fill();
+        }
+        int v = bitBuffer >>> (32 - n);
+        bitBuffer <<= n;
+        bitCount -= n;
+        return v;
+    }
+
+    private int decodeHuffman(HuffmanTable table) throws IOException
+    {
+        if (bitCount < 16)
+        {
+            fill();
+        }
+
+        int entry = table.lookup[bitBuffer >>> (32 - HuffmanTable.LOOKAHEAD)];
+        int len = entry >> 8;
+        if (len != 0)
+        {
+            bitBuffer <<= len;
+            bitCount -= len;
+            return entry & 0xff;
+        }
+
+        for (len = HuffmanTable.LOOKAHEAD + 1; len <= 16; len++)
+        {
+            int code = bitBuffer >>> (32 - len);
+            if (code <= table.maxCode[len])
+            {
+                bitBuffer <<= len;
+                bitCount -= len;
+                return table.values[table.valPtr[len] + code];
+            }
+        }
+        throw new IOException("corrupt jpeg data: bad huffman code.");
+    }
+
+    private int readMarker() throws IOException
+    {
+        int b = readByte();
+        if (b != 0xff)
+        {
+            throw new IOException("jpeg marker expected.");
+        }
+        while (b == 0xff)
+        {
+            b = readByte();
+        }
+        return b;
+    }
+
+    private int readByte() throws IOException
+    {
+        int b = in.read();
+        if (b < 0)
+        {
+            throw new IOException("unexpected end of jpeg stream.");
+        }
+        return b;
+    }
+
+    private int readUInt16() throws IOException
+    {
+        return (readByte() << 8) | readByte();
+    }
+
+    private byte[] readBytes(int length) throws IOException
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) readByte();
+        }
+        return data;
+    }
+
+    private void skip(int length) throws IOException
+    {
+        while (length > 0)
+        {
+            long skipped = in.skip(length);
+            if (skipped <= 0)
+            {
+                readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    static int ceilDiv(int a, int b)
+    {
+        return (a + b - 1) / b;
+    }
+}
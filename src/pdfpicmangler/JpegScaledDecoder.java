@@ -0,0 +1,320 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a baseline jpeg at 1/1, 1/2, 1/4 or 1/8 of its size.
+ *
+ * The reduced sizes only use the low frequency DCT coefficients of each
+ * 8x8 block with a 4x4, 2x2 or 1x1 inverse DCT (at 1/8 that is just the DC
+ * value), so the full size image is never computed. Chroma is upsampled by
+ * pixel replication.
+ */
+public class JpegScaledDecoder implements RowSource
+{
+    private final JpegParser jpeg;
+    private final int blockSize;
+    private final int width, height;
+    private final int components;
+    private final boolean ycc;
+
+    private final int[][][] mcu;
+    private final byte[][] planes;
+    private final int[] planeStride;
+    private final int[][] xMap;
+    private final int mcuRowHeight;
+    private final float[] cosTable;
+    private final float[] coefficients = new float[64];
+    private final float[] temp = new float[64];
+    private final int[] rowOffset = new int[3];
+
+    private int rowInMcuRow;
+
+    /**
+     * @param scale 1, 2, 4 or 8
+     * @param colorTransform the /ColorTransform decode parameter, null if not given
+     */
+    public JpegScaledDecoder(InputStream in, int scale, Boolean colorTransform) throws IOException
+    {
+        jpeg = new JpegParser(in);
+        jpeg.checkBaseline();
+
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8)
+        {
+            throw new IllegalArgumentException("scale must be 1, 2, 4 or 8");
+        }
+
+        components = jpeg.components.length;
+        if (components != 1 && components != 3)
+        {
+            throw new IOException("jpeg with " + components + " components is not supported.");
+        }
+
+        if (colorTransform != null)
+        {
+            ycc = colorTransform.booleanValue();
+        }
+        else if (jpeg.adobeTransform >= 0)
+        {
+            ycc = jpeg.adobeTransform != 0;
+        }
+        else
+        {
+            ycc = (components == 3);
+        }
+
+        blockSize = 8 / scale;
+        width = JpegParser.ceilDiv(jpeg.width, scale);
+        height = JpegParser.ceilDiv(jpeg.height, scale);
+
+        int maxH = (components == 1) ? 1 : jpeg.maxH;
+        int maxV = (components == 1) ? 1 : jpeg.maxV;
+        mcuRowHeight = maxV * blockSize;
+        rowInMcuRow = mcuRowHeight;
+
+        mcu = new int[components][][];
+        planes = new byte[components][];
+        planeStride = new int[components];
+        xMap = new int[components][];
+        for (int i = 0; i < components; i++)
+        {
+            JpegParser.Component c = jpeg.scan[i];
+            mcu[i] = new int[c.mcuWidth * c.mcuHeight][64];
+            planeStride[i] = jpeg.mcusPerLine * c.mcuWidth * blockSize;
+            planes[i] = new byte[planeStride[i] * c.mcuHeight * blockSize];
+
+            int sx = maxH / c.mcuWidth;
+            xMap[i] = new int[width];
+            for (int x = 0; x < width; x++)
+            {
+                xMap[i][x] = x / sx;
+            }
+        }
+
+        // cosTable[x * 8 + u] = C(u) / 2 * cos((2x + 1) u pi / 2n)
+        int n = blockSize;
+        cosTable = new float[n * 8];
+        for (int x = 0; x < n; x++)
+        {
+            for (int u = 0; u < n; u++)
+            {
+                double cu = (u == 0) ? Math.sqrt(0.5) : 1.0;
+                cosTable[x * 8 + u] = (float) (cu / 2 * Math.cos((2 * x + 1) * u * Math.PI / (2 * n)));
+            }
+        }
+    }
+
+    /**
+     * @return the largest scale that still leaves an image of at least the given size.
+     */
+    public static int chooseScale(int sourceWidth, int sourceHeight, int width, int height)
+    {
+        int scale = 8;
+        while (scale > 1 && (sourceWidth / scale < width || sourceHeight / scale < height))
+        {
+            scale /= 2;
+        }
+        return scale;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return 1 for gray, 3 for RGB rows
+     */
+    public int getComponents()
+    {
+        return components;
+    }
+
+    /**
+     * Decodes the next row of pixels: width gray values or width RGB triples.
+     */
+    public void readRow(byte[] row) throws IOException
+    {
+        if (rowInMcuRow == mcuRowHeight)
+        {
+            decodeMcuRow();
+            rowInMcuRow = 0;
+        }
+
+        int maxV = (components == 1) ? 1 : jpeg.maxV;
+        if (components == 1)
+        {
+            System.arraycopy(planes[0], rowInMcuRow * planeStride[0], row, 0, width);
+        }
+        else
+        {
+            int[] offset = rowOffset;
+            for (int i = 0; i < 3; i++)
+            {
+                int y = rowInMcuRow * jpeg.scan[i].mcuHeight / maxV;
+                offset[i] = y * planeStride[i];
+            }
+            byte[] p0 = planes[0], p1 = planes[1], p2 = planes[2];
+            int[] m0 = xMap[0], m1 = xMap[1], m2 = xMap[2];
+            for (int x = 0, p = 0; x < width; x++, p += 3)
+            {
+                int a = p0[offset[0] + m0[x]] & 0xff;
+                int b = p1[offset[1] + m1[x]] & 0xff;
+                int c = p2[offset[2] + m2[x]] & 0xff;
+                if (ycc)
+                {
+                    int cb = b - 128;
+                    int cr = c - 128;
+                    row[p] = clamp(a + ((91881 * cr + 32768) >> 16));
+                    row[p + 1] = clamp(a - ((22554 * cb + 46802 * cr + 32768) >> 16));
+                    row[p + 2] = clamp(a + ((116130 * cb + 32768) >> 16));
+                }
+                else
+                {
+                    row[p] = (byte) a;
+                    row[p + 1] = (byte) b;
+                    row[p + 2] = (byte) c;
+                }
+            }
+        }
+        rowInMcuRow++;
+    }
+
+    /**
+     * Decodes the whole image into a gray or RGB buffered image.
+     */
+    public BufferedImage decode() throws IOException
+    {
+        BufferedImage image = new BufferedImage(width, height,
+                (components == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        byte[] row = new byte[width * components];
+
+        if (components == 1)
+        {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++)
+            {
+                readRow(row);
+                System.arraycopy(row, 0, data, y * width, width);
+            }
+        }
+        else
+        {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++)
+            {
+                readRow(row);
+                for (int x = 0, p = 0; x < width; x++, p += 3)
+                {
+                    data[y * width + x] = ((row[p] & 0xff) << 16) | ((row[p + 1] & 0xff) << 8) | (row[p + 2] & 0xff);
+                }
+            }
+        }
+        return image;
+    }
+
+    private void decodeMcuRow() throws IOException
+    {
+        for (int mx = 0; mx < jpeg.mcusPerLine; mx++)
+        {
+            jpeg.decodeMcu(mcu);
+            for (int i = 0; i < components; i++)
+            {
+                JpegParser.Component c = jpeg.scan[i];
+                int[] quant = jpeg.quantization[c.tq];
+                for (int by = 0; by < c.mcuHeight; by++)
+                {
+                    for (int bx = 0; bx < c.mcuWidth; bx++)
+                    {
+                        int x = (mx * c.mcuWidth + bx) * blockSize;
+                        int y = by * blockSize;
+                        idct(mcu[i][by * c.mcuWidth + bx], quant, planes[i], y * planeStride[i] + x, planeStride[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dequantizes and transforms the top left n x n coefficients of a block
+     * into n x n pixels.
+     */
+    private void idct(int[] zz, int[] quant, byte[] out, int offset, int stride)
+    {
+        int n = blockSize;
+
+        if (n == 1)
+        {
+            out[offset] = clamp(Math.round(zz[0] * quant[0] / 8.0f) + 128);
+            return;
+        }
+
+        for (int k = 0; k < 64; k++)
+        {
+            int pos = JpegParser.ZIGZAG[k];
+            if ((pos & 7) < n && (pos >> 3) < n)
+            {
+                coefficients[pos] = zz[k] * quant[k];
+            }
+        }
+
+        // rows: temp[v * 8 + x] = sum_u T[x][u] F(u, v)
+        for (int v = 0; v < n; v++)
+        {
+            for (int x = 0; x < n; x++)
+            {
+                float sum = 0;
+                for (int u = 0; u < n; u++)
+                {
+                    sum += cosTable[x * 8 + u] * coefficients[v * 8 + u];
+                }
+                temp[v * 8 + x] = sum;
+            }
+        }
+
+        // columns
+        for (int y = 0; y < n; y++)
+        {
+            for (int x = 0; x < n; x++)
+            {
+                float sum = 0;
+                for (int v = 0; v < n; v++)
+                {
+                    sum += cosTable[y * 8 + v] * temp[v * 8 + x];
+                }
+                out[offset + y * stride + x] = clamp(Math.round(sum) + 128);
+            }
+        }
+    }
+
+    private static byte clamp(int v)
+    {
+        return (byte) ((v < 0) ? 0 : (v > 255) ? 255 : v);
+    }
+}
@@ -0,0 +1,63 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+/**
+ * Progress output on the console, switched off with -quiet.
+ *
+ * Callers that build longer messages should check {@link #enabled()} first, so
+ * that a quiet run does not even assemble the strings.
+ */
+public class Log
+{
+    private static volatile boolean quiet;
+
+    public static void setQuiet(boolean quiet)
+    {
+        Log.quiet = quiet;
+    }
+
+    public static boolean enabled()
+    {
+        return !quiet;
+    }
+
+    public static void println(String line)
+    {
+        if (!quiet)
+        {
+            System.out.println(line);
+        }
+    }
+
+    public static void print(String text)
+    {
+        if (!quiet)
+        {
+            System.out.print(text);
+        }
+    }
+
+    /**
+     * Problems are printed in quiet mode as well.
+     */
+    public static void warn(String line)
+    {
+        System.err.println(line);
+    }
+}
@@ -0,0 +1,113 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings and byte counts of one document and its images.
+ *
+ * The per-image stage times are written by the worker that compresses the
+ * image and read on the main thread after the result has been collected, the
+ * rest is only touched by the thread that processes the document.
+ */
+public class Metrics
+{
+    public static final String RECOMPRESSED = "recompressed";
+    public static final String CACHED = "cached";
+    /** not resized, but losslessly rewritten */
+    public static final String OPTIMIZED = "optimized";
+    public static final String DUPLICATE = "duplicate";
+    public static final String KEPT = "kept";
+    /** resized, but the result was not smaller than the original, which is kept */
+    public static final String NOT_SMALLER = "not smaller";
+    public static final String FAILED = "failed";
+
+    public static class Image
+    {
+        public String name;
+        public int page;
+        public String format;
+        /** suffix of the recompressed image, null if it was not recompressed */
+        public String outputFormat;
+        public int sourceWidth, sourceHeight;
+        public int width, height;
+        public long inputBytes;
+        public long outputBytes;
+        public long decodeNanos;
+        public long resampleNanos;
+        public long encodeNanos;
+        /** rows were decoded, resampled and encoded together, all of it counts as encode */
+        public boolean streamed;
+        public String result;
+    }
+
+    public String file = "";
+    public long inputBytes;
+    public long outputBytes;
+    public long analyzeNanos;
+    public long processNanos;
+    public long saveNanos;
+    /** resolution and quality chosen by -maxSize, null if there was no budget */
+    public String settings;
+    /** set if the document could not be processed */
+    public String error;
+
+    private final List<Image> images = new ArrayList<Image>();
+
+    public void add(Image image)
+    {
+        images.add(image);
+    }
+
+    public List<Image> getImages()
+    {
+        return images;
+    }
+
+    public long getDecodeNanos()
+    {
+        long sum = 0;
+        for (Image image : images)
+        {
+            sum += image.decodeNanos;
+        }
+        return sum;
+    }
+
+    public long getResampleNanos()
+    {
+        long sum = 0;
+        for (Image image : images)
+        {
+            sum += image.resampleNanos;
+        }
+        return sum;
+    }
+
+    public long getEncodeNanos()
+    {
+        long sum = 0;
+        for (Image image : images)
+        {
+            sum += image.encodeNanos;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,186 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects the {@link Metrics} of all documents of a run and writes them as
+ * JSON or, if the file name ends in .csv, as CSV with one line per document
+ * and per image. Times are in milliseconds.
+ */
+public class MetricsReport
+{
+    private static final String CSV_HEADER = "level,file,image,page,format,outputFormat,sourceWidth,sourceHeight,"
+            + "width,height,inputBytes,outputBytes,analyzeMs,processMs,decodeMs,resampleMs,encodeMs,saveMs,result";
+
+    private final List<Metrics> documents = new ArrayList<Metrics>();
+
+    /**
+     * May be called from several threads in batch mode.
+     */
+    public synchronized void add(Metrics metrics)
+    {
+        documents.add(metrics);
+    }
+
+    public synchronized void write(String fileName) throws IOException
+    {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8"));
+        try
+        {
+            if (fileName.toLowerCase().endsWith(".csv"))
+            {
+                writeCsv(out);
+            }
+            else
+            {
+                writeJson(out);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writeJson(Writer out) throws IOException
+    {
+        out.write("{\n  \"documents\": [");
+        for (int d = 0; d < documents.size(); d++)
+        {
+            Metrics doc = documents.get(d);
+            out.write((d > 0) ? ",\n" : "\n");
+            out.write("    {\"file\": " + json(doc.file)
+                    + ", \"inputBytes\": " + doc.inputBytes
+                    + ", \"outputBytes\": " + doc.outputBytes
+                    + ", \"analyzeMs\": " + ms(doc.analyzeNanos)
+                    + ", \"processMs\": " + ms(doc.processNanos)
+                    + ", \"decodeMs\": " + ms(doc.getDecodeNanos())
+                    + ", \"resampleMs\": " + ms(doc.getResampleNanos())
+                    + ", \"encodeMs\": " + ms(doc.getEncodeNanos())
+                    + ", \"saveMs\": " + ms(doc.saveNanos));
+            if (doc.settings != null)
+            {
+                out.write(", \"settings\": " + json(doc.settings));
+            }
+            if (doc.error != null)
+            {
+                out.write(", \"error\": " + json(doc.error));
+            }
+            out.write(",\n     \"images\": [");
+
+            List<Metrics.Image> images = doc.getImages();
+            for (int i = 0; i < images.size(); i++)
+            {
+                Metrics.Image image = images.get(i);
+                out.write((i > 0) ? ",\n" : "\n");
+                out.write("      {\"name\": " + json(image.name)
+                        + ", \"page\": " + image.page
+                        + ", \"format\": " + json(image.format)
+                        + ", \"outputFormat\": " + json(image.outputFormat)
+                        + ", \"sourceWidth\": " + image.sourceWidth
+                        + ", \"sourceHeight\": " + image.sourceHeight
+                        + ", \"width\": " + image.width
+                        + ", \"height\": " + image.height
+                        + ", \"inputBytes\": " + image.inputBytes
+                        + ", \"outputBytes\": " + image.outputBytes
+                        + ", \"decodeMs\": " + ms(image.decodeNanos)
+                        + ", \"resampleMs\": " + ms(image.resampleNanos)
+                        + ", \"encodeMs\": " + ms(image.encodeNanos)
+                        + ", \"streamed\": " + image.streamed
+                        + ", \"result\": " + json(image.result) + "}");
+            }
+            out.write(images.isEmpty() ? "]}" : "\n     ]}");
+        }
+        out.write(documents.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+    }
+
+    private void writeCsv(Writer out) throws IOException
+    {
+        out.write(CSV_HEADER + "\n");
+        for (Metrics doc : documents)
+        {
+            out.write("document," + csv(doc.file) + ",,,,,,,,," + doc.inputBytes + "," + doc.outputBytes + ","
+                    + ms(doc.analyzeNanos) + "," + ms(doc.processNanos) + "," + ms(doc.getDecodeNanos()) + ","
+                    + ms(doc.getResampleNanos()) + "," + ms(doc.getEncodeNanos()) + "," + ms(doc.saveNanos) + ","
+                    + csv((doc.error != null) ? doc.error : "ok") + "\n");
+
+            for (Metrics.Image image : doc.getImages())
+            {
+                out.write("image," + csv(doc.file) + "," + csv(image.name) + "," + image.page + ","
+                        + csv(image.format) + "," + csv(image.outputFormat) + ","
+                        + image.sourceWidth + "," + image.sourceHeight + ","
+                        + image.width + "," + image.height + "," + image.inputBytes + "," + image.outputBytes + ",,,"
+                        + ms(image.decodeNanos) + "," + ms(image.resampleNanos) + "," + ms(image.encodeNanos) + ",,"
+                        + csv(image.result) + "\n");
+            }
+        }
+    }
+
+    private static String ms(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String json(String s)
+    {
+        if (s == null)
+        {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String csv(String s)
+    {
+        if (s == null)
+        {
+            return "";
+        }
+        if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0)
+        {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+}
@@ -18,24 +18,63 @@
 package pdfpicmangler;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-public class Options
+public class Options implements Cloneable
 {
     public double resolution=300;
     public double resolutionThreshold=450;
     public double quality=0.85;
+    /** Deflate level for lossless images, 0 .. 9 */
+    public int flateLevel=6;
+    public int threads=1;
+    public Resampler.Filter filter=Resampler.Filter.BOX;
+    /** images with more megapixels than this are resized strip by strip, -1: never */
+    public double streamAbove=-1;
+    /** directory for recompressed images kept across runs, null: no cache */
+    public String cacheDir=null;
+    /** size limit of the cache in MB */
+    public long cacheSize=1024;
+    /** size budget of a document in MB, resolution and quality are chosen to fit, 0: none */
+    public double maxSize=0;
     
     public boolean doExtract;
     public boolean doImport;
     public boolean doStatistics;
     public boolean doShrink;
+    public boolean doDedup=true;
+    /** move inline images that would be shrunk into XObjects */
+    public boolean liftInline=true;
+    /** cut images down to the part that the page and clipping paths let through */
+    public boolean crop=true;
+    /** rewrite jpegs that are not resized with optimal huffman tables (lossless) */
+    public boolean optimizeJpeg;
+    /** write the optimized jpegs as progressive */
+    public boolean progressive;
+    public boolean doBatch;
+    /** append the changed objects to a copy of the input instead of writing the whole document */
+    public boolean incremental;
+    /** parse lazily and keep the stream data in a temporary file instead of the heap */
+    public boolean lowMemory;
+    public boolean quiet;
+    /** use the PDFBox based ResolutionAnalyzer instead of the PlacementAnalyzer */
+    public boolean engineAnalyzer;
     
     public String importPath=".";
     public Map<String, String> importNames = new HashMap<String,String>();
     public String pdfFileName="";
     public String outputFileName="";
+    /** all file arguments, the documents (directories, globs, - for stdin) in batch mode */
+    public List<String> inputs = new ArrayList<String>();
+    /** batch mode: root of the mirrored output tree, null: next to the input */
+    public String outputDir=null;
+    /** batch mode: number of documents processed at the same time */
+    public int jobs=1;
+    /** timings and sizes are written here, as csv if it ends in .csv, else json */
+    public String reportFileName=null;
     
     public void read(String[] args)
     {
@@ -57,10 +96,105 @@ public class Options
                 {
                     quality = Double.parseDouble(arg.substring(3));
                 }
+                else if(arg.startsWith("-flate="))
+                {
+                    flateLevel = Integer.parseInt(arg.substring(7));
+                    if (flateLevel < 0 || flateLevel > 9)
+                    {
+                        flateLevel = 6;
+                        throw new IllegalArgumentException("the level must be 0 .. 9");
+                    }
+                }
+                else if(arg.startsWith("-threads="))
+                {
+                    threads = Math.max(1, Integer.parseInt(arg.substring(9)));
+                }
+                else if(arg.startsWith("-filter="))
+                {
+                    filter = Resampler.Filter.parse(arg.substring(8));
+                }
+                else if(arg.equals("-stream"))
+                {
+                    streamAbove = 0;
+                }
+                else if(arg.startsWith("-stream="))
+                {
+                    streamAbove = Double.parseDouble(arg.substring(8));
+                }
+                else if(arg.startsWith("-cache="))
+                {
+                    cacheDir = arg.substring(7);
+                }
+                else if(arg.startsWith("-cacheSize="))
+                {
+                    cacheSize = Long.parseLong(arg.substring(11));
+                }
+                else if(arg.startsWith("-maxSize="))
+                {
+                    maxSize = Double.parseDouble(arg.substring(9));
+                }
+                else if(arg.equals("-batch"))
+                {
+                    doBatch = true;
+                }
+                else if(arg.startsWith("-out="))
+                {
+                    outputDir = arg.substring(5);
+                }
+                else if(arg.startsWith("-jobs="))
+                {
+                    jobs = Math.max(1, Integer.parseInt(arg.substring(6)));
+                }
+                else if(arg.startsWith("-analyzer="))
+                {
+                    String analyzer = arg.substring(10);
+                    if (!analyzer.equals("fast") && !analyzer.equals("engine"))
+                    {
+                        throw new IllegalArgumentException("unknown analyzer " + analyzer);
+                    }
+                    engineAnalyzer = analyzer.equals("engine");
+                }
+                else if(arg.equals("-quiet"))
+                {
+                    quiet = true;
+                }
+                else if(arg.startsWith("-report="))
+                {
+                    reportFileName = arg.substring(8);
+                }
+                else if(arg.equals("-optimizeJpeg"))
+                {
+                    optimizeJpeg = true;
+                }
+                else if(arg.equals("-progressive"))
+                {
+                    optimizeJpeg = true;
+                    progressive = true;
+                }
+                else if(arg.equals("-lowMem"))
+                {
+                    lowMemory = true;
+                }
+                else if(arg.equals("-incremental"))
+                {
+                    incremental = true;
+                }
                 else if(arg.equals("-extract"))
                 {
                     doExtract = true;
                 }
+                else if(arg.equals("-noDedup"))
+                {
+                    doDedup = false;
+                }
+                else if(arg.equals("-noInline"))
+                {
+                    liftInline = false;
+                }
+                else if(arg.equals("-noCrop"))
+                {
+                    crop = false;
+                }
                 else if(arg.equals("-stats"))
                 {
                     doStatistics = true;
@@ -74,6 +208,7 @@ public class Options
                 }
                 else
                 {
+                    inputs.add(arg);
                     if (!gotInputFileName)
                     {
                         pdfFileName = arg;
@@ -94,6 +229,10 @@ public class Options
             {
                 continue;
             }
+            catch(IllegalArgumentException e)
+            {
+                System.out.println("ignoring " + arg + ": " + e.getMessage());
+            }
         }
         
         if(!doExtract && !doStatistics && !doImport)
@@ -115,14 +254,31 @@ public class Options
         }        
     }
 
+    /**
+     * @return a copy whose settings can be changed for one document; the
+     *         import names and inputs are shared.
+     */
+    public Options copy()
+    {
+        try
+        {
+            return (Options) clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public String toString()
     {
-        return "res=" + resolution + " resTh=" + resolutionThreshold + " q=" + quality;
+        return "res=" + resolution + " resTh=" + resolutionThreshold + " q=" + quality + " threads=" + threads;
     }
 
     public static void usage()
     {
         System.out.println("usage: java PDFMangler [options] [PDFFILE]");
+        System.out.println("       java PDFMangler -batch [options] [-out=<dir>] DIR|GLOB|-...");
         System.out.println("Options:");
         System.out.println("  -extract   : extract all images to files");
         System.out.println("  -import=<folder> : import all images from folder");
@@ -130,5 +286,25 @@ public class Options
         System.out.println("  -res=<n>   : target resolution of the images in the pdf");
         System.out.println("  -resTh=<n> : only resize image if resolution is greater than this");
         System.out.println("  -q=<f>     : f=0.0 .. 1.0 quality factor for Jpeg compression");  
+        System.out.println("  -maxSize=<mb> : lower -res and -q until the document fits into mb megabytes");
+        System.out.println("  -flate=<n> : n=0 .. 9 compression level for lossless images (default 6)");
+        System.out.println("  -noDedup   : compress and store images with identical content separately");
+        System.out.println("  -noInline  : leave inline images in the page content (they are not shrunk then)");
+        System.out.println("  -noCrop    : keep the parts of images that are clipped away or off the page");
+        System.out.println("  -optimizeJpeg : losslessly rewrite jpegs that are not resized with optimal huffman tables");
+        System.out.println("  -progressive : like -optimizeJpeg, but write progressive jpegs");
+        System.out.println("  -lowMem    : keep the document data in a temporary file instead of memory");
+        System.out.println("  -incremental : only append the changed objects to the original (fast, but old images stay in the file)");
+        System.out.println("  -filter=<f> : resampling filter: box (default), bilinear or lanczos3");
+        System.out.println("  -stream[=<mp>] : resize images (larger than mp megapixels) in strips to save memory");
+        System.out.println("  -cache=<dir> : keep recompressed images in dir and reuse them in later runs");
+        System.out.println("  -cacheSize=<n> : limit the cache to n MB (default 1024), least recently used images go first");
+        System.out.println("  -analyzer=<a> : how to find image resolutions: fast (default) or engine (PDFBox, slower)");
+        System.out.println("  -quiet     : only print warnings and the results of -stats");
+        System.out.println("  -report=<file> : write timings and sizes of every document and image to file (.json or .csv)");
+        System.out.println("  -batch     : process all pdfs in the given directories, globs (\"docs/**/*.pdf\") or listed on stdin (-)");
+        System.out.println("  -out=<dir> : batch mode: write results to the same relative path under dir");
+        System.out.println("  -jobs=<n>  : batch mode: process n documents at the same time");
+        System.out.println("  -threads=<n> : analyze pages and compress images on n threads (output is the same for any n)");
     }
 }
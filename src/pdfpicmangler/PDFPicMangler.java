@@ -17,44 +17,218 @@
 
 package pdfpicmangler;
 
-import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.io.RandomAccessBuffer;
 import org.apache.pdfbox.pdfparser.PDFParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDJpeg;
-import org.apache.pdfbox.pdmodel.graphics.xobject.PDPixelMap;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObject;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectForm;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
 
 public class PDFPicMangler
 {
+    /** -maxSize tries resolutions down to 50 dpi in steps of 20% and qualities down to 0.3 */
+    private static final double RESOLUTION_STEP = 0.8;
+    private static final double MIN_SEARCH_RESOLUTION = 50;
+    private static final double QUALITY_STEP = 0.1;
+    private static final double MIN_SEARCH_QUALITY = 0.3;
+
     private Options opts = new Options();
-    private Map<String, Float> resolutions;
+    private ImageRegistry registry;
     private int currentPage = -1;
+    private ExecutorService executor;
+    /** runs the Flate blocks, resampler bands and colour strips of the one image at a time, null with -threads */
+    private ExecutorService blockExecutor;
+    private LinkedList<ShrinkJob> pending = new LinkedList<ShrinkJob>();
+    private ImageDeduplicator dedup;
+    private Map<COSStream, ShrinkJob> producers;
+    private RecompressionCache cache;
+    private Metrics metrics = new Metrics();
+    /** encodings made while searching for -maxSize settings, by source stream */
+    private Map<COSStream, EncodedImage> presized;
+    /** backs the document with -lowMem, deleted when it is closed */
+    private File scratchFile;
+    /** mask streams and the images that use them, in the order they were found */
+    private Map<COSStream, List<MaskUse>> maskUses;
+    /** image XObjects that were inline images before, for the -maxSize prediction */
+    private Set<COSStream> liftedImages = Collections.newSetFromMap(new IdentityHashMap<COSStream, Boolean>());
+    /** resource dictionaries whose images were replaced, for -incremental */
+    private Set<COSDictionary> changedResources =
+            Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
 
-    private PDDocument process(PDDocument doc, Map<String, Float> resolutions) throws IOException {
-        this.resolutions = resolutions;
-        
+    PDDocument process(PDDocument doc, ImageRegistry registry) throws IOException {
+        this.registry = registry;
+        producers = new IdentityHashMap<COSStream, ShrinkJob>();
+        maskUses = new LinkedHashMap<COSStream, List<MaskUse>>();
+
+        if (opts.doShrink && opts.threads > 1) {
+            executor = Executors.newFixedThreadPool(opts.threads);
+        } else if (opts.doShrink && imageThreads() > 1) {
+            blockExecutor = Executors.newFixedThreadPool(imageThreads());
+        }
+
+        if (opts.doShrink && opts.cacheDir != null) {
+            cache = new RecompressionCache(new File(opts.cacheDir), opts.cacheSize * 1024 * 1024);
+        }
+
+        if (opts.doDedup && (opts.doShrink || opts.doStatistics)) {
+            dedup = new ImageDeduplicator();
+            findDuplicates(doc);
+        }
+
+        try {
+            if (opts.doShrink && opts.maxSize > 0) {
+                // the settings are found per document, other documents keep theirs
+                opts = opts.copy();
+                searchSettings(doc);
+            }
+
+            List<?> pages = doc.getDocumentCatalog().getAllPages();
+            for (int i = 0; i < pages.size(); i++) {
+                if (!(pages.get(i) instanceof PDPage))
+                    continue;
+                PDPage page = (PDPage) pages.get(i);
+                currentPage = i + 1;
+                scanResources(page.getResources(), doc);
+            }
+            finishShrink(doc);
+            // masks go last, their size depends on what became of every image that uses them
+            for (Map.Entry<COSStream, List<MaskUse>> entry : maskUses.entrySet())
+                maskShrink(doc, entry.getKey(), entry.getValue());
+            finishShrink(doc);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            if (blockExecutor != null) {
+                blockExecutor.shutdownNow();
+                blockExecutor = null;
+            }
+        }
+
+        if (dedup != null && (opts.doStatistics || dedup.getDuplicates() > 0)) {
+            Log.println(dedup.toString());
+        }
+        if (opts.doStatistics && opts.doShrink) {
+            printEncoderStats();
+        }
+        if (cache != null) {
+            Log.println(cache.toString());
+            cache.trim();
+        }
+        return doc;
+    }
+
+    /**
+     * Sums up, per output format, how much the recompressed images shrank and
+     * how many pixels per second the encoders managed.
+     */
+    private void printEncoderStats() {
+        Map<String, long[]> totals = new TreeMap<String, long[]>();
+        int notSmaller = 0;
+        for (Metrics.Image image : metrics.getImages()) {
+            String format;
+            if (Metrics.NOT_SMALLER.equals(image.result))
+                notSmaller++;
+            if (Metrics.RECOMPRESSED.equals(image.result))
+                format = EncodedImage.CCITT.equals(image.outputFormat) ? "ccitt g4" : image.outputFormat;
+            else if (Metrics.OPTIMIZED.equals(image.result))
+                format = image.outputFormat + " lossless";
+            else
+                continue;
+            long[] sums = totals.get(format);
+            if (sums == null) {
+                sums = new long[5];
+                totals.put(format, sums);
+            }
+            sums[0]++;
+            sums[1] += image.inputBytes;
+            sums[2] += image.outputBytes;
+            sums[3] += (long) image.width * image.height;
+            sums[4] += image.encodeNanos;
+        }
+
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] sums = entry.getValue();
+            Log.println(String.format(Locale.ROOT, "%s: %d images, %d -> %d bytes (%.1f%%), %.1f Mpixel/s",
+                    entry.getKey(), sums[0], sums[1], sums[2], (sums[1] > 0) ? 100.0 * sums[2] / sums[1] : 0.0,
+                    (sums[4] > 0) ? sums[3] * 1e3 / sums[4] : 0.0));
+        }
+        if (notSmaller > 0) {
+            Log.println(notSmaller + " images kept, they would not have become smaller");
+        }
+    }
+
+    /**
+     * The dedup stage: hash all images up front, so that the lowest resolution
+     * of all copies is known before the first copy gets compressed.
+     */
+    private void findDuplicates(PDDocument doc) throws IOException {
         List<?> pages = doc.getDocumentCatalog().getAllPages();
         for (int i = 0; i < pages.size(); i++) {
             if (!(pages.get(i) instanceof PDPage))
                 continue;
             PDPage page = (PDPage) pages.get(i);
-            currentPage = i + 1;
-            scanResources(page.getResources(), doc);
+            findDuplicates(page.getResources());
+        }
+    }
+
+    private void findDuplicates(final PDResources rList) throws IOException {
+        if (rList == null) {
+            return;
+        }
+        Map<String, PDXObject> xObs = rList.getXObjects();
+        for (String imgName : xObs.keySet()) {
+            final PDXObject xObj = xObs.get(imgName);
+            if (xObj instanceof PDXObjectForm)
+                findDuplicates(((PDXObjectForm) xObj).getResources());
+            if (xObj instanceof PDXObjectImage)
+                dedup.add((PDXObjectImage) xObj, registry.getResolution(((PDXObjectImage) xObj).getCOSStream()));
         }
-        return doc;
     }
 
     private void scanResources(final PDResources rList, final PDDocument doc)
@@ -90,93 +264,1167 @@ public class PDFPicMangler
 			    
 			    if(fileNameLower.endsWith(".png"))
 			    {
-			        System.out.println("importing " + fileWithPath + " as " + imageName + " [PNG]");
+			        Log.println("importing " + fileWithPath + " as " + imageName + " [PNG]");
 			        
-			        FileInputStream is = new FileInputStream(fileWithPath);
-		            img = new PDPng(doc, is);
-		            xObs.put(imgName, img);
-		            
-		            is.close();
+		            try {
+		                img = new PDPng(doc, new File(fileWithPath));
+		                xObs.put(imgName, img);
+		                changedResources.add(rList.getCOSDictionary());
+		            } catch (IOException e) {
+		                Log.warn("could not import " + fileWithPath + ": " + e.getMessage());
+		            }
 			    }
 			    if(fileNameLower.endsWith(".jpg") || fileNameLower.endsWith(".jpeg"))
                 {
-			        System.out.println("importing " + fileWithPath + " as " + imageName + " [JPG]");
+			        Log.println("importing " + fileWithPath + " as " + imageName + " [JPG]");
 			        
 			        FileInputStream is = new FileInputStream(path + "/" + fileName);
 			        img = new PDJpeg(doc, is);
 			        
 			        xObs.put(imgName, img);
+			        changedResources.add(rList.getCOSDictionary());
                     
                     is.close();
                 }
 			}
  
             if(opts.doShrink) {
-                System.out.println("Compressing image: " + imageName + " ...");
-                img = imageShrink(doc, resolutions.get(imageName), img);
-                xObs.put(imgName, img);
+                // every image object (or group of identical images) is compressed only once
+                ShrinkJob producer = producers.get(imageKey(img));
+                if (producer != null) {
+                    ShrinkJob job = new ShrinkJob(rList, xObs, imgName, imageName);
+                    job.original = producer;
+                    job.metrics.format = img.getSuffix();
+                    job.metrics.inputBytes = img.getPDStream().getLength();
+                    queueShrink(doc, job);
+                    continue;
+                }
+                imageShrink(doc, imageResolution(img), img, rList, xObs, imgName, imageName);
             }
         }
         rList.setXObjects(xObs);
     }
 
-    private PDXObjectImage imageShrink(final PDDocument doc, float resolution, PDXObjectImage img) throws IOException {
-        if (resolution > opts.resolutionThreshold) {
+    private Float imageResolution(PDXObjectImage img) {
+        return (dedup != null) ? dedup.resolution(img) : registry.getResolution(img.getCOSStream());
+    }
 
-            int width = (int) (img.getWidth() * opts.resolution / resolution);
-            int height = (int) (img.getHeight() * opts.resolution / resolution);
+    /**
+     * -maxSize: lowers the resolution step by step and, at each resolution,
+     * the quality, until the document is expected to fit the budget. The
+     * expected size is the size of the document with every image that would
+     * be resized replaced by its trial encoding. At each resolution the
+     * images are resampled once and encoded at all qualities, on the worker
+     * threads; the search ends with the first settings that fit, and their
+     * encodings are used for the real run.
+     *
+     * Images that were lifted out of content streams count with their full
+     * size, their /Length is that of data that used to be compressed along
+     * with the content. Masks are expected to shrink with the pixels of the
+     * largest image that uses them, as in {@link #maskShrink}.
+     */
+    private void searchSettings(final PDDocument doc) throws IOException {
+        long budget = (long) (opts.maxSize * 1024 * 1024);
+        Map<COSStream, PDXObjectImage> images = new LinkedHashMap<COSStream, PDXObjectImage>();
+        Map<COSStream, String> names = new IdentityHashMap<COSStream, String>();
+        List<?> pages = doc.getDocumentCatalog().getAllPages();
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i) instanceof PDPage)
+                collectImages(((PDPage) pages.get(i)).getResources(), String.valueOf(i + 1), images, names);
+        }
 
-            System.out.println("  - resizing: " + img.getWidth() + "x" + img.getHeight()
-                    + "  ->  " + width + "x" + height);
+        // mask streams and the images that use them
+        Map<COSStream, List<COSStream>> maskUsers = new LinkedHashMap<COSStream, List<COSStream>>();
+        for (Map.Entry<COSStream, PDXObjectImage> entry : images.entrySet()) {
+            for (COSName key : new COSName[] { COSName.SMASK, COSName.MASK }) {
+                COSBase mask = entry.getValue().getCOSStream().getDictionaryObject(key);
+                // a mask that is also drawn on its own has a trial of its own
+                if (!(mask instanceof COSStream) || images.containsKey(mask))
+                    continue;
+                List<COSStream> users = maskUsers.get(mask);
+                if (users == null) {
+                    users = new ArrayList<COSStream>();
+                    maskUsers.put((COSStream) mask, users);
+                }
+                users.add(entry.getKey());
+            }
+        }
 
-            BufferedImage image = img.getRGBImage();
-            BufferedImage imageSmall = resizedImage(width, height, image);
+        List<Double> resolutions = new ArrayList<Double>();
+        for (double r = opts.resolution; r >= MIN_SEARCH_RESOLUTION; r *= RESOLUTION_STEP)
+            resolutions.add(r);
+        if (resolutions.isEmpty())
+            resolutions.add(opts.resolution);
+        List<Double> qualities = new ArrayList<Double>();
+        for (double q = opts.quality; q >= MIN_SEARCH_QUALITY - 1e-9; q -= QUALITY_STEP)
+            qualities.add(q);
+        if (qualities.isEmpty())
+            qualities.add(opts.quality);
 
-            String suffix = img.getSuffix();
+        for (int r = 0; r < resolutions.size(); r++) {
+            double resolution = resolutions.get(r);
+            double threshold = opts.resolutionThreshold * resolution / opts.resolution;
 
-            System.out.println("  - writing back as " + suffix);
-            
-            img.clear();
-            
-            int uncompressed = width*height*3;
-            
-            try {
+            long fixed = metrics.inputBytes;
+            List<Trial> trials = new ArrayList<Trial>();
+            Map<COSStream, Trial> trialsByKey = new IdentityHashMap<COSStream, Trial>();
+            for (Map.Entry<COSStream, PDXObjectImage> entry : images.entrySet()) {
+                PDXObjectImage img = entry.getValue();
+                Float dpi = imageResolution(img);
+                String suffix = img.getSuffix();
+                boolean lifted = liftedImages.contains(entry.getKey());
+                if (dpi == null || dpi <= threshold || (!"jpg".equals(suffix) && !"png".equals(suffix))) {
+                    if (lifted)
+                        fixed += img.getPDStream().getLength();
+                    continue;
+                }
 
-                if ("jpg".equals(suffix)) {
-                    PDJpeg jpg = makeJpeg(imageSmall, doc);
-                    int compressed = jpg.getPDStream().getLength();
-                    
-                    System.out.println("  - jpg: ratio: " + (float) compressed / uncompressed + "%  uncompressed: " + uncompressed + " compressed: " + compressed);
-                    
-                    jpg.clear();
-                    return jpg;
+                ShrinkJob job = new ShrinkJob(null, null, null, names.get(entry.getKey()));
+                job.width = (int) (img.getWidth() * resolution / dpi);
+                job.height = (int) (img.getHeight() * resolution / dpi);
+                job.sourceWidth = img.getWidth();
+                job.sourceHeight = img.getHeight();
+                job.suffix = suffix;
+                job.bilevel = isBilevel(img);
+                job.source = detach(doc, img);
+
+                Trial trial = new Trial(entry.getKey(), job, qualities);
+                trial.inputBytes = img.getPDStream().getLength();
+                trial.lifted = lifted;
+                if (executor != null)
+                    trial.future = executor.submit(trial);
+                trials.add(trial);
+                trialsByKey.put(entry.getKey(), trial);
+            }
+
+            long[] predicted = new long[qualities.size()];
+            Arrays.fill(predicted, fixed);
+            for (Trial trial : trials) {
+                EncodedImage[] results = trial.get();
+                trial.results = results;
+                for (int q = 0; q < predicted.length; q++) {
+                    // images that fail to encode or do not get smaller are kept as they are
+                    if (trial.lifted)
+                        predicted[q] += (results != null) ? Math.min(results[q].getLength(), trial.inputBytes)
+                                : trial.inputBytes;
+                    else if (results != null)
+                        predicted[q] += Math.min(results[q].getLength() - trial.inputBytes, 0);
                 }
+            }
+            for (Map.Entry<COSStream, List<COSStream>> entry : maskUsers.entrySet()) {
+                for (int q = 0; q < predicted.length; q++)
+                    predicted[q] -= maskSaving(entry.getKey(), entry.getValue(), trialsByKey, q);
+            }
 
-                if ("png".equals(suffix)) {
-                    PDPixelMap png = makePng(imageSmall, doc);
-                    int compressed = png.getPDStream().getLength();
-                    
-                    System.out.println("  - png: ratio: " + (float) compressed / uncompressed + "%  uncompressed: " + uncompressed + " compressed: " + compressed);
-                    
-                    png.clear();
-                    return png;
+            for (int q = 0; q < qualities.size(); q++) {
+                boolean last = (r == resolutions.size() - 1 && q == qualities.size() - 1);
+                if (predicted[q] > budget && !last)
+                    continue;
+
+                if (predicted[q] > budget) {
+                    Log.warn(String.format(Locale.ROOT, "%s: %.1f MB is the smallest that -maxSize=%s can reach",
+                            metrics.file, predicted[q] / (1024.0 * 1024.0), opts.maxSize));
+                }
+                presized = new IdentityHashMap<COSStream, EncodedImage>();
+                for (Trial trial : trials) {
+                    if (trial.results != null)
+                        presized.put(trial.key, trial.results[q]);
                 }
+                opts.resolution = resolution;
+                opts.resolutionThreshold = threshold;
+                opts.quality = qualities.get(q);
+                metrics.settings = String.format(Locale.ROOT, "res=%.0f resTh=%.0f q=%.2f",
+                        opts.resolution, opts.resolutionThreshold, opts.quality);
+                Log.println(String.format(Locale.ROOT, "maxSize: %s, about %.1f MB", metrics.settings,
+                        predicted[q] / (1024.0 * 1024.0)));
+                return;
+            }
+        }
+    }
 
+    /**
+     * @return the bytes a mask is expected to lose at quality index q: none
+     *         if one of its images is kept, else in proportion to the pixels
+     *         of the largest of them
+     */
+    private static long maskSaving(COSStream mask, List<COSStream> users, Map<COSStream, Trial> trials, int q) {
+        long pixels = 0;
+        for (COSStream user : users) {
+            Trial trial = trials.get(user);
+            if (trial == null || trial.results == null || trial.results[q].getLength() > trial.inputBytes)
+                return 0;
+            pixels = Math.max(pixels, (long) trial.results[q].getWidth() * trial.results[q].getHeight());
+        }
+        long maskPixels = (long) mask.getInt(COSName.WIDTH, 0) * mask.getInt(COSName.HEIGHT, 0);
+        if (maskPixels <= pixels)
+            return 0;
+        long length = mask.getInt(COSName.LENGTH, 0);
+        return length - length * pixels / maskPixels;
+    }
+
+    /**
+     * Finds the distinct images, named like in {@link #scanResources} after
+     * the first place they appear.
+     */
+    private void collectImages(final PDResources rList, String page, Map<COSStream, PDXObjectImage> images,
+            Map<COSStream, String> names) throws IOException {
+        if (rList == null) {
+            return;
+        }
+        Map<String, PDXObject> xObs = rList.getXObjects();
+        for (String imgName : xObs.keySet()) {
+            final PDXObject xObj = xObs.get(imgName);
+            if (xObj instanceof PDXObjectForm)
+                collectImages(((PDXObjectForm) xObj).getResources(), page, images, names);
+            if (!(xObj instanceof PDXObjectImage))
+                continue;
+            COSStream key = imageKey((PDXObjectImage) xObj);
+            if (!images.containsKey(key)) {
+                images.put(key, (PDXObjectImage) xObj);
+                names.put(key, page + imgName);
+            }
+        }
+    }
+
+    /**
+     * One image at one candidate resolution, encoded at every candidate
+     * quality from a single resampled copy.
+     */
+    private class Trial implements Callable<EncodedImage[]> {
+        final COSStream key;
+        final ShrinkJob job;
+        final List<Double> qualities;
+        long inputBytes;
+        /** made from an inline image, see {@link #searchSettings} */
+        boolean lifted;
+        Future<EncodedImage[]> future;
+        /** per quality, null if the image could not be encoded */
+        EncodedImage[] results;
+
+        Trial(COSStream key, ShrinkJob job, List<Double> qualities) {
+            this.key = key;
+            this.job = job;
+            this.qualities = qualities;
+        }
+
+        public EncodedImage[] call() throws IOException {
+            EncodedImage[] encoded = new EncodedImage[qualities.size()];
+            if (job.bilevel) {
+                // lossless, the quality does not matter
+                Arrays.fill(encoded, job.shrinkMask());
+                return encoded;
+            }
+            BufferedImage image = job.decodeAndResize();
+            for (int q = 0; q < encoded.length; q++) {
+                if ("jpg".equals(job.suffix))
+                    encoded[q] = makeJpeg(image, qualities.get(q), SizeCappedOutputStream.NO_LIMIT);
+                else
+                    encoded[q] = (q == 0) ? makePng(image) : encoded[0];
+            }
+            return encoded;
+        }
+
+        EncodedImage[] get() throws IOException {
+            try {
+                return (future != null) ? future.get() : call();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while trying settings");
+            } catch (ExecutionException e) {
+                Log.warn(job.imageName + ": " + e.getCause().getMessage());
+                return null;
             } catch (IOException e) {
-                System.out.println(e.getMessage());
+                Log.warn(job.imageName + ": " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Decides whether an image needs to be shrunk and queues the work. The
+     * decoding, resizing and encoding runs on the worker threads, the result is
+     * put back into the resources in the order in which the jobs were queued.
+     */
+    private void imageShrink(final PDDocument doc, Float resolution, PDXObjectImage img,
+            PDResources rList, Map<String, PDXObject> xObs, String imgName, String imageName) throws IOException {
+        ShrinkJob job = new ShrinkJob(rList, xObs, imgName, imageName);
+        job.output = img;
+        producers.put(imageKey(img), job);
+
+        job.metrics.format = img.getSuffix();
+        job.metrics.sourceWidth = job.metrics.width = img.getWidth();
+        job.metrics.sourceHeight = job.metrics.height = img.getHeight();
+        job.metrics.inputBytes = job.metrics.outputBytes = img.getPDStream().getLength();
+
+        // images that are never drawn have no resolution and are left alone
+        boolean resize = resolution != null && resolution > opts.resolutionThreshold;
+        int[] crop = (resolution != null) ? cropRegion(img) : null;
+        // cropping alone is only worth a new encoding if much of the image goes
+        if (crop != null && !resize
+                && 2L * (crop[2] - crop[0]) * (crop[3] - crop[1]) > (long) img.getWidth() * img.getHeight())
+            crop = null;
+
+        if (resize || crop != null) {
+            int keptWidth = (crop != null) ? crop[2] - crop[0] : img.getWidth();
+            int keptHeight = (crop != null) ? crop[3] - crop[1] : img.getHeight();
+            double scale = resize ? opts.resolution / resolution : 1;
+            job.width = Math.max(1, (int) (keptWidth * scale));
+            job.height = Math.max(1, (int) (keptHeight * scale));
+            job.sourceWidth = img.getWidth();
+            job.sourceHeight = img.getHeight();
+            job.crop = crop;
+            job.bilevel = isBilevel(img);
+            job.suffix = img.getSuffix();
+            job.source = detach(doc, img);
+            job.presized = (presized != null) ? presized.remove(imageKey(img)) : null;
+            if (crop != null)
+                job.presized = null;
+            int length = img.getPDStream().getLength();
+            job.limit = (length > 0) ? length - 1 : SizeCappedOutputStream.NO_LIMIT;
+            img.clear();
+        } else if (opts.optimizeJpeg && "jpg".equals(img.getSuffix()) && isDct(singleFilter(img.getCOSStream()))) {
+            // only the huffman coding changes, the dictionary is kept as it is
+            job.optimize = true;
+            job.width = job.sourceWidth = img.getWidth();
+            job.height = job.sourceHeight = img.getHeight();
+            job.suffix = img.getSuffix();
+            job.source = detach(doc, img);
+        }
+
+        if (job.source != null && executor != null) {
+            job.future = executor.submit(job);
+        }
+        queueShrink(doc, job);
+
+        addMaskUse(job, img, COSName.SMASK);
+        addMaskUse(job, img, COSName.MASK);
+    }
+
+    /**
+     * Remembers that an image uses a /SMask or /Mask stream, which is
+     * resized once the results of all its images are known.
+     */
+    private void addMaskUse(ShrinkJob parent, PDXObjectImage img, COSName key) {
+        COSBase base = img.getCOSStream().getDictionaryObject(key);
+        if (!(base instanceof COSStream))
+            return;
+        List<MaskUse> uses = maskUses.get(base);
+        if (uses == null) {
+            uses = new ArrayList<MaskUse>();
+            maskUses.put((COSStream) base, uses);
+        }
+        uses.add(new MaskUse(parent, key));
+    }
+
+    /** An image that uses a mask stream, and under which key. */
+    private static class MaskUse {
+        final ShrinkJob parent;
+        final COSName key;
+
+        MaskUse(ShrinkJob parent, COSName key) {
+            this.parent = parent;
+            this.key = key;
+        }
+    }
+
+    /**
+     * @return x0, y0, x1, y1 of the part of the image that its placements
+     *         show, or null if that is all of it or the image is not cropped.
+     *         Images with a mask stream are not, the mask would have to be
+     *         cut the same way; nor are images with copies, which share the
+     *         result but may show other parts.
+     */
+    private int[] cropRegion(PDXObjectImage img) {
+        if (!opts.crop || (!"jpg".equals(img.getSuffix()) && !"png".equals(img.getSuffix())))
+            return null;
+        COSStream stream = img.getCOSStream();
+        if (stream.getDictionaryObject(COSName.SMASK) instanceof COSStream
+                || stream.getDictionaryObject(COSName.MASK) instanceof COSStream)
+            return null;
+        if (dedup != null && dedup.hasCopies(img))
+            return null;
+        // 1 bit images are resized in strips, without cropping
+        if (isBilevel(img))
+            return null;
+        return registry.getVisibleRegion(stream);
+    }
+
+    /**
+     * Queues a /SMask or /Mask image, resampled to the largest size that
+     * the images using it got. The mask is written back into its own
+     * stream, so every image that shares it sees the result. If any of
+     * them was kept as it was (not resized, not smaller, failed), the mask
+     * stays as well: it would lose detail that the image still has.
+     */
+    private void maskShrink(final PDDocument doc, COSStream stream, List<MaskUse> uses) throws IOException {
+        // a mask that is also drawn as an image of its own is left to that job
+        if (producers.containsKey(stream))
+            return;
+        MaskUse first = uses.get(0);
+        String name = first.parent.imageName + "/" + first.key.getName();
+        int width = 0, height = 0;
+        for (MaskUse use : uses) {
+            if (!use.parent.resized)
+                return;
+            width = Math.max(width, use.parent.metrics.width);
+            height = Math.max(height, use.parent.metrics.height);
+        }
+        int sourceWidth = stream.getInt(COSName.WIDTH, -1);
+        int sourceHeight = stream.getInt(COSName.HEIGHT, -1);
+        if (sourceWidth <= width && sourceHeight <= height)
+            return;
+        if (!isResizableMask(stream, sourceWidth)) {
+            Log.println(name + " kept, its encoding is not supported");
+            return;
+        }
+
+        PDXObjectImage mask = (PDXObjectImage) PDXObject.createXObject(stream);
+        ShrinkJob job = new ShrinkJob(first.parent.rList, first.parent.xObs, first.parent.imgName, name);
+        job.metrics.page = first.parent.metrics.page;
+        job.output = mask;
+        producers.put(stream, job);
+
+        job.mask = true;
+        job.bilevel = bitsPerComponent(stream) == 1;
+        job.width = Math.min(width, sourceWidth);
+        job.height = Math.min(height, sourceHeight);
+        job.sourceWidth = sourceWidth;
+        job.sourceHeight = sourceHeight;
+        job.suffix = mask.getSuffix();
+        job.source = detach(doc, mask);
+        int length = mask.getPDStream().getLength();
+        job.limit = (length > 0) ? length - 1 : SizeCappedOutputStream.NO_LIMIT;
+        mask.clear();
+
+        job.metrics.format = job.suffix;
+        job.metrics.sourceWidth = job.metrics.width = sourceWidth;
+        job.metrics.sourceHeight = job.metrics.height = sourceHeight;
+        job.metrics.inputBytes = job.metrics.outputBytes = length;
+
+        if (executor != null) {
+            job.future = executor.submit(job);
+        }
+        queueShrink(doc, job);
+    }
+
+    /**
+     * @return true for 8 bit or 1 bit masks, Flate or DCT (8 bit only)
+     *         encoded or uncompressed, that {@link ShrinkJob#shrinkMask()} can read.
+     */
+    private static boolean isResizableMask(COSStream stream, int width) {
+        int bits = bitsPerComponent(stream);
+        COSBase filter = singleFilter(stream);
+        if (COSName.DCT_DECODE.equals(filter))
+            return bits == 8;
+        if (filter != null && !COSName.FLATE_DECODE.equals(filter))
+            return false;
+        return (bits == 8 || bits == 1) && flatePredictor(stream, 1, bits, width) > 0;
+    }
+
+    /**
+     * @return true for 1 bit images (stencil masks included) that
+     *         {@link ShrinkJob#shrinkMask()} can read. Resampling them as
+     *         gray would only make them bigger, they stay 1 bit.
+     */
+    private static boolean isBilevel(PDXObjectImage img) {
+        COSStream stream = img.getCOSStream();
+        COSBase colorSpace = stream.getDictionaryObject(COSName.COLORSPACE);
+        boolean oneComponent = stream.getBoolean(COSName.IMAGE_MASK, false) || COSName.DEVICEGRAY.equals(colorSpace)
+                || (colorSpace instanceof COSArray && COSName.INDEXED.equals(((COSArray) colorSpace).getObject(0)));
+        return oneComponent && bitsPerComponent(stream) == 1 && isResizableMask(stream, img.getWidth());
+    }
+
+    private static int bitsPerComponent(COSStream stream) {
+        // optional for stencil masks
+        if (stream.getBoolean(COSName.IMAGE_MASK, false))
+            return 1;
+        return stream.getInt(COSName.BITS_PER_COMPONENT, -1);
+    }
+
+    /**
+     * @return the /Predictor of a Flate or uncompressed stream, or -1 if its
+     *         parameters do not match the image
+     */
+    private static int flatePredictor(COSStream stream, int components, int bits, int width) {
+        COSDictionary parms = decodeParms(stream);
+        if (parms == null)
+            return 1;
+        int predictor = parms.getInt(COSName.PREDICTOR, 1);
+        if (predictor > 1 && (parms.getInt(COSName.COLORS, 1) != components
+                || parms.getInt(COSName.BITS_PER_COMPONENT, 8) != bits
+                || parms.getInt(COSName.COLUMNS, 1) != width))
+            return -1;
+        return predictor;
+    }
+
+    private COSStream imageKey(PDXObjectImage img) {
+        return (dedup != null) ? dedup.canonical(img) : img.getCOSStream();
+    }
+
+    private void queueShrink(final PDDocument doc, ShrinkJob job) throws IOException {
+        pending.add(job);
+
+        while (pending.size() > 2 * opts.threads) {
+            applyShrink(doc, pending.removeFirst());
+        }
+    }
+
+    private void applyShrink(final PDDocument doc, ShrinkJob job) throws IOException {
+        Log.println("Compressing image: " + job.imageName + " ...");
+        metrics.add(job.metrics);
+
+        if (job.original != null) {
+            Log.println("  - same as " + job.original.imageName);
+            job.metrics.result = Metrics.DUPLICATE;
+            job.xObs.put(job.imgName, job.original.output);
+            job.rList.setXObjects(job.xObs);
+            changedResources.add(job.rList.getCOSDictionary());
+            return;
+        }
+
+        job.metrics.result = Metrics.KEPT;
+        if (job.source == null)
+            return;
+
+        if (job.optimize) {
+            Log.println("  - optimizing huffman tables");
+        } else {
+            Log.println("  - resizing: " + job.sourceWidth + "x" + job.sourceHeight
+                    + "  ->  " + job.width + "x" + job.height);
+            if (job.crop != null) {
+                Log.println("  - cropped to " + job.crop[0] + "," + job.crop[1] + " - " + job.crop[2] + "," + job.crop[3]
+                        + ", the rest is never visible");
+            }
+        }
+
+        EncodedImage encoded;
+        try {
+            encoded = (job.future != null) ? job.future.get() : job.call();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while compressing " + job.imageName);
+        } catch (ExecutionException e) {
+            job.metrics.result = Metrics.FAILED;
+            Log.warn(job.imageName + ": " + e.getCause().getMessage());
+            if (Log.enabled())
+                e.getCause().printStackTrace();
+            return;
+        } catch (IOException e) {
+            job.metrics.result = Metrics.FAILED;
+            Log.warn(job.imageName + ": " + e.getMessage());
+            if (Log.enabled())
                 e.printStackTrace();
+            return;
+        } finally {
+            job.release();
+        }
+
+        if (job.notSmaller) {
+            Log.println("  - kept, the result would not be smaller");
+            job.metrics.result = Metrics.NOT_SMALLER;
+            return;
+        }
+        if (encoded == null)
+            return;
+
+        if (job.optimize) {
+            job.metrics.result = Metrics.OPTIMIZED;
+            job.metrics.outputBytes = encoded.getLength();
+            job.metrics.outputFormat = encoded.getSuffix();
+            Log.println("  - " + job.metrics.inputBytes + " -> " + encoded.getLength() + " bytes, pixels unchanged");
+            encoded.replaceData(job.output.getCOSStream());
+            job.output.getCOSStream().setNeedToBeUpdate(true);
+            changedResources.add(job.rList.getCOSDictionary());
+            return;
+        }
+
+        job.metrics.result = job.cached ? Metrics.CACHED : Metrics.RECOMPRESSED;
+        job.metrics.width = encoded.getWidth();
+        job.metrics.height = encoded.getHeight();
+        job.metrics.outputBytes = encoded.getLength();
+        job.metrics.outputFormat = encoded.getSuffix();
+        job.metrics.streamed = job.streamed;
+
+        if (Log.enabled()) {
+            if (job.cached) {
+                Log.println("  - taken from cache");
+            }
+            if (job.streamed) {
+                Log.println("  - resized in strips");
+            }
+            if (job.decodeScale > 1) {
+                Log.println("  - decoded at 1/" + job.decodeScale + " in the DCT domain");
+            }
+            Log.println("  - writing back as " + encoded.getSuffix());
+
+            int uncompressed = job.width * job.height * 3;
+            int compressed = encoded.getLength();
+
+            Log.println("  - " + encoded.getSuffix() + ": ratio: " + (float) compressed / uncompressed + "%  uncompressed: " + uncompressed + " compressed: " + compressed);
+        }
+
+        if (job.mask) {
+            encoded.replaceImage(job.output.getCOSStream());
+            job.output.getCOSStream().setNeedToBeUpdate(true);
+            changedResources.add(job.rList.getCOSDictionary());
+            return;
+        }
+
+        COSStream original = job.output.getCOSStream();
+        PDXObjectImage image = job.bilevel ? bilevelCopy(doc, original, encoded) : encoded.toXObject(doc);
+        keepMasks(original, image.getCOSStream());
+        job.output = (job.crop != null) ? cropForm(doc, image, job.crop, job.sourceWidth, job.sourceHeight) : image;
+        job.resized = true;
+        job.xObs.put(job.imgName, job.output);
+        job.rList.setXObjects(job.xObs);
+        changedResources.add(job.rList.getCOSDictionary());
+    }
+
+    /**
+     * A new image with the dictionary of the original and the resized bits.
+     * A set bit stays set, so /Decode, /ImageMask and the colour space keep
+     * their meaning.
+     */
+    private static PDXObjectImage bilevelCopy(final PDDocument doc, COSStream original, EncodedImage encoded)
+            throws IOException {
+        COSStream copy = new PDStream(doc).getStream();
+        copy.addAll(original);
+        encoded.replaceImage(copy);
+        return (PDXObjectImage) PDXObject.createXObject(copy);
+    }
+
+    /**
+     * Wraps the cropped part of an image into a form that draws it where it
+     * was inside the unit square of the whole image. The form takes the
+     * place of the image in the resources, so the <code>cm</code> operators
+     * in the content streams stay as they are.
+     *
+     * @param crop x0, y0, x1, y1 of the part, in pixels from the top left
+     */
+    private static PDXObjectForm cropForm(final PDDocument doc, PDXObjectImage image, int[] crop, int width,
+            int height) throws IOException {
+        double x = (double) crop[0] / width;
+        double y = 1 - (double) crop[3] / height;
+        double w = (double) (crop[2] - crop[0]) / width;
+        double h = (double) (crop[3] - crop[1]) / height;
+        String content = String.format(Locale.ROOT, "q %.6f 0 0 %.6f %.6f %.6f cm /Im Do Q", w, h, x, y);
+
+        PDStream stream = new PDStream(doc, new ByteArrayInputStream(content.getBytes("ISO-8859-1")), false);
+        COSStream form = stream.getStream();
+        form.setItem(COSName.TYPE, COSName.XOBJECT);
+        form.setItem(COSName.SUBTYPE, COSName.FORM);
+        COSArray bbox = new COSArray();
+        bbox.add(COSInteger.get(0));
+        bbox.add(COSInteger.get(0));
+        bbox.add(COSInteger.get(1));
+        bbox.add(COSInteger.get(1));
+        form.setItem(COSName.getPDFName("BBox"), bbox);
+        COSDictionary xObjects = new COSDictionary();
+        xObjects.setItem(COSName.getPDFName("Im"), image.getCOSStream());
+        COSDictionary resources = new COSDictionary();
+        resources.setItem(COSName.XOBJECT, xObjects);
+        form.setItem(COSName.RESOURCES, resources);
+        return new PDXObjectForm(stream);
+    }
+
+    /**
+     * For -incremental: flags every object on the way from the catalog to
+     * the changed resources, because the writer of an incremental update
+     * only descends into flagged objects. Forms on the way are written
+     * again, content included.
+     */
+    private void markForUpdate(PDDocument doc) throws IOException {
+        boolean changed = false;
+        List<?> pages = doc.getDocumentCatalog().getAllPages();
+        for (int i = 0; i < pages.size(); i++) {
+            if (!(pages.get(i) instanceof PDPage))
+                continue;
+            PDPage page = (PDPage) pages.get(i);
+            if (!markForUpdate(page.getResources()))
+                continue;
+            COSBase node = page.getCOSDictionary();
+            while (node instanceof COSDictionary && !node.isNeedToBeUpdate()) {
+                node.setNeedToBeUpdate(true);
+                node = ((COSDictionary) node).getDictionaryObject(COSName.PARENT);
+            }
+            changed = true;
+        }
+        if (changed) {
+            doc.getDocumentCatalog().getCOSDictionary().setNeedToBeUpdate(true);
+        }
+    }
+
+    /**
+     * @return true if these resources or those of a form in them changed
+     */
+    private boolean markForUpdate(PDResources rList) throws IOException {
+        if (rList == null) {
+            return false;
+        }
+        boolean changed = changedResources.contains(rList.getCOSDictionary());
+        for (PDXObject xObj : rList.getXObjects().values()) {
+            if (xObj instanceof PDXObjectForm && markForUpdate(((PDXObjectForm) xObj).getResources())) {
+                xObj.getCOSStream().setNeedToBeUpdate(true);
+                changed = true;
+            }
+        }
+        if (changed) {
+            rList.getCOSDictionary().setNeedToBeUpdate(true);
+            COSBase xObjects = rList.getCOSDictionary().getDictionaryObject(COSName.XOBJECT);
+            if (xObjects != null) {
+                xObjects.setNeedToBeUpdate(true);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Points the replacement of an image to the masks of the original, which
+     * are resized by jobs of their own. A /Mask colour key array is dropped,
+     * the colours it names may not survive the recompression.
+     */
+    private static void keepMasks(COSStream original, COSStream replacement) {
+        COSBase smask = original.getDictionaryObject(COSName.SMASK);
+        if (smask instanceof COSStream && replacement.getDictionaryObject(COSName.SMASK) == null)
+            replacement.setItem(COSName.SMASK, smask);
+        COSBase mask = original.getDictionaryObject(COSName.MASK);
+        if (mask instanceof COSStream)
+            replacement.setItem(COSName.MASK, mask);
+    }
+
+    private void finishShrink(final PDDocument doc) throws IOException {
+        while (!pending.isEmpty()) {
+            applyShrink(doc, pending.removeFirst());
+        }
+    }
+
+    /**
+     * Copies the raw image stream into private storage, so that decoding it on a
+     * worker thread does not write into the scratch area shared by the document.
+     * The masks are left out: they are resized on their own (see
+     * {@link #maskShrink}), and the decoder would blend them into the image.
+     */
+    private static PDXObjectImage detach(final PDDocument doc, PDXObjectImage img) throws IOException {
+        synchronized (doc) {
+            COSStream source = img.getCOSStream();
+            COSStream copy = new COSStream(new RandomAccessBuffer());
+            copy.addAll(source);
+            copy.removeItem(COSName.SMASK);
+            copy.removeItem(COSName.MASK);
+
+            InputStream is = source.getFilteredStream();
+            OutputStream os = copy.createFilteredStream();
+            byte[] buffer = new byte[65536];
+            int amountRead;
+            while ((amountRead = is.read(buffer)) != -1) {
+                os.write(buffer, 0, amountRead);
+            }
+            os.close();
+            is.close();
+
+            return (PDXObjectImage) PDXObject.createXObject(copy);
+        }
+    }
+
+    /**
+     * Decodes, resizes and encodes one image. Runs on a worker thread and must
+     * not touch the document.
+     */
+    private class ShrinkJob implements Callable<EncodedImage> {
+        final PDResources rList;
+        final Map<String, PDXObject> xObs;
+        final String imgName;
+        final String imageName;
+
+        PDXObjectImage source;
+        String suffix;
+        int sourceWidth, sourceHeight;
+        int width, height;
+        Future<EncodedImage> future;
+        int decodeScale = 1;
+        boolean streamed;
+        boolean cached;
+        /** rewrite the jpeg losslessly instead of resizing it */
+        boolean optimize;
+        /** already encoded while searching for -maxSize settings */
+        EncodedImage presized;
+        /** largest size in bytes of the replacement, one less than the original */
+        long limit = SizeCappedOutputStream.NO_LIMIT;
+        /** the encoder passed the limit, the original stays */
+        boolean notSmaller;
+        /** a /SMask or /Mask, rewritten in its own stream */
+        boolean mask;
+        /** a 1 bit image or mask, it stays 1 bit */
+        boolean bilevel;
+        /** the image was replaced by the resized one, known once the job is applied */
+        boolean resized;
+        /** x0, y0, x1, y1 of the source that is kept, in pixels from the top left; null for all of it */
+        int[] crop;
+        final Metrics.Image metrics = new Metrics.Image();
+
+        /** image (or form, if it was cropped) that replaces this one, the original if it was not changed */
+        PDXObject output;
+        /** earlier job for an image with the same content */
+        ShrinkJob original;
+
+        ShrinkJob(PDResources rList, Map<String, PDXObject> xObs, String imgName, String imageName) {
+            this.rList = rList;
+            this.xObs = xObs;
+            this.imgName = imgName;
+            this.imageName = imageName;
+            metrics.name = imageName;
+            metrics.page = currentPage;
+        }
+
+        /**
+         * Drops the source copy and the result once the output is in place.
+         * The job stays in producers for later duplicates, which only need
+         * the output.
+         */
+        void release() {
+            source = null;
+            future = null;
+            presized = null;
+        }
+
+        public EncodedImage call() throws IOException {
+            if (!"jpg".equals(suffix) && !"png".equals(suffix))
+                return null;
+
+            if (optimize)
+                return optimizeJpeg();
+
+            EncodedImage encoded;
+            try {
+                encoded = (cache != null) ? encodeCached() : encodeOrReuse();
+            } catch (SizeCappedOutputStream.LimitExceededException e) {
+                encoded = null;
+            }
+            if (encoded == null || encoded.getLength() > limit) {
+                notSmaller = true;
+                source.clear();
+                return null;
+            }
+            return encoded;
+        }
+
+        private EncodedImage encodeCached() throws IOException {
+            String key = cache.key(source.getCOSStream(), suffix, width, height,
+                    "q=" + opts.quality + " flate=" + opts.flateLevel + " filter=" + opts.filter + " stream=" + opts.streamAbove
+                    + (mask ? " mask" : "") + (bilevel ? " bilevel" : "")
+                    + ((crop != null) ? " crop=" + crop[0] + "," + crop[1] + "," + crop[2] + "," + crop[3] : ""));
+            EncodedImage encoded = cache.get(key);
+            if (encoded != null) {
+                cached = true;
+                source.clear();
+                return encoded;
+            }
+
+            encoded = encodeOrReuse();
+            try {
+                cache.put(key, encoded);
+            } catch (IOException e) {
+                Log.warn("could not write to cache: " + e.getMessage());
+            }
+            return encoded;
+        }
+
+        /**
+         * @return the jpeg with optimal huffman tables, or null if that is not
+         *         smaller or the jpeg is of a kind the optimizer does not handle.
+         */
+        private EncodedImage optimizeJpeg() throws IOException {
+            long start = System.nanoTime();
+            byte[] jpeg = PlacementAnalyzer.readAll(source.getCOSStream().getFilteredStream());
+            source.clear();
+
+            byte[] optimized;
+            try {
+                optimized = new JpegOptimizer(opts.progressive).optimize(jpeg);
+            } catch (IOException e) {
+                return null;
+            } finally {
+                metrics.encodeNanos = System.nanoTime() - start;
+            }
+            if (optimized.length >= jpeg.length)
+                return null;
+            int components = new JpegParser(new ByteArrayInputStream(optimized)).components.length;
+            return new EncodedImage(EncodedImage.JPG, optimized, width, height, 8, components);
+        }
+
+        private EncodedImage encodeOrReuse() throws IOException {
+            if (presized != null && presized.getWidth() == width && presized.getHeight() == height) {
+                source.clear();
+                return presized;
+            }
+            return encode();
+        }
+
+        private EncodedImage encode() throws IOException {
+            long start = System.nanoTime();
+            if (mask || bilevel) {
+                EncodedImage encoded = shrinkMask();
+                metrics.encodeNanos = System.nanoTime() - start;
+                return encoded;
+            }
+            if (opts.streamAbove >= 0 && (double) sourceWidth * sourceHeight > opts.streamAbove * 1e6) {
+                EncodedImage encoded = streamShrink();
+                if (encoded != null) {
+                    metrics.encodeNanos = System.nanoTime() - start;
+                    return encoded;
+                }
+            }
+
+            BufferedImage imageSmall = decodeAndResize();
+            long resampled = System.nanoTime();
+            EncodedImage encoded = "jpg".equals(suffix) ? makeJpeg(imageSmall, opts.quality, limit)
+                    : makePng(imageSmall, limit);
+            metrics.encodeNanos = System.nanoTime() - resampled;
+            return encoded;
+        }
+
+        /**
+         * Decodes the source (at a reduced scale if that is possible) and
+         * resamples it to the target size.
+         */
+        private BufferedImage decodeAndResize() throws IOException {
+            long start = System.nanoTime();
+            BufferedImage image = null;
+            if ("jpg".equals(suffix)) {
+                image = decodeJpegScaled();
+            }
+            if (image == null) {
+                image = source.getRGBImage();
+            }
+            source.clear();
+            if (crop != null) {
+                // the jpeg may have been decoded at a reduced scale
+                int[] r = scaledCrop(image.getWidth(), image.getHeight());
+                image = image.getSubimage(r[0], r[1], r[2] - r[0], r[3] - r[1]);
+            }
+            long decoded = System.nanoTime();
+            metrics.decodeNanos = decoded - start;
+
+            BufferedImage imageSmall = image;
+            if (image.getWidth() != width || image.getHeight() != height) {
+                imageSmall = resizedImage(width, height, image);
+            }
+            metrics.resampleNanos = System.nanoTime() - decoded;
+            return imageSmall;
+        }
+
+        /**
+         * Decodes a plain DCT encoded image directly at 1/2, 1/4 or 1/8 of its
+         * size if the target is at least that small.
+         *
+         * @return the image, or null if the jpeg (or its dictionary) is not
+         *         something the scaled decoder can handle.
+         */
+        private BufferedImage decodeJpegScaled() throws IOException {
+            int scale = JpegScaledDecoder.chooseScale(sourceWidth, sourceHeight, fullWidth(), fullHeight());
+            if (scale == 1)
+                return null;
+
+            InputStream is = source.getCOSStream().getFilteredStream();
+            try {
+                JpegScaledDecoder decoder = openJpeg(is, scale);
+                if (decoder == null)
+                    return null;
+                BufferedImage image = decoder.decode();
+                decodeScale = scale;
+                return image;
+            } catch (IOException e) {
+                // unsupported kind of jpeg, take the long way
+                return null;
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * @return the scaled decoder, or null if the dictionary describes
+         *         something other than a plain gray or RGB jpeg.
+         */
+        private JpegScaledDecoder openJpeg(InputStream is, int scale) throws IOException {
+            COSStream stream = source.getCOSStream();
+            if (!COSName.DCT_DECODE.equals(singleFilter(stream)) || !isPlainImage(stream))
+                return null;
+
+            Boolean colorTransform = null;
+            COSDictionary parms = decodeParms(stream);
+            if (parms != null) {
+                COSBase transform = parms.getDictionaryObject(COSName.getPDFName("ColorTransform"));
+                if (transform instanceof COSNumber)
+                    colorTransform = ((COSNumber) transform).intValue() != 0;
+            }
+            return new JpegScaledDecoder(is, scale, colorTransform);
+        }
+
+        /**
+         * @return the width the whole source would get, the same as width
+         *         unless the image is cropped
+         */
+        private int fullWidth() {
+            return (crop != null) ? (int) ((long) width * sourceWidth / (crop[2] - crop[0])) : width;
+        }
+
+        private int fullHeight() {
+            return (crop != null) ? (int) ((long) height * sourceHeight / (crop[3] - crop[1])) : height;
+        }
+
+        /**
+         * @return the crop region for the source decoded at width x height,
+         *         which is less than its full size after a scaled jpeg decode
+         */
+        private int[] scaledCrop(int decodedWidth, int decodedHeight) {
+            int x0 = (int) ((long) crop[0] * decodedWidth / sourceWidth);
+            int y0 = (int) ((long) crop[1] * decodedHeight / sourceHeight);
+            int x1 = (int) (((long) crop[2] * decodedWidth + sourceWidth - 1) / sourceWidth);
+            int y1 = (int) (((long) crop[3] * decodedHeight + sourceHeight - 1) / sourceHeight);
+            return new int[] { x0, y0, Math.max(Math.min(x1, decodedWidth), x0 + 1),
+                    Math.max(Math.min(y1, decodedHeight), y0 + 1) };
+        }
+
+        /**
+         * Resizes a mask or a 1 bit image strip by strip. The box filter
+         * averages the coverage without the overshoot of the sharper filters,
+         * which would show as halos around the edges. 1 bit sources are
+         * thresholded again and written as CCITT G4 (or 1 bit Flate), so
+         * /ImageMask and /Decode keep their meaning; soft masks stay gray, as
+         * jpeg if they were jpeg before, else as 8 bit Flate.
+         */
+        private EncodedImage shrinkMask() throws IOException {
+            COSStream stream = source.getCOSStream();
+            boolean dct = COSName.DCT_DECODE.equals(singleFilter(stream));
+            InputStream is = stream.getFilteredStream();
+            try {
+                RowSource rows;
+                if (dct) {
+                    int scale = JpegScaledDecoder.chooseScale(sourceWidth, sourceHeight, width, height);
+                    try {
+                        rows = new JpegScaledDecoder(is, scale, null);
+                        decodeScale = scale;
+                    } catch (IOException e) {
+                        // unsupported kind of jpeg, take the long way
+                        rows = new BufferedImageRows(source.getRGBImage(), 1);
+                    }
+                } else if (bilevel) {
+                    int rowLength = (sourceWidth + 7) / 8;
+                    rows = new BilevelRows(new FlateRowSource(is, singleFilter(stream) != null,
+                            flatePredictor(stream, 1, 1, sourceWidth), rowLength, sourceHeight, 1), sourceWidth);
+                } else {
+                    rows = new FlateRowSource(is, singleFilter(stream) != null,
+                            flatePredictor(stream, 1, 8, sourceWidth), sourceWidth, sourceHeight, 1);
+                }
+
+                if (rows.getWidth() != width || rows.getHeight() != height) {
+                    rows = new StreamingResampler(rows, width, height, Resampler.Filter.BOX);
+                }
+                streamed = true;
+
+                EncodedImage encoded;
+                if (bilevel)
+                    encoded = makeBilevelMask(rows, limit);
+                else if (dct)
+                    encoded = makeJpeg(rows, opts.quality, limit);
+                else
+                    encoded = makePng(rows, limit);
+                source.clear();
+                return encoded;
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * Decodes, resizes and encodes strip by strip, so that only a few rows
+         * of the source and of the result are in memory at any time.
+         *
+         * @return the encoded image, or null if the source can not be streamed.
+         */
+        private EncodedImage streamShrink() throws IOException {
+            COSStream stream = source.getCOSStream();
+            COSBase filter = singleFilter(stream);
+            if (!isPlainImage(stream))
+                return null;
+
+            InputStream is = stream.getFilteredStream();
+            try {
+                RowSource rows = null;
+                if (COSName.DCT_DECODE.equals(filter)) {
+                    int scale = JpegScaledDecoder.chooseScale(sourceWidth, sourceHeight, fullWidth(), fullHeight());
+                    try {
+                        rows = openJpeg(is, scale);
+                    } catch (IOException e) {
+                        return null;
+                    }
+                    if (rows != null)
+                        decodeScale = scale;
+                } else if ((filter == null || COSName.FLATE_DECODE.equals(filter))
+                        && stream.getInt(COSName.BITS_PER_COMPONENT) == 8) {
+                    int components = COSName.DEVICEGRAY.equals(stream.getDictionaryObject(COSName.COLORSPACE)) ? 1 : 3;
+                    int predictor = flatePredictor(stream, components, 8, sourceWidth);
+                    if (predictor < 0)
+                        return null;
+                    rows = new FlateRowSource(is, filter != null, predictor, sourceWidth, sourceHeight, components);
+                }
+                if (rows == null)
+                    return null;
+
+                if (crop != null) {
+                    int[] r = scaledCrop(rows.getWidth(), rows.getHeight());
+                    rows = new CroppedRows(rows, r[0], r[1], r[2], r[3]);
+                }
+                if (rows.getWidth() != width || rows.getHeight() != height) {
+                    rows = new StreamingResampler(rows, width, height, opts.filter);
+                }
+                streamed = true;
+
+                EncodedImage encoded = "jpg".equals(suffix) ? makeJpeg(rows, opts.quality, limit) : makePng(rows, limit);
+                source.clear();
+                return encoded;
+            } finally {
+                is.close();
             }
         }
+    }
+
+    private static COSBase singleFilter(COSStream stream) {
+        COSBase filters = stream.getFilters();
+        if (filters instanceof COSArray && ((COSArray) filters).size() == 1)
+            filters = ((COSArray) filters).getObject(0);
+        if (filters instanceof COSArray && ((COSArray) filters).size() == 0)
+            filters = null;
+        return filters;
+    }
+
+    private static boolean isDct(COSBase filter) {
+        return COSName.DCT_DECODE.equals(filter) || COSName.DCT_DECODE_ABBREVIATION.equals(filter);
+    }
+
+    private static COSDictionary decodeParms(COSStream stream) {
+        COSBase parms = stream.getDictionaryObject(COSName.DECODE_PARMS);
+        if (parms instanceof COSArray && ((COSArray) parms).size() == 1)
+            parms = ((COSArray) parms).getObject(0);
+        return (parms instanceof COSDictionary) ? (COSDictionary) parms : null;
+    }
 
-        return img;
+    /**
+     * @return true for DeviceGray or DeviceRGB images without a /Decode array.
+     */
+    private static boolean isPlainImage(COSStream stream) {
+        COSBase colorSpace = stream.getDictionaryObject(COSName.COLORSPACE);
+        if (!COSName.DEVICERGB.equals(colorSpace) && !COSName.DEVICEGRAY.equals(colorSpace))
+            return false;
+        return stream.getDictionaryObject(COSName.DECODE) == null;
     }
 
+
     private String imageInfo(PDXObjectImage img, String imageName) {
         StringBuilder info = new StringBuilder();
         info.append(img.getPDStream().getLength());
         info.append(" ");
         
-        info.append((int) (resolutions.get(imageName).floatValue()));
+        Float resolution = registry.getResolution(img.getCOSStream());
+        info.append((resolution != null) ? (int) resolution.floatValue() : 0);
         info.append(" ");
         
         info.append(img.getWidth());
@@ -198,71 +1446,518 @@ public class PDFPicMangler
         return info.toString();
     }
 
-    private BufferedImage resizedImage(int width, int height, Image image) {
-        // get rescaled image
-        Image imageSmall = image.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
-        // render rescaled image into buffer
-        BufferedImage imageSmallBuffer = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
-        Graphics g = imageSmallBuffer.getGraphics();
-        g.drawImage(imageSmall, 0, 0, null);
-        g.dispose();
+    /**
+     * @return how many threads a single image may use, on the blockExecutor
+     */
+    private int imageThreads() {
+        // with several images (-threads) or documents (-jobs) in flight, the cores are already busy
+        if (opts.threads > 1)
+            return 1;
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / opts.jobs);
+    }
 
-        return imageSmallBuffer;
+    BufferedImage resizedImage(int width, int height, BufferedImage image) {
+        return new Resampler(opts.filter, imageThreads(), blockExecutor).resize(image, width, height);
     }
 
-    private PDPixelMap makePng(BufferedImage image, final PDDocument doc) throws IOException {
-        // TODO use better compression lib here
-        return new PDPixelMap(doc, image);
+    EncodedImage makePng(BufferedImage image) throws IOException {
+        return makePng(image, SizeCappedOutputStream.NO_LIMIT);
     }
-    
-    private PDJpeg makeJpeg(BufferedImage image, final PDDocument doc) throws IOException {     
-        PDJpeg jpg = new PDJpeg(doc, image, (float) opts.quality);
-        return jpg;
+
+    /**
+     * Writes the image with as few colours as it needs: black and white as
+     * CCITT G4, gray as 8 bit gray, up to 256 colours as /Indexed.
+     *
+     * @param limit largest size in bytes, beyond it the encoder gives up with
+     *        {@link SizeCappedOutputStream.LimitExceededException}
+     */
+    EncodedImage makePng(BufferedImage image, long limit) throws IOException {
+        if (image.getColorModel().hasAlpha()) {
+            return makeWithAlpha(image, false, 0, limit);
+        }
+        ColorAnalyzer.Colors colors = new ColorAnalyzer(imageThreads(), blockExecutor).analyze(image);
+        if (colors.isBilevel()) {
+            return makeBilevel(image, limit);
+        }
+        if (colors.isGray()) {
+            return makePng(new BufferedImageRows(image, 1), limit);
+        }
+        if (colors.getPalette() != null) {
+            return makeIndexed(image, colors.getPalette(), colors.getIndexBits(), true, limit);
+        }
+        return makePng(new BufferedImageRows(image), limit);
+    }
+
+    /**
+     * Compresses a black and white image with CCITT G4, or as 1 bit Flate
+     * in the rare case (e.g. dithering) that G4 ends up larger than the bits.
+     */
+    private EncodedImage makeBilevel(BufferedImage image, long limit) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = (width + 7) / 8;
+
+        CcittEncoder encoder = new CcittEncoder(width, Math.min(limit, (long) rowLength * height));
+        byte[] gray = new byte[width];
+        byte[] packed = new byte[rowLength];
+        try {
+            for (int y = 0; y < height; y++) {
+                Resampler.readRow(image, y, gray, 1);
+                Arrays.fill(packed, (byte) 0);
+                for (int x = 0; x < width; x++) {
+                    if (gray[x] != 0)
+                        packed[x >> 3] |= 0x80 >> (x & 7);
+                }
+                encoder.writeRow(packed);
+            }
+            return new EncodedImage(EncodedImage.CCITT, encoder.finish(), width, height, 1, 1);
+        } catch (SizeCappedOutputStream.LimitExceededException e) {
+            // 0 is black in DeviceGray
+            return makeIndexed(image, new int[] { 0x000000, 0xffffff }, 1, false, limit);
+        }
     }
 
-    private static PDDocument openDocument(String fileName) throws IOException {
+    /**
+     * Thresholds gray rows at half coverage and compresses the bits as CCITT
+     * G4 and as 1 bit Flate at the same time, since the rows can not be read
+     * twice; the smaller one wins. The bits keep their values, a set bit
+     * stays a set bit.
+     */
+    private EncodedImage makeBilevelMask(RowSource image, long limit) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = (width + 7) / 8;
+
+        CcittEncoder ccitt = new CcittEncoder(width, limit);
+        FlateEncoder flate = new FlateEncoder(rowLength, 1, false, opts.flateLevel, blockExecutor, limit);
+        byte[] gray = new byte[width];
+        byte[] packed = new byte[rowLength];
+        for (int y = 0; y < height; y++) {
+            image.readRow(gray);
+            Arrays.fill(packed, (byte) 0);
+            for (int x = 0; x < width; x++) {
+                if ((gray[x] & 0xff) >= 128)
+                    packed[x >> 3] |= 0x80 >> (x & 7);
+            }
+            if (ccitt != null) {
+                try {
+                    ccitt.writeRow(packed);
+                } catch (SizeCappedOutputStream.LimitExceededException e) {
+                    ccitt = null;
+                }
+            }
+            if (flate != null) {
+                try {
+                    flate.writeRow(packed);
+                } catch (SizeCappedOutputStream.LimitExceededException e) {
+                    flate = null;
+                }
+            }
+            if (ccitt == null && flate == null)
+                throw new SizeCappedOutputStream.LimitExceededException(limit);
+        }
+
+        byte[] g4 = null;
+        if (ccitt != null) {
+            try {
+                g4 = ccitt.finish();
+            } catch (SizeCappedOutputStream.LimitExceededException e) {
+                g4 = null;
+            }
+        }
+        byte[] bits = null;
+        if (flate != null) {
+            try {
+                bits = flate.finish();
+            } catch (SizeCappedOutputStream.LimitExceededException e) {
+                bits = null;
+            }
+        }
+        if (g4 != null && (bits == null || g4.length <= bits.length))
+            return new EncodedImage(EncodedImage.CCITT, g4, width, height, 1, 1);
+        if (bits == null)
+            throw new SizeCappedOutputStream.LimitExceededException(limit);
+        return new EncodedImage(EncodedImage.PNG, bits, width, height, 1, 1);
+    }
+
+    /**
+     * Packs each pixel as its index into the palette, without predictors.
+     *
+     * @param indexed false to write DeviceGray, the palette then maps the
+     *        gray values (0 = black) to the colours of the image.
+     */
+    private EncodedImage makeIndexed(BufferedImage image, int[] palette, int bits, boolean indexed, long limit)
+            throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = (width * bits + 7) / 8;
+        ColorAnalyzer.ColorTable table = new ColorAnalyzer.ColorTable(palette);
+
+        FlateEncoder encoder = new FlateEncoder(rowLength, 1, false, opts.flateLevel, blockExecutor, limit);
+        byte[] rgb = new byte[3 * width];
+        byte[] packed = new byte[rowLength];
+        for (int y = 0; y < height; y++) {
+            Resampler.readRow(image, y, rgb, 3);
+            Arrays.fill(packed, (byte) 0);
+            for (int x = 0, p = 0; x < width; x++, p += 3) {
+                int index = table.indexOf(((rgb[p] & 0xff) << 16) | ((rgb[p + 1] & 0xff) << 8) | (rgb[p + 2] & 0xff));
+                int bit = x * bits;
+                packed[bit >> 3] |= index << (8 - bits - (bit & 7));
+            }
+            encoder.writeRow(packed);
+        }
+
+        if (!indexed) {
+            return new EncodedImage(EncodedImage.PNG, encoder.finish(), width, height, bits, 1);
+        }
+        byte[] lookup = new byte[3 * palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            lookup[3 * i] = (byte) (palette[i] >> 16);
+            lookup[3 * i + 1] = (byte) (palette[i] >> 8);
+            lookup[3 * i + 2] = (byte) palette[i];
+        }
+        return new EncodedImage(EncodedImage.PNG, encoder.finish(), width, height, bits, 1, 1, lookup);
+    }
+
+    private EncodedImage makePng(RowSource image, long limit) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int components = image.getComponents();
+
+        FlateEncoder encoder = new FlateEncoder(width * components, components, true, opts.flateLevel,
+                blockExecutor, limit);
+
+        byte[] row = new byte[components * width];
+        for (int y = 0; y < height; y++) {
+            image.readRow(row);
+            encoder.writeRow(row);
+        }
+
+        return new EncodedImage(EncodedImage.PNG, encoder.finish(), width, height, 8, components, 15);
+    }
+
+    /**
+     * Encodes the colours like any other image, as jpeg or as 8 bit Flate,
+     * and the alpha channel as a gray soft mask, in one pass over the image.
+     * The mask is dropped again if it turns out that nothing is transparent.
+     */
+    private EncodedImage makeWithAlpha(BufferedImage image, boolean jpeg, double quality, long limit)
+            throws IOException {
+        boolean gray = new ColorAnalyzer(imageThreads(), blockExecutor).analyze(image).isGray();
+        FlateEncoder maskEncoder = new FlateEncoder(image.getWidth(), 1, true, opts.flateLevel, blockExecutor, limit);
+        AlphaSplitter rows = new AlphaSplitter(new BufferedImageRows(image, gray ? 2 : 4), maskEncoder);
+
+        EncodedImage color;
+        try {
+            color = jpeg ? makeJpeg(rows, quality, limit) : makePng(rows, limit);
+        } catch (IOException e) {
+            maskEncoder.abort();
+            throw e;
+        }
+        EncodedImage mask = rows.finishMask();
+        return rows.isOpaque() ? color : color.withMask(mask);
+    }
+
+    /**
+     * Streaming counterpart of {@link #makeJpeg(BufferedImage, double, long)}:
+     * encodes the rows as they come, without holding the image.
+     */
+    private EncodedImage makeJpeg(RowSource image, double quality, long limit) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int components = image.getComponents();
+
+        SizeCappedOutputStream bytes = new SizeCappedOutputStream(limit);
+        JpegEncoder encoder = new JpegEncoder(bytes, width, height, components, (float) quality);
+
+        byte[] row = new byte[components * width];
+        for (int y = 0; y < height; y++) {
+            image.readRow(row);
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+
+        return new EncodedImage(EncodedImage.JPG, bytes.toByteArray(), width, height, 8, components);
+    }
+
+    EncodedImage makeJpeg(BufferedImage image) throws IOException {
+        return makeJpeg(image, opts.quality, SizeCappedOutputStream.NO_LIMIT);
+    }
+
+    /**
+     * @param limit largest size in bytes, beyond it the encoder gives up with
+     *        {@link SizeCappedOutputStream.LimitExceededException}
+     */
+    EncodedImage makeJpeg(BufferedImage image, double quality, long limit) throws IOException {
+        if (image.getColorModel().hasAlpha()) {
+            return makeWithAlpha(image, true, quality, limit);
+        }
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY
+                && new ColorAnalyzer(imageThreads(), blockExecutor).analyze(image).isGray()) {
+            image = toGray(image);
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality((float) quality);
+
+        SizeCappedOutputStream bytes = new SizeCappedOutputStream(limit);
+        ImageOutputStream os = bytes.asImageOutputStream();
+        try {
+            writer.setOutput(os);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            os.close();
+        }
+
+        int components = (image.getType() == BufferedImage.TYPE_BYTE_GRAY) ? 1 : 3;
+        return new EncodedImage(EncodedImage.JPG, bytes.toByteArray(), image.getWidth(), image.getHeight(), 8, components);
+    }
+
+    private static BufferedImage toGray(BufferedImage image) {
+        int width = image.getWidth();
+        BufferedImage gray = new BufferedImage(width, image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        byte[] row = new byte[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            Resampler.readRow(image, y, row, 1);
+            gray.getRaster().setDataElements(0, y, width, 1, row);
+        }
+        return gray;
+    }
+
+    /**
+     * With -lowMem the document is parsed on demand (only the xref table is
+     * read up front) and stream data goes to a scratch file, so the heap
+     * holds little more than the objects in use.
+     */
+    private PDDocument openDocument(String fileName) throws IOException {
+        if (opts.lowMemory) {
+            scratchFile = File.createTempFile("pdfpicmangler", ".scratch");
+            scratchFile.deleteOnExit();
+            return PDDocument.loadNonSeq(new File(fileName),
+                    new org.apache.pdfbox.io.RandomAccessFile(scratchFile, "rw"));
+        }
         final FileInputStream fis = new FileInputStream(fileName);
         final PDFParser parser = new PDFParser(fis);
         parser.parse();
         return parser.getPDDocument();
     }
 
-    public static void main(String[] args) {
-        if (args.length == 0) {
-            Options.usage();
-            return;
-            
+    public PDFPicMangler() {
+    }
+
+    public PDFPicMangler(Options opts) {
+        this.opts = opts;
+    }
+
+    /**
+     * Runs the whole pipeline on one document. With -maxSize, an output that
+     * still misses the budget (the search only predicts the size) is made
+     * again from the input, searching from one resolution step lower.
+     */
+    public void mangle(String inputFileName, String outputFileName) throws IOException, COSVisitorException {
+        Options requested = opts;
+        try {
+            mangleOnce(inputFileName, outputFileName);
+            while (requested.maxSize > 0 && requested.doShrink
+                    && metrics.outputBytes > requested.maxSize * 1024 * 1024
+                    && opts.resolution * RESOLUTION_STEP >= MIN_SEARCH_RESOLUTION) {
+                Options used = opts;
+                opts = requested.copy();
+                opts.resolution = used.resolution * RESOLUTION_STEP;
+                opts.resolutionThreshold = used.resolutionThreshold * RESOLUTION_STEP;
+                Log.println(String.format(Locale.ROOT, "maxSize: %d bytes with %s, trying again below",
+                        metrics.outputBytes, metrics.settings));
+                mangleOnce(inputFileName, outputFileName);
+            }
+            if (requested.maxSize > 0 && metrics.outputBytes > requested.maxSize * 1024 * 1024) {
+                Log.warn(outputFileName + " is " + metrics.outputBytes + " bytes, more than -maxSize");
+            }
+        } finally {
+            opts = requested;
         }
-        
-        
-        
-        PDFPicMangler mangler = new PDFPicMangler();
-        
-        mangler.opts.read(args);
-        
-        System.out.println("opening file " + mangler.opts.pdfFileName);
-        
+    }
+
+    private void mangleOnce(String inputFileName, String outputFileName) throws IOException, COSVisitorException {
+        Log.println("opening file " + inputFileName);
+
+        presized = null;
+        liftedImages.clear();
+        changedResources.clear();
+        metrics = new Metrics();
+        metrics.file = inputFileName;
+        metrics.inputBytes = metrics.outputBytes = new File(inputFileName).length();
+
+        PDDocument doc = openDocument(inputFileName);
         try {
+            long start = System.nanoTime();
+            if (opts.doShrink && opts.liftInline) {
+                liftInlineImages(doc);
+            }
+            ImageRegistry registry;
+            if (opts.engineAnalyzer) {
+                registry = new ResolutionAnalyzer().analyze(doc);
+            } else {
+                registry = new PlacementAnalyzer(opts.threads).analyze(doc);
+            }
+            long analyzed = System.nanoTime();
+            metrics.analyzeNanos = analyzed - start;
 
-            PDDocument doc = openDocument(mangler.opts.pdfFileName);
+            Log.println("--------------------------------------------");
 
-            ResolutionAnalyzer occurences = new ResolutionAnalyzer();
+            doc = process(doc, registry);
+            long processed = System.nanoTime();
+            metrics.processNanos = processed - analyzed;
 
-            Map<String, Float> cache = occurences.analyze(doc);
+            Log.println("--------------------------------------------");
 
-            System.out.println("--------------------------------------------");
+            if(opts.doShrink || opts.doImport) {
+                Log.println("writing to " + outputFileName);
+                if (opts.incremental) {
+                    saveIncremental(doc, inputFileName, outputFileName);
+                } else {
+                    doc.save(outputFileName);
+                }
+                metrics.saveNanos = System.nanoTime() - processed;
+                metrics.outputBytes = new File(outputFileName).length();
+            }
+        } finally {
+            doc.close();
+            if (scratchFile != null) {
+                scratchFile.delete();
+                scratchFile = null;
+            }
+        }
+    }
 
-            doc = mangler.process(doc, cache);
+    /**
+     * Moves inline images that are worth shrinking into XObjects, before the
+     * analysis, so that they are found and shrunk like all others.
+     */
+    private void liftInlineImages(PDDocument doc) throws IOException {
+        double threshold = opts.resolutionThreshold;
+        if (opts.maxSize > 0) {
+            // the search may lower the threshold down to this
+            threshold = threshold * MIN_SEARCH_RESOLUTION / opts.resolution;
+        }
+        InlineImageLifter lifter = new InlineImageLifter(doc, threshold);
+        if (lifter.lift() > 0) {
+            changedResources.addAll(lifter.getChangedResources());
+            liftedImages.addAll(lifter.getLiftedImages());
+        }
+    }
 
-            System.out.println("--------------------------------------------");
+    /**
+     * Copies the input and appends the changed objects and a new xref
+     * section, so that the time to write depends on the changes only.
+     * PDFBox only writes the appended part, the copy is made here first.
+     * The result is opened again and its first page rendered; if that
+     * fails, the whole document is written instead.
+     */
+    private void saveIncremental(PDDocument doc, String inputFileName, String outputFileName)
+            throws IOException, COSVisitorException {
+        File inputFile = new File(inputFileName);
+        File outputFile = new File(outputFileName);
+        if (inputFile.getCanonicalFile().equals(outputFile.getCanonicalFile()))
+            throw new IOException("-incremental needs an output file other than the input");
+        markForUpdate(doc);
 
-            if(mangler.opts.doShrink || mangler.opts.doImport) {
-                System.out.println("writing to " + mangler.opts.outputFileName);
-                doc.save(mangler.opts.outputFileName);
+        copyFile(inputFile, outputFile);
+        FileInputStream input = new FileInputStream(outputFile);
+        try {
+            OutputStream output = new FileOutputStream(outputFile, true);
+            try {
+                doc.saveIncremental(input, output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+
+        try {
+            checkReadable(outputFileName, doc.getNumberOfPages());
+        } catch (IOException e) {
+            Log.warn(outputFileName + ": incremental update is not readable (" + e.getMessage()
+                    + "), writing the whole document");
+            doc.save(outputFileName);
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream is = new FileInputStream(from);
+        try {
+            OutputStream os = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[65536];
+                int amountRead;
+                while ((amountRead = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, amountRead);
+                }
+            } finally {
+                os.close();
             }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Opens a written document and renders its first page at a low
+     * resolution, which reads the trailer, the catalog and the page tree.
+     */
+    private static void checkReadable(String fileName, int pages) throws IOException {
+        FileInputStream fis = new FileInputStream(fileName);
+        PDDocument written;
+        try {
+            PDFParser parser = new PDFParser(fis);
+            parser.parse();
+            written = parser.getPDDocument();
+        } finally {
+            fis.close();
+        }
+        try {
+            List<?> allPages = written.getDocumentCatalog().getAllPages();
+            if (allPages.size() != pages)
+                throw new IOException(allPages.size() + " pages instead of " + pages);
+            if (!allPages.isEmpty())
+                ((PDPage) allPages.get(0)).convertToImage(BufferedImage.TYPE_INT_RGB, 9);
+        } catch (RuntimeException e) {
+            throw new IOException(String.valueOf(e));
+        } finally {
+            written.close();
+        }
+    }
 
+    /**
+     * @return timings and sizes of the last document.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            Options.usage();
+            return;
+            
+        }
+        
+        Options opts = new Options();
+        
+        opts.read(args);
+        Log.setQuiet(opts.quiet);
+
+        if (opts.doBatch) {
+            boolean ok = new BatchRunner(opts).run();
+            System.exit(ok ? 0 : 1);
+        }
+        
+        PDFPicMangler mangler = new PDFPicMangler(opts);
+        try {
+            mangler.mangle(opts.pdfFileName, opts.outputFileName);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -270,5 +1965,15 @@ public class PDFPicMangler
         } catch (COSVisitorException e) {
             e.printStackTrace();
         }
+
+        if (opts.reportFileName != null) {
+            MetricsReport report = new MetricsReport();
+            report.add(mangler.getMetrics());
+            try {
+                report.write(opts.reportFileName);
+            } catch (IOException e) {
+                Log.warn("could not write report: " + e.getMessage());
+            }
+        }
     }
 }
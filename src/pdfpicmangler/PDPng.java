@@ -18,10 +18,16 @@
 package pdfpicmangler;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.CRC32;
 
 import org.apache.pdfbox.cos.COSArray;
@@ -40,6 +46,19 @@ import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
 //TODO: create file from given data
 //TODO: parse and translate transparency chuck
 
+/**
+ * A png file taken over as it is: the IDAT data is already a Flate stream
+ * with PNG predictors, so it is copied into the image stream without
+ * decoding.
+ *
+ * Files are memory-mapped and the chunks are read straight from the
+ * mapping. The only copying goes through one 64 KB buffer, which feeds the
+ * checksum and the image stream in the same pass.
+ *
+ * Pngs with an alpha channel (8 bit only) are the exception: their rows are
+ * inflated once and split by an {@link AlphaSplitter} into the colour data
+ * and a /SMask image, which are both compressed again.
+ */
 public class PDPng extends PDXObjectImage
 {
     private static final byte[] PNG_MAGIC = { (byte) 137, (byte) 80, (byte) 78, (byte) 71, (byte) 13, (byte) 10,
@@ -48,8 +67,14 @@ public class PDPng extends PDXObjectImage
     private static final int PNG_TYPE_PALETTE = 1;
     private static final int PNG_TYPE_COLOR = 2;
     private static final int PNG_TYPE_ALPHA_CHANNEL = 4;
-    
-    private CRC32 checksum; 
+
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504c5445;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454e44;
+
+    private final CRC32 checksum = new CRC32();
+    private final byte[] buffer = new byte[65536];
     
     //private PDIndexed palette;
     private COSArray paldata;
@@ -58,13 +83,45 @@ public class PDPng extends PDXObjectImage
 
     private int dataLen;
 
+    private int imageHeight;
+    private int imageWidth;
+    private int bitDepth;
+
+    private int colorType;
+
+    /** offset and length of every IDAT chunk, only kept for pngs with alpha */
+    private final List<int[]> idats = new ArrayList<int[]>();
+
     public PDPng(PDStream pngStream)
     {
         super(pngStream, "png");
     }
 
     /**
-     * Construct from a stream.
+     * Construct from a file.
+     *
+     * @param doc The document to create the image as part of.
+     * @param file The png file.
+     * @throws IOException If there is an error reading the png data.
+     */
+    public PDPng(PDDocument doc, File file) throws IOException
+    {
+        super(doc, "png");
+
+        FileInputStream is = new FileInputStream(file);
+        try
+        {
+            init(doc, map(is.getChannel()));
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Construct from a stream. A FileInputStream is mapped from its current
+     * position, other streams are read into memory first.
      * 
      * @param doc The document to create the image as part of.
      * @param is The stream that contains the png data.
@@ -73,17 +130,55 @@ public class PDPng extends PDXObjectImage
     public PDPng(PDDocument doc, InputStream is) throws IOException
     {
         super(doc, "png");
-        
-        System.out.println("reading in png");
 
+        if (is instanceof FileInputStream)
+        {
+            init(doc, map(((FileInputStream) is).getChannel()));
+        }
+        else
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int amountRead;
+            while ((amountRead = is.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, amountRead);
+            }
+            init(doc, ByteBuffer.wrap(bytes.toByteArray()));
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException
+    {
+        long position = channel.position();
+        long size = channel.size() - position;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("png files larger than 2 GB are not supported");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private void init(PDDocument doc, ByteBuffer png) throws IOException
+    {
         COSDictionary dic = getCOSStream();
         
         dic.setItem(COSName.SUBTYPE, COSName.IMAGE);
         //dic.setItem(COSName.TYPE, COSName.XOBJECT);
         
+        EncodedImage mask = null;
         data = getCOSStream().createFilteredStream();
-
-        readPng(is);
+        try
+        {
+            readPng(png);
+            if (hasAlpha())
+            {
+                mask = splitAlpha(png);
+            }
+        }
+        finally
+        {
+            data.close();
+        }
         
         setWidth(imageWidth);
         setHeight(imageHeight);
@@ -114,105 +209,229 @@ public class PDPng extends PDXObjectImage
         
         dic.setInt(COSName.LENGTH, dataLen);
         dic.getDictionaryObject(COSName.LENGTH).setDirect(true);
+
+        if (mask != null)
+        {
+            dic.setItem(COSName.SMASK, mask.toXObject(doc).getCOSStream());
+        }
+
+        if (Log.enabled())
+        {
+            Log.println("png: " + imageWidth + "x" + imageHeight + ", " + bitDepth + " bit, " + dataLen + " bytes of data"
+                    + (mask != null ? ", " + mask.getLength() + " bytes of mask" : ""));
+        }
     }
 
-    private boolean readPng(InputStream is)
+    private boolean hasAlpha()
     {
-        checksum = new CRC32();
-        dataLen = 0;
-        
+        return (colorType & PNG_TYPE_ALPHA_CHANNEL) != 0;
+    }
+
+    /**
+     * Inflates the IDAT data and writes the colour rows, compressed again,
+     * to the image stream.
+     *
+     * @return the alpha channel as soft mask, or null if all of it is opaque
+     */
+    private EncodedImage splitAlpha(ByteBuffer png) throws IOException
+    {
+        int colors = (colorType & PNG_TYPE_COLOR) != 0 ? 3 : 1;
+        FlateRowSource source = new FlateRowSource(new IdatInputStream(png.duplicate()), true, 15,
+                imageWidth, imageHeight, colors + 1);
+        FlateEncoder color = new FlateEncoder(imageWidth, colors, 6, null);
+        FlateEncoder alpha = new FlateEncoder(imageWidth, 1, 6, null);
+        AlphaSplitter rows = new AlphaSplitter(source, alpha);
+
+        byte[] row = new byte[imageWidth * colors];
         try
         {
-            boolean ok = readMagic(is);
-            
-            if(!ok)
+            for (int y = 0; y < imageHeight; y++)
+            {
+                rows.readRow(row);
+                color.writeRow(row);
+            }
+        }
+        catch (IOException e)
+        {
+            color.abort();
+            alpha.abort();
+            throw e;
+        }
+        finally
+        {
+            source.close();
+        }
+
+        byte[] compressed = color.finish();
+        data.write(compressed);
+        dataLen = compressed.length;
+
+        EncodedImage mask = rows.finishMask();
+        return rows.isOpaque() ? null : mask;
+    }
+
+    /**
+     * The zlib stream that is spread over the IDAT chunks.
+     */
+    private class IdatInputStream extends InputStream
+    {
+        private final ByteBuffer png;
+        private int chunk = -1;
+        private int remaining = 0;
+
+        IdatInputStream(ByteBuffer png)
+        {
+            this.png = png;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            while (remaining == 0)
+            {
+                if (++chunk >= idats.size())
+                {
+                    return -1;
+                }
+                png.position(idats.get(chunk)[0]);
+                remaining = idats.get(chunk)[1];
+            }
+            int amount = Math.min(len, remaining);
+            png.get(b, off, amount);
+            remaining -= amount;
+            return amount;
+        }
+    }
+
+    /**
+     * Walks the chunks. Every chunk is checked against its CRC; the IDAT
+     * chunks are checked while they are copied.
+     */
+    private void readPng(ByteBuffer png) throws IOException
+    {
+        dataLen = 0;
+
+        if (png.remaining() < PNG_MAGIC.length)
+        {
+            throw new IOException("png magic not found.");
+        }
+        for (byte b : PNG_MAGIC)
+        {
+            if (png.get() != b)
             {
                 throw new IOException("png magic not found.");
             }
+        }
 
-            while (true)
+        boolean gotHeader = false;
+        while (true)
+        {
+            if (png.remaining() < 12)
+            {
+                throw new IOException("png ends without IEND chunk");
+            }
+            int chunkLen = png.getInt();
+            int typePosition = png.position();
+            int chunkType = png.getInt();
+            if (chunkLen < 0 || chunkLen > png.remaining() - 4)
             {
-                readChunkHeader(is);
-                
-                System.out.println(chunkType + " chunk, " + chunkLen + " bytes"); 
-                
-                if ("IHDR".equals(chunkType))
+                throw new IOException("truncated png chunk");
+            }
+            int end = png.position() + chunkLen;
+
+            if (chunkType == IDAT)
+            {
+                if (!gotHeader)
                 {
-                    readHeader(is);
-                    readChunkChecksum(is);
-                    continue;
+                    throw new IOException("png data before IHDR chunk");
                 }
-                if ("PLTE".equals(chunkType))
+                if (hasAlpha())
                 {
-                    readPalette(is);
-                    readChunkChecksum(is);
-                    continue;
+                    // only checked here, splitAlpha() reads it again
+                    copy(png, typePosition, chunkLen + 4, -1);
+                    idats.add(new int[] { typePosition + 4, chunkLen });
                 }
-                if ("IDAT".equals(chunkType))
+                else
                 {
-                    readData(is);
-                    readChunkChecksum(is);
+                    copy(png, typePosition, chunkLen + 4, 4);
                     dataLen += chunkLen;
-                    continue;
                 }
-                if ("IEND".equals(chunkType))
+            }
+            else
+            {
+                if (chunkType == IHDR)
+                {
+                    readHeader(png, chunkLen);
+                    gotHeader = true;
+                }
+                else if (chunkType == PLTE)
                 {
-                    readEnd(is);
-                    readChunkChecksum(is);
-                    break;
+                    readPalette(png, chunkLen);
                 }
-                
-                // unknown chunk type, eat the data
-                readBytes(is, chunkLen+4);
+                copy(png, typePosition, chunkLen + 4, -1);
             }
 
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            return false;
-        }
+            png.position(end);
+            int chkFile = png.getInt();
+            int chkComputed = (int) checksum.getValue();
+            if (chkFile != chkComputed)
+            {
+                Log.warn("png crc error: computed 0x" + Integer.toHexString(chkComputed)
+                        + " but found 0x" + Integer.toHexString(chkFile));
+            }
 
-        return true;
+            if (chunkType == IEND)
+            {
+                break;
+            }
+        }
     }
 
-    private void readEnd(InputStream is) throws IOException
+    /**
+     * Runs length bytes from offset through the checksum and, from
+     * dataOffset on, into the image stream. The position of png does not
+     * change.
+     *
+     * @param dataOffset -1 to only compute the checksum
+     */
+    private void copy(ByteBuffer png, int offset, int length, int dataOffset) throws IOException
     {
-        System.out.println("got end");
-        data.close();
-    }
+        int saved = png.position();
+        png.position(offset);
+        checksum.reset();
 
-    private void readData(InputStream is) throws IOException
-    {
-        // read chunkLen bytes into data stream
-        byte[] buffer = new byte[1024];
-        
-        int bytesLeft = chunkLen;
-        int len = (bytesLeft > buffer.length) ? buffer.length : bytesLeft;
-        int amountRead = -1;
-        while ((amountRead = is.read(buffer, 0, len)) != -1 && bytesLeft > 0)
+        int done = 0;
+        while (done < length)
         {
-            data.write(buffer, 0, amountRead);
-            bytesLeft -= amountRead;
-            len = (bytesLeft > buffer.length) ? buffer.length : bytesLeft;
-            
-            checksum.update(buffer, 0, amountRead);
+            int amount = Math.min(buffer.length, length - done);
+            png.get(buffer, 0, amount);
+            checksum.update(buffer, 0, amount);
+            if (dataOffset >= 0)
+            {
+                int skip = Math.max(0, Math.min(amount, dataOffset - done));
+                data.write(buffer, skip, amount - skip);
+            }
+            done += amount;
         }
-        System.out.println("got " + chunkLen + " bytes of data");
+        png.position(saved);
     }
 
-    private void readPalette(InputStream is) throws IOException
+    private void readPalette(ByteBuffer png, int chunkLen) throws IOException
     {
         if(chunkLen > 256*3 || (chunkLen % 3) != 0)
         {
             throw new IOException("unexpected palette length " + chunkLen);
         }
 
-        COSString data = new COSString(readBytes(is, chunkLen));
-        
         // for some reason, readers expect an extra entry...
-        byte[] extra = {0,0,0};
-        data.append(extra);
+        byte[] entries = new byte[chunkLen + 3];
+        png.get(entries, 0, chunkLen);
+        COSString data = new COSString(entries);
         
         int numEntries = chunkLen / 3;
         
@@ -221,94 +440,23 @@ public class PDPng extends PDXObjectImage
         paldata.add(COSName.getPDFName(PDDeviceRGB.NAME));
         paldata.add(COSInteger.get(numEntries));
         paldata.add(data);
-        
-        System.out.println("got palette with " + numEntries + " entries.");
     }
 
-    private String chunkType;
-    private int chunkLen;
-
-    private int imageHeight;
-    private int imageWidth;
-    private int bitDepth;
-
-    private int colorType;
-
-    private void readChunkHeader(InputStream is) throws IOException
-    {
-        chunkLen = readInt32(is);
-        checksum.reset();
-        chunkType = readType(is);
-    }
-    
-    private void readChunkChecksum(InputStream is) throws IOException
-    {
-        int chkComputed = (int) checksum.getValue();
-        int chkFile = readInt32(is);
-        
-        if(chkFile != chkComputed)
-        {
-            System.out.println("crc error: computed \n  0x" + Integer.toHexString(chkComputed) + " but found\n  0x" + Integer.toHexString(chkFile));
-            //throw...
-        }
-        else
-        {
-            System.out.println("crc ok: 0x" + Integer.toHexString(chkFile));
-        }
-    }
-
-    private String readType(InputStream is) throws IOException
-    {
-        return new String(readBytes(is, 4));
-    }
-
-    private byte[] readBytes(InputStream is, int len) throws IOException
-    {
-        byte[] buffer = new byte[len];
-        int amountRead = is.read(buffer);
-        if (amountRead != len)
-        {
-            throw new IOException();
-        }
-        
-        checksum.update(buffer);
-        
-        return buffer;
-    }
-
-    private int readInt32(InputStream is) throws IOException
-    {
-        byte[] buffer = readBytes(is, 4);
-        return ((0xff & buffer[0]) << 24) | ((0xff & buffer[1]) << 16) | ((0xff & buffer[2]) << 8) | (0xff &  buffer[3]);
-    }
-    
-    private int readInt8(InputStream is) throws IOException
-    {
-        byte[] buffer = readBytes(is, 1);
-        return buffer[0];
-    }
-
-    private boolean readMagic(InputStream is) throws IOException
-    {
-        byte[] buffer = readBytes(is, 8);
-        return Arrays.equals(buffer, PNG_MAGIC);
-    }
-
-    private void readHeader(InputStream is) throws IOException
+    private void readHeader(ByteBuffer png, int chunkLen) throws IOException
     {
         if(chunkLen != 13)
         {
             throw new IOException("unexpected length for IHDR chunk!");
         }
         
-        imageWidth = readInt32(is);
-        imageHeight = readInt32(is);
-        bitDepth = readInt8(is);
-        colorType = readInt8(is);
+        imageWidth = png.getInt();
+        imageHeight = png.getInt();
+        bitDepth = png.get();
+        colorType = png.get();
         
-        int compressionMethod = readInt8(is);
-        int filterMethod = readInt8(is);
-        int interlaceMethod = readInt8(is);
+        int compressionMethod = png.get();
+        int filterMethod = png.get();
+        int interlaceMethod = png.get();
         
         if(filterMethod != 0)
         {
@@ -325,12 +473,10 @@ public class PDPng extends PDXObjectImage
             throw new IOException("only non-interlaced PNGs are supported in pdf. Needs recompression...");
         }
         
-        if((colorType & PNG_TYPE_ALPHA_CHANNEL) != 0)
+        if((colorType & PNG_TYPE_ALPHA_CHANNEL) != 0 && bitDepth != 8)
         {
-            throw new IOException("pdf does not support 'embedded' alpha channel. Needs recompression...");
+            throw new IOException("only 8 bit alpha channels can be split into a soft mask. Needs recompression...");
         }
-
-        System.out.println("got header");
     }
 
     @Override
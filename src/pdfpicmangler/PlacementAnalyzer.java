@@ -0,0 +1,673 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+
+/**
+ * Finds the resolution at which images are drawn, like
+ * {@link ResolutionAnalyzer}, but much cheaper.
+ *
+ * Only <code>q</code>, <code>Q</code>, <code>cm</code>, <code>Do</code> and
+ * the path operators are interpreted; text and colors are skipped by the
+ * {@link ContentLexer} without even parsing their operands. Image sizes are
+ * read from the image dictionaries, no image objects are created.
+ *
+ * Clipping paths are tracked as their bounding boxes, intersected with the
+ * crop box of the page and the bounding boxes of forms. That is never
+ * smaller than what can really be seen, so the visible part of an image that
+ * is found here is safe to crop to. Clipping by text is ignored.
+ */
+public class PlacementAnalyzer
+{
+    private static final COSName MATRIX = COSName.getPDFName("Matrix");
+    private static final COSName BBOX = COSName.getPDFName("BBox");
+    private static final COSName CROP_BOX = COSName.getPDFName("CropBox");
+    private static final COSName MEDIA_BOX = COSName.getPDFName("MediaBox");
+
+    private final int threads;
+
+    public PlacementAnalyzer()
+    {
+        this(1);
+    }
+
+    /**
+     * @param threads number of pages that are analyzed at the same time
+     */
+    public PlacementAnalyzer(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    public ImageRegistry analyze(PDDocument document) throws IOException
+    {
+        List<?> allPages = document.getDocumentCatalog().getAllPages();
+        List<PageScan> scans = new ArrayList<PageScan>();
+        for (int i = 0; i < allPages.size(); i++)
+        {
+            PDPage page = (PDPage) allPages.get(i);
+            PDResources resources = page.findResources();
+            scans.add(new PageScan(document, i + 1, page.getCOSDictionary().getDictionaryObject(COSName.CONTENTS),
+                    (resources != null) ? resources.getCOSDictionary() : null, findCropBox(page.getCOSDictionary())));
+        }
+
+        if (threads == 1 || scans.size() < 2)
+        {
+            for (PageScan scan : scans)
+            {
+                scan.call();
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, scans.size()));
+            try
+            {
+                List<Future<PageScan>> futures = executor.invokeAll(scans);
+                for (Future<PageScan> future : futures)
+                {
+                    future.get();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException("interrupted while analyzing");
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(String.valueOf(e.getCause()));
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        // merge in page order, so the registry is the same for any number of threads
+        ImageRegistry registry = new ImageRegistry();
+        for (PageScan scan : scans)
+        {
+            Log.println("Processing page: " + (scan.page - 1));
+            for (String warning : scan.warnings)
+            {
+                Log.println(warning);
+            }
+            for (Found found : scan.found)
+            {
+                registry.addPlacement(found.image, scan.page, found.name, found.dpi, found.visible);
+            }
+        }
+        return registry;
+    }
+
+    private static class Found
+    {
+        final COSStream image;
+        final String name;
+        final float dpi;
+        final int[] visible;
+
+        Found(COSStream image, String name, float dpi, int[] visible)
+        {
+            this.image = image;
+            this.name = name;
+            this.dpi = dpi;
+            this.visible = visible;
+        }
+    }
+
+    /**
+     * The analysis of one page, which only collects what it finds.
+     *
+     * The document is only read, never changed. Reading stream data moves the
+     * file pointer of the shared scratch file, so that is done while holding
+     * the lock on the document; decompressing the data is not.
+     */
+    private static class PageScan implements Callable<PageScan>
+    {
+        final PDDocument document;
+        final int page;
+        final COSBase contents;
+        final COSDictionary resources;
+        /** x0, y0, x1, y1 of the page that is shown, null if not known */
+        final double[] cropBox;
+
+        final List<Found> found = new ArrayList<Found>();
+        final List<String> warnings = new ArrayList<String>();
+
+        /** forms that are being drawn right now, to stop on forms that draw themselves */
+        private final Map<COSStream, Boolean> activeForms = new IdentityHashMap<COSStream, Boolean>();
+
+        PageScan(PDDocument document, int page, COSBase contents, COSDictionary resources, double[] cropBox)
+        {
+            this.document = document;
+            this.page = page;
+            this.contents = contents;
+            this.resources = resources;
+            this.cropBox = cropBox;
+        }
+
+        public PageScan call() throws IOException
+        {
+            double[] identity = new double[] { 1, 0, 0, 1, 0, 0 };
+            if (contents instanceof COSStream)
+            {
+                scan(read((COSStream) contents), resources, identity, cropBox);
+            }
+            else if (contents instanceof COSArray)
+            {
+                // the parts of an array are one content stream, split at white space
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                COSArray array = (COSArray) contents;
+                for (int i = 0; i < array.size(); i++)
+                {
+                    COSBase part = array.getObject(i);
+                    if (part instanceof COSStream)
+                    {
+                        bytes.write(read((COSStream) part));
+                        bytes.write('\n');
+                    }
+                }
+                scan(bytes.toByteArray(), resources, identity, cropBox);
+            }
+            return this;
+        }
+
+        /**
+         * Interprets one content stream.
+         *
+         * @param ctm the transformation at the start of the stream, is not changed
+         * @param clip bounding box of the clipping path on the page, null for none
+         */
+        private void scan(byte[] content, COSDictionary resources, double[] ctm, double[] clip) throws IOException
+        {
+            ContentLexer lexer = new ContentLexer(content);
+            List<double[]> stack = new ArrayList<double[]>();
+            List<double[]> clipStack = new ArrayList<double[]>();
+            ctm = ctm.clone();
+
+            // bounding box of the current path on the page, null while there is none
+            double[] path = null;
+            boolean clipPending = false;
+
+            double[] operands = new double[6];
+            int numbers = 0;
+            String name = null;
+
+            int token;
+            while ((token = lexer.next()) != ContentLexer.EOF)
+            {
+                if (token == ContentLexer.NUMBER)
+                {
+                    // keep the last six, that is all cm needs
+                    if (numbers == 6)
+                    {
+                        System.arraycopy(operands, 1, operands, 0, 5);
+                        numbers = 5;
+                    }
+                    operands[numbers++] = lexer.number();
+                    continue;
+                }
+                if (token == ContentLexer.NAME)
+                {
+                    name = lexer.name();
+                    continue;
+                }
+                if (token != ContentLexer.OPERATOR)
+                {
+                    continue;
+                }
+
+                if (lexer.isOperator("q"))
+                {
+                    stack.add(ctm.clone());
+                    clipStack.add(clip);
+                }
+                else if (lexer.isOperator("Q"))
+                {
+                    if (!stack.isEmpty())
+                    {
+                        ctm = stack.remove(stack.size() - 1);
+                        clip = clipStack.remove(clipStack.size() - 1);
+                    }
+                }
+                else if (lexer.isOperator("m") || lexer.isOperator("l"))
+                {
+                    path = addPoints(path, ctm, operands, numbers, 2);
+                }
+                else if (lexer.isOperator("c"))
+                {
+                    path = addPoints(path, ctm, operands, numbers, 6);
+                }
+                else if (lexer.isOperator("v") || lexer.isOperator("y"))
+                {
+                    path = addPoints(path, ctm, operands, numbers, 4);
+                }
+                else if (lexer.isOperator("re"))
+                {
+                    if (numbers >= 4)
+                    {
+                        double x = operands[numbers - 4], y = operands[numbers - 3];
+                        double w = operands[numbers - 2], h = operands[numbers - 1];
+                        double[] corners = new double[] { x, y, x + w, y, x, y + h, x + w, y + h };
+                        path = addPoints(path, ctm, corners, 8, 8);
+                    }
+                }
+                else if (lexer.isOperator("W") || lexer.isOperator("W*"))
+                {
+                    clipPending = true;
+                }
+                else if (isPainting(lexer))
+                {
+                    // the clip takes effect once the path is painted (or not, with n)
+                    if (clipPending && path != null)
+                    {
+                        clip = intersect(clip, path);
+                    }
+                    clipPending = false;
+                    path = null;
+                }
+                else if (lexer.isOperator("cm"))
+                {
+                    if (numbers == 6)
+                    {
+                        ctm = concatenate(operands, ctm);
+                    }
+                }
+                else if (lexer.isOperator("Do"))
+                {
+                    if (name != null)
+                    {
+                        draw(name, resources, ctm, clip);
+                    }
+                }
+                numbers = 0;
+                name = null;
+            }
+        }
+
+        private void draw(String name, COSDictionary resources, double[] ctm, double[] clip) throws IOException
+        {
+            if (resources == null)
+            {
+                return;
+            }
+            COSBase xobjects = resources.getDictionaryObject(COSName.XOBJECT);
+            if (!(xobjects instanceof COSDictionary))
+            {
+                return;
+            }
+            COSBase xobject = ((COSDictionary) xobjects).getDictionaryObject(COSName.getPDFName(name));
+            if (!(xobject instanceof COSStream))
+            {
+                return;
+            }
+            COSStream stream = (COSStream) xobject;
+            COSBase subtype = stream.getDictionaryObject(COSName.SUBTYPE);
+
+            if (COSName.IMAGE.equals(subtype))
+            {
+                addPlacement(stream, name, ctm, clip);
+            }
+            else if (COSName.FORM.equals(subtype) && !activeForms.containsKey(stream))
+            {
+                double[] formCtm = ctm;
+                COSBase matrix = stream.getDictionaryObject(MATRIX);
+                if (matrix instanceof COSArray && ((COSArray) matrix).size() == 6)
+                {
+                    double[] m = new double[6];
+                    for (int i = 0; i < 6; i++)
+                    {
+                        COSBase value = ((COSArray) matrix).getObject(i);
+                        m[i] = (value instanceof COSNumber) ? ((COSNumber) value).doubleValue() : ((i == 0 || i == 3) ? 1 : 0);
+                    }
+                    formCtm = concatenate(m, ctm);
+                }
+
+                // forms are clipped to their bounding box
+                double[] formClip = clip;
+                COSBase bbox = stream.getDictionaryObject(BBOX);
+                double[] box = rectangle(bbox);
+                if (box != null)
+                {
+                    double[] corners = new double[] { box[0], box[1], box[2], box[1], box[0], box[3], box[2], box[3] };
+                    formClip = intersect(clip, addPoints(null, formCtm, corners, 8, 8));
+                }
+
+                COSBase formResources = stream.getDictionaryObject(COSName.RESOURCES);
+
+                activeForms.put(stream, Boolean.TRUE);
+                try
+                {
+                    scan(read(stream), (formResources instanceof COSDictionary) ? (COSDictionary) formResources : resources,
+                            formCtm, formClip);
+                }
+                finally
+                {
+                    activeForms.remove(stream);
+                }
+            }
+        }
+
+        private void addPlacement(COSStream image, String name, double[] ctm, double[] clip)
+        {
+            int width = image.getInt(COSName.WIDTH, 0);
+            int height = image.getInt(COSName.HEIGHT, 0);
+
+            // the image is the unit square, scaled to its size on the page
+            double xScale = Math.sqrt(ctm[0] * ctm[0] + ctm[1] * ctm[1]) / 72;
+            double yScale = Math.sqrt(ctm[2] * ctm[2] + ctm[3] * ctm[3]) / 72;
+            if (xScale == 0 || yScale == 0)
+            {
+                return;
+            }
+
+            float dpiX = (float) (width / xScale);
+            float dpiY = (float) (height / yScale);
+            float dpi = 0.5f * (dpiX + dpiY);
+
+            if (Math.abs((dpiX - dpiY) / dpi) > 0.05)
+            {
+                warnings.add("warning: resolution of image " + page + name
+                        + " is not square: dpiX=" + dpiX + " dpiY=" + dpiY);
+            }
+
+            found.add(new Found(image, name, dpi, visibleRegion(ctm, clip, width, height)));
+        }
+
+        /**
+         * @return the decoded stream data
+         */
+        private byte[] read(COSStream stream) throws IOException
+        {
+            COSBase filters = stream.getFilters();
+            if (filters instanceof COSArray && ((COSArray) filters).size() == 1)
+            {
+                filters = ((COSArray) filters).getObject(0);
+            }
+            boolean inflate = COSName.FLATE_DECODE.equals(filters)
+                    && stream.getDictionaryObject(COSName.DECODE_PARMS) == null;
+
+            byte[] data;
+            synchronized (document)
+            {
+                data = readAll(inflate ? stream.getFilteredStream() : stream.getUnfilteredStream());
+            }
+            if (inflate)
+            {
+                data = inflate(data);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Finds the part of an image that lies inside a clipping rectangle.
+     *
+     * The image is the unit square, drawn with the transformation ctm. The
+     * corners of the clip are mapped back into the unit square, and the
+     * result is widened by a pixel on each side so that resampling filters
+     * still see the pixels around the edge.
+     *
+     * @param clip x0, y0, x1, y1 on the page, null for no clipping
+     * @return x0, y0, x1, y1 in pixels from the top left, null if all of the
+     *         image can be seen (or the transformation cannot be inverted)
+     */
+    static int[] visibleRegion(double[] ctm, double[] clip, int width, int height)
+    {
+        double det = ctm[0] * ctm[3] - ctm[1] * ctm[2];
+        if (clip == null || det == 0 || width <= 0 || height <= 0)
+        {
+            return null;
+        }
+
+        double u0 = 1, v0 = 1, u1 = 0, v1 = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            double dx = clip[(i & 1) == 0 ? 0 : 2] - ctm[4];
+            double dy = clip[(i & 2) == 0 ? 1 : 3] - ctm[5];
+            double u = (ctm[3] * dx - ctm[2] * dy) / det;
+            double v = (ctm[0] * dy - ctm[1] * dx) / det;
+            u0 = Math.min(u0, u);
+            v0 = Math.min(v0, v);
+            u1 = Math.max(u1, u);
+            v1 = Math.max(v1, v);
+        }
+
+        if (u1 <= 0 || v1 <= 0 || u0 >= 1 || v0 >= 1 || u1 <= u0 || v1 <= v0)
+        {
+            // nothing of it can be seen
+            return new int[] { 0, 0, 0, 0 };
+        }
+
+        // image rows go from the top, v from the bottom
+        int x0 = Math.max(0, (int) Math.floor(u0 * width) - 1);
+        int x1 = Math.min(width, (int) Math.ceil(u1 * width) + 1);
+        int y0 = Math.max(0, (int) Math.floor((1 - v1) * height) - 1);
+        int y1 = Math.min(height, (int) Math.ceil((1 - v0) * height) + 1);
+        if (x0 == 0 && y0 == 0 && x1 == width && y1 == height)
+        {
+            return null;
+        }
+        return new int[] { x0, y0, x1, y1 };
+    }
+
+    /**
+     * Grows a bounding box by the last points of the operands.
+     *
+     * @param box x0, y0, x1, y1 on the page, or null for an empty box
+     * @param count how many of the operands are x, y pairs
+     * @return the grown box, the same as box unless that was null
+     */
+    static double[] addPoints(double[] box, double[] ctm, double[] operands, int numbers, int count)
+    {
+        if (numbers < count)
+        {
+            return box;
+        }
+        for (int i = numbers - count; i < numbers; i += 2)
+        {
+            double x = operands[i] * ctm[0] + operands[i + 1] * ctm[2] + ctm[4];
+            double y = operands[i] * ctm[1] + operands[i + 1] * ctm[3] + ctm[5];
+            if (box == null)
+            {
+                box = new double[] { x, y, x, y };
+            }
+            else
+            {
+                box[0] = Math.min(box[0], x);
+                box[1] = Math.min(box[1], y);
+                box[2] = Math.max(box[2], x);
+                box[3] = Math.max(box[3], y);
+            }
+        }
+        return box;
+    }
+
+    /**
+     * @return the overlap of two boxes, where null is everything
+     */
+    static double[] intersect(double[] a, double[] b)
+    {
+        if (a == null)
+        {
+            return b;
+        }
+        if (b == null)
+        {
+            return a;
+        }
+        return new double[] { Math.max(a[0], b[0]), Math.max(a[1], b[1]),
+                Math.min(a[2], b[2]), Math.min(a[3], b[3]) };
+    }
+
+    private static boolean isPainting(ContentLexer lexer)
+    {
+        return lexer.isOperator("n") || lexer.isOperator("S") || lexer.isOperator("s")
+                || lexer.isOperator("f") || lexer.isOperator("F") || lexer.isOperator("f*")
+                || lexer.isOperator("B") || lexer.isOperator("B*") || lexer.isOperator("b")
+                || lexer.isOperator("b*");
+    }
+
+    /**
+     * @return the crop box of a page, cut to its media box; null if there is neither
+     */
+    private static double[] findCropBox(COSDictionary page)
+    {
+        return intersect(inherited(page, CROP_BOX), inherited(page, MEDIA_BOX));
+    }
+
+    /**
+     * @return a rectangle from the page or the nearest node of the page tree above it
+     */
+    private static double[] inherited(COSDictionary page, COSName key)
+    {
+        COSDictionary node = page;
+        // the depth limit stops on loops in broken page trees
+        for (int depth = 0; node != null && depth < 100; depth++)
+        {
+            COSBase value = node.getDictionaryObject(key);
+            if (value != null)
+            {
+                return rectangle(value);
+            }
+            COSBase parent = node.getDictionaryObject(COSName.PARENT);
+            node = (parent instanceof COSDictionary) ? (COSDictionary) parent : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return x0, y0, x1, y1 of a rectangle array, normalized; null if it is not one
+     */
+    private static double[] rectangle(COSBase value)
+    {
+        if (!(value instanceof COSArray) || ((COSArray) value).size() != 4)
+        {
+            return null;
+        }
+        double[] r = new double[4];
+        for (int i = 0; i < 4; i++)
+        {
+            COSBase number = ((COSArray) value).getObject(i);
+            if (!(number instanceof COSNumber))
+            {
+                return null;
+            }
+            r[i] = ((COSNumber) number).doubleValue();
+        }
+        return new double[] { Math.min(r[0], r[2]), Math.min(r[1], r[3]), Math.max(r[0], r[2]), Math.max(r[1], r[3]) };
+    }
+
+    /**
+     * @return m x ctm, the transformation after "m cm"
+     */
+    static double[] concatenate(double[] m, double[] ctm)
+    {
+        return new double[] {
+                m[0] * ctm[0] + m[1] * ctm[2],
+                m[0] * ctm[1] + m[1] * ctm[3],
+                m[2] * ctm[0] + m[3] * ctm[2],
+                m[2] * ctm[1] + m[3] * ctm[3],
+                m[4] * ctm[0] + m[5] * ctm[2] + ctm[4],
+                m[4] * ctm[1] + m[5] * ctm[3] + ctm[5] };
+    }
+
+    /**
+     * Inflates like PDFBox does: a truncated stream gives what could be decoded.
+     */
+    private static byte[] inflate(byte[] data) throws IOException
+    {
+        InputStream is = new InflaterInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[65536];
+        try
+        {
+            int amountRead;
+            while ((amountRead = is.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, amountRead);
+            }
+        }
+        catch (EOFException e)
+        {
+            // keep the part before the end
+        }
+        catch (ZipException e)
+        {
+            // keep the part before the damage
+        }
+        finally
+        {
+            is.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the stream to its end and closes it.
+     */
+    static byte[] readAll(InputStream is) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int amountRead;
+            while ((amountRead = is.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, amountRead);
+            }
+            return bytes.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+}
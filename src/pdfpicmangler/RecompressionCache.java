@@ -0,0 +1,420 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+
+/**
+ * Keeps recompressed images on disk, so that a later run over the same (or
+ * a slightly edited) document can skip decoding and encoding them.
+ *
+ * The key is a hash over the raw source stream, the dictionary entries that
+ * decide how it decodes, and everything that decides what the encoder makes
+ * of it: target size, format, quality, filter and {@link #VERSION}. Entries
+ * live in <code>dir/xx/key</code>.
+ *
+ * Several processes may share a directory: entries are written to a temporary
+ * file and renamed into place, so readers only ever see complete files, and
+ * eviction runs under a lock on <code>dir/.lock</code>. Eviction removes the
+ * least recently used entries (a hit touches the file) until the directory is
+ * below its size limit.
+ */
+public class RecompressionCache
+{
+    /** change whenever the encoders produce different output for the same input */
+    public static final int VERSION = 5;
+
+    private static final int MAGIC = 0x50504d43;
+    private static final String[] DECODE_KEYS = { "Filter", "DecodeParms", "ColorSpace",
+            "BitsPerComponent", "Decode", "Width", "Height", "ImageMask", "SMask" };
+
+    /** FileLocks are per process, threads of this process queue up here */
+    private static final Object TRIM_LOCK = new Object();
+
+    private final File dir;
+    private final long maxBytes;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public RecompressionCache(File dir, long maxBytes) throws IOException
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("can not create cache directory " + dir);
+        }
+    }
+
+    /**
+     * @param settings describes the encoder settings, e.g. quality and filter
+     */
+    public String key(COSStream source, String suffix, int width, int height, String settings) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-1 not available");
+        }
+
+        update(digest, "v" + VERSION + " " + suffix + " " + width + "x" + height + " " + settings);
+        for (String name : DECODE_KEYS)
+        {
+            update(digest, "/" + name);
+            describe(digest, source.getDictionaryObject(COSName.getPDFName(name)), 0);
+        }
+        updateStream(digest, source);
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+        {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the stored image, or null if there is none (or it is damaged).
+     */
+    public EncodedImage get(String key)
+    {
+        File file = file(key);
+        if (!file.isFile())
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    throw new IOException("not a cache entry");
+                }
+                EncodedImage image = EncodedImage.readFrom(in);
+                file.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return image;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // evicted by someone else meanwhile, or damaged: treat as a miss
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, EncodedImage image) throws IOException
+    {
+        File file = file(key);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+        {
+            throw new IOException("can not create " + parent);
+        }
+
+        File temp = File.createTempFile(key, ".part", parent);
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                image.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!temp.renameTo(file))
+            {
+                // another process stored the same entry first, which is just as good
+                if (!file.isFile())
+                {
+                    throw new IOException("can not store " + file);
+                }
+            }
+        }
+        finally
+        {
+            if (temp.exists())
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size limit.
+     */
+    public void trim() throws IOException
+    {
+        synchronized (TRIM_LOCK)
+        {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, ".lock"), "rw");
+            try
+            {
+                FileLock lock = lockFile.getChannel().lock();
+                try
+                {
+                    evict();
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+            finally
+            {
+                lockFile.close();
+            }
+        }
+    }
+
+    private void evict()
+    {
+        List<File> entries = new ArrayList<File>();
+        long total = 0;
+
+        File[] subdirs = dir.listFiles();
+        if (subdirs == null)
+        {
+            return;
+        }
+        for (File subdir : subdirs)
+        {
+            File[] files = subdir.isDirectory() ? subdir.listFiles() : null;
+            if (files == null)
+            {
+                continue;
+            }
+            for (File file : files)
+            {
+                if (file.isFile() && !file.getName().endsWith(".part"))
+                {
+                    entries.add(file);
+                    total += file.length();
+                }
+            }
+        }
+
+        if (total <= maxBytes)
+        {
+            return;
+        }
+
+        final long[] lastUsed = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+            lastUsed[i] = entries.get(i).lastModified();
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                return (lastUsed[a] < lastUsed[b]) ? -1 : (lastUsed[a] > lastUsed[b]) ? 1 : 0;
+            }
+        });
+
+        for (int i = 0; i < order.length && total > maxBytes; i++)
+        {
+            File file = entries.get(order[i]);
+            long length = file.length();
+            if (file.delete())
+            {
+                total -= length;
+            }
+        }
+    }
+
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    public String toString()
+    {
+        return "cache: " + hits + " hits, " + misses + " misses";
+    }
+
+    private File file(String key)
+    {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    /**
+     * Feeds a canonical form of a dictionary value into the digest. Indirect
+     * objects are followed, so object numbers (which change between edits of
+     * a document) do not matter.
+     */
+    private static void describe(MessageDigest digest, COSBase value, int depth) throws IOException
+    {
+        if (value instanceof COSObject)
+        {
+            value = ((COSObject) value).getObject();
+        }
+
+        if (depth > 8)
+        {
+            update(digest, "...");
+        }
+        else if (value == null)
+        {
+            update(digest, "null");
+        }
+        else if (value instanceof COSName)
+        {
+            update(digest, "/" + ((COSName) value).getName());
+        }
+        else if (value instanceof COSNumber)
+        {
+            update(digest, "n" + ((COSNumber) value).floatValue());
+        }
+        else if (value instanceof COSBoolean)
+        {
+            update(digest, "b" + ((COSBoolean) value).getValue());
+        }
+        else if (value instanceof COSString)
+        {
+            update(digest, "(");
+            digest.update(((COSString) value).getBytes());
+            update(digest, ")");
+        }
+        else if (value instanceof COSArray)
+        {
+            COSArray array = (COSArray) value;
+            update(digest, "[" + array.size());
+            for (int i = 0; i < array.size(); i++)
+            {
+                describe(digest, array.get(i), depth + 1);
+            }
+            update(digest, "]");
+        }
+        else if (value instanceof COSDictionary)
+        {
+            COSDictionary dictionary = (COSDictionary) value;
+            List<String> names = new ArrayList<String>();
+            for (COSName name : dictionary.keySet())
+            {
+                names.add(name.getName());
+            }
+            Collections.sort(names);
+
+            update(digest, "<<" + names.size());
+            for (String name : names)
+            {
+                update(digest, "/" + name);
+                describe(digest, dictionary.getDictionaryObject(COSName.getPDFName(name)), depth + 1);
+            }
+            update(digest, ">>");
+
+            if (value instanceof COSStream)
+            {
+                // e.g. an ICC profile or a lookup table
+                updateStream(digest, (COSStream) value);
+            }
+        }
+        else
+        {
+            update(digest, value.getClass().getName());
+        }
+    }
+
+    private static void updateStream(MessageDigest digest, COSStream stream) throws IOException
+    {
+        InputStream is = stream.getFilteredStream();
+        try
+        {
+            byte[] buffer = new byte[65536];
+            int amountRead;
+            while ((amountRead = is.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, amountRead);
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    private static void update(MessageDigest digest, String text)
+    {
+        try
+        {
+            digest.update(text.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Separable image resampler.
+ *
+ * The image is scaled in two passes, first along the rows into an 8 bit
+ * buffer of the target width, then along the columns. Both passes work on
+ * the primitive pixel arrays with fixed point weights and are split into
+ * bands of rows that run on a shared executor. The result is RGB or, for gray
+ * input, gray. Images with an alpha channel come out as ARGB, the alpha is
+ * resampled like the colours (not premultiplied).
+ */
+public class Resampler
+{
+    public enum Filter
+    {
+        /**
+         * area averaging like Image.SCALE_AREA_AVERAGING: each source pixel
+         * counts with the part of it that the output pixel covers
+         */
+        BOX(0.5),
+        BILINEAR(1.0),
+        LANCZOS3(3.0);
+
+        final double support;
+
+        Filter(double support)
+        {
+            this.support = support;
+        }
+
+        double weight(double x)
+        {
+            switch (this)
+            {
+            case BOX:
+                return (x >= -0.5 && x < 0.5) ? 1.0 : 0.0;
+            case BILINEAR:
+                x = Math.abs(x);
+                return (x < 1.0) ? 1.0 - x : 0.0;
+            default:
+                if (x <= -3.0 || x >= 3.0)
+                {
+                    return 0.0;
+                }
+                return sinc(x) * sinc(x / 3.0);
+            }
+        }
+
+        private static double sinc(double x)
+        {
+            if (x == 0.0)
+            {
+                return 1.0;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+
+        public static Filter parse(String name)
+        {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    private static final int PRECISION_BITS = 22;
+    private static final int MIN_BAND_ROWS = 64;
+
+    private final Filter filter;
+    private final int threads;
+    // runs the bands, null to run the whole image on the calling thread
+    private final ExecutorService executor;
+
+    public Filter getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * @param threads how many bands an image is split into at most
+     * @param executor runs the bands, may be shared by several users and is
+     *        not shut down; null runs them on the calling thread
+     */
+    public Resampler(Filter filter, int threads, ExecutorService executor)
+    {
+        this.filter = filter;
+        this.threads = (executor != null) ? Math.max(1, threads) : 1;
+        this.executor = executor;
+    }
+
+    /**
+     * Filter taps of one pass: output pixel i is the weighted sum of the
+     * input pixels first[i] .. first[i] + count[i] - 1.
+     */
+    static class Weights
+    {
+        final int[] first;
+        final int[] count;
+        final int[] weights;
+        final int taps;
+
+        Weights(Filter filter, int inSize, int outSize)
+        {
+            double scale = (double) inSize / outSize;
+            double filterScale = Math.max(scale, 1.0);
+            double support = filter.support * filterScale;
+
+            taps = (int) Math.ceil(support) * 2 + 1;
+            first = new int[outSize];
+            count = new int[outSize];
+            weights = new int[outSize * taps];
+
+            double[] w = new double[taps];
+            for (int i = 0; i < outSize; i++)
+            {
+                double center = (i + 0.5) * scale;
+                int min = Math.max(0, (int) Math.floor(center - support));
+                int max = Math.min(inSize, (int) Math.ceil(center + support));
+                int n = Math.min(max - min, taps);
+
+                double sum = 0;
+                for (int k = 0; k < n; k++)
+                {
+                    if (filter == Filter.BOX)
+                    {
+                        // overlap of the source pixel with [i, i + 1) of the output, in source pixels;
+                        // sampling the box at pixel centres would not average at ratios like 3:2
+                        w[k] = Math.max(0.0, Math.min((i + 1) * scale, k + min + 1) - Math.max(i * scale, k + min));
+                    }
+                    else
+                    {
+                        w[k] = filter.weight((k + min - center + 0.5) / filterScale);
+                    }
+                    sum += w[k];
+                }
+                if (sum == 0)
+                {
+                    // can only happen at the border with very small images
+                    w[0] = sum = 1.0;
+                    n = 1;
+                }
+
+                first[i] = min;
+                count[i] = n;
+                for (int k = 0; k < n; k++)
+                {
+                    weights[i * taps + k] = (int) Math.round(w[k] / sum * (1 << PRECISION_BITS));
+                }
+            }
+        }
+    }
+
+    private interface Band
+    {
+        void run(int from, int to);
+    }
+
+    public BufferedImage resize(final BufferedImage source, final int width, final int height)
+    {
+        final int srcWidth = source.getWidth();
+        final int srcHeight = source.getHeight();
+        final int channels = source.getColorModel().hasAlpha() ? 4 : isGray(source) ? 1 : 3;
+        final int rowLength = width * channels;
+
+        final Weights horizontal = new Weights(filter, srcWidth, width);
+        final Weights vertical = new Weights(filter, srcHeight, height);
+
+        final byte[] temp = new byte[rowLength * srcHeight];
+
+        runBands(srcHeight, new Band() {
+            public void run(int from, int to)
+            {
+                byte[] row = new byte[srcWidth * channels];
+                for (int y = from; y < to; y++)
+                {
+                    readRow(source, y, row, channels);
+                    resampleRow(horizontal, row, channels, temp, y * rowLength);
+                }
+            }
+        });
+
+        final BufferedImage result = new BufferedImage(width, height,
+                (channels == 1) ? BufferedImage.TYPE_BYTE_GRAY
+                        : (channels == 4) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final WritableRaster raster = result.getRaster();
+
+        runBands(height, new Band() {
+            public void run(int from, int to)
+            {
+                int[] acc = new int[rowLength];
+                byte[] row = new byte[rowLength];
+                for (int y = from; y < to; y++)
+                {
+                    resampleColumn(vertical, y, temp, rowLength, acc, row);
+                    writeRow(raster, y, row, channels);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    private static boolean isGray(BufferedImage image)
+    {
+        return image.getColorModel().getNumComponents() == 1
+                && image.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+    }
+
+    static int clamp(int value)
+    {
+        value = (value + (1 << (PRECISION_BITS - 1))) >> PRECISION_BITS;
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+
+    static void resampleRow(Weights w, byte[] in, int channels, byte[] out, int offset)
+    {
+        int outSize = w.first.length;
+        for (int i = 0; i < outSize; i++)
+        {
+            int base = i * w.taps;
+            int start = w.first[i] * channels;
+            int n = w.count[i];
+            if (channels == 1)
+            {
+                int v = 0;
+                for (int k = 0; k < n; k++)
+                {
+                    v += (in[start + k] & 0xff) * w.weights[base + k];
+                }
+                out[offset + i] = (byte) clamp(v);
+            }
+            else if (channels == 3)
+            {
+                int r = 0, g = 0, b = 0;
+                for (int k = 0, p = start; k < n; k++, p += 3)
+                {
+                    int weight = w.weights[base + k];
+                    r += (in[p] & 0xff) * weight;
+                    g += (in[p + 1] & 0xff) * weight;
+                    b += (in[p + 2] & 0xff) * weight;
+                }
+                int o = offset + 3 * i;
+                out[o] = (byte) clamp(r);
+                out[o + 1] = (byte) clamp(g);
+                out[o + 2] = (byte) clamp(b);
+            }
+            else
+            {
+                for (int c = 0; c < channels; c++)
+                {
+                    int v = 0;
+                    for (int k = 0, p = start + c; k < n; k++, p += channels)
+                    {
+                        v += (in[p] & 0xff) * w.weights[base + k];
+                    }
+                    out[offset + channels * i + c] = (byte) clamp(v);
+                }
+            }
+        }
+    }
+
+    static void resampleColumn(Weights w, int y, byte[] temp, int rowLength, int[] acc, byte[] out)
+    {
+        Arrays.fill(acc, 0);
+        int base = y * w.taps;
+        int n = w.count[y];
+        for (int k = 0; k < n; k++)
+        {
+            int weight = w.weights[base + k];
+            int offset = (w.first[y] + k) * rowLength;
+            for (int i = 0; i < rowLength; i++)
+            {
+                acc[i] += (temp[offset + i] & 0xff) * weight;
+            }
+        }
+        for (int i = 0; i < rowLength; i++)
+        {
+            out[i] = (byte) clamp(acc[i]);
+        }
+    }
+
+    /**
+     * Reads one row as 8 bit gray or RGB samples, directly from the data
+     * buffer for the image types the decoders usually return.
+     *
+     * @param channels 1 (gray), 3 (RGB), or with alpha after the colour: 2 (gray, alpha) or 4 (RGB, alpha)
+     */
+    static void readRow(BufferedImage image, int y, byte[] row, int channels)
+    {
+        WritableRaster raster = image.getRaster();
+        SampleModel model = raster.getSampleModel();
+        int width = image.getWidth();
+        int type = image.getType();
+        boolean plain = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+
+        if (plain && type == BufferedImage.TYPE_INT_ARGB && channels == 4)
+        {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset()
+                    + y * ((SinglePixelPackedSampleModel) model).getScanlineStride();
+            for (int x = 0, p = 0; x < width; x++)
+            {
+                int argb = data[offset + x];
+                row[p++] = (byte) (argb >> 16);
+                row[p++] = (byte) (argb >> 8);
+                row[p++] = (byte) argb;
+                row[p++] = (byte) (argb >>> 24);
+            }
+            return;
+        }
+
+        if (plain && (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && channels == 3)
+        {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset()
+                    + y * ((SinglePixelPackedSampleModel) model).getScanlineStride();
+            for (int x = 0, p = 0; x < width; x++)
+            {
+                int rgb = data[offset + x];
+                row[p++] = (byte) (rgb >> 16);
+                row[p++] = (byte) (rgb >> 8);
+                row[p++] = (byte) rgb;
+            }
+            return;
+        }
+
+        if (plain && (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY))
+        {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            ComponentSampleModel components = (ComponentSampleModel) model;
+            int offset = raster.getDataBuffer().getOffset() + y * components.getScanlineStride();
+            if (type == BufferedImage.TYPE_BYTE_GRAY)
+            {
+                if (channels == 1)
+                {
+                    System.arraycopy(data, offset, row, 0, width);
+                }
+                else
+                {
+                    for (int x = 0, p = 0; x < width; x++, p += 3)
+                    {
+                        row[p] = row[p + 1] = row[p + 2] = data[offset + x];
+                    }
+                }
+                return;
+            }
+            if (channels == 3)
+            {
+                for (int x = 0, p = 0, s = offset; x < width; x++, s += 3)
+                {
+                    row[p++] = data[s + 2];
+                    row[p++] = data[s + 1];
+                    row[p++] = data[s];
+                }
+                return;
+            }
+        }
+
+        int[] rgb = image.getRGB(0, y, width, 1, null, 0, width);
+        for (int x = 0, p = 0; x < width; x++)
+        {
+            if (channels <= 2)
+            {
+                row[p++] = (byte) (rgb[x] >> 8);
+            }
+            else
+            {
+                row[p++] = (byte) (rgb[x] >> 16);
+                row[p++] = (byte) (rgb[x] >> 8);
+                row[p++] = (byte) rgb[x];
+            }
+            if (channels == 2 || channels == 4)
+            {
+                row[p++] = (byte) (rgb[x] >>> 24);
+            }
+        }
+    }
+
+    private static void writeRow(WritableRaster raster, int y, byte[] row, int channels)
+    {
+        int width = raster.getWidth();
+        if (channels == 1)
+        {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            System.arraycopy(row, 0, data, y * width, width);
+        }
+        else if (channels == 3)
+        {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            for (int x = 0, p = 0, o = y * width; x < width; x++, p += 3)
+            {
+                data[o + x] = ((row[p] & 0xff) << 16) | ((row[p + 1] & 0xff) << 8) | (row[p + 2] & 0xff);
+            }
+        }
+        else
+        {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            for (int x = 0, p = 0, o = y * width; x < width; x++, p += 4)
+            {
+                data[o + x] = ((row[p + 3] & 0xff) << 24) | ((row[p] & 0xff) << 16) | ((row[p + 1] & 0xff) << 8)
+                        | (row[p + 2] & 0xff);
+            }
+        }
+    }
+
+    private void runBands(int rows, final Band band)
+    {
+        int bands = Math.min(threads, rows / MIN_BAND_ROWS);
+        if (bands <= 1)
+        {
+            band.run(0, rows);
+            return;
+        }
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try
+        {
+            for (int i = 0; i < bands; i++)
+            {
+                final int from = (int) ((long) rows * i / bands);
+                final int to = (int) ((long) rows * (i + 1) / bands);
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call()
+                    {
+                        band.run(from, to);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            // bands that did not start are of no use any more
+            for (Future<Object> future : futures)
+            {
+                future.cancel(false);
+            }
+        }
+    }
+}
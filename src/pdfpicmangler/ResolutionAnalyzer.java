@@ -18,7 +18,6 @@
 package pdfpicmangler;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,6 +27,7 @@ import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.graphics.PDGraphicsState;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObject;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectForm;
@@ -41,8 +41,7 @@ public class ResolutionAnalyzer extends PDFStreamEngine {
 
     private static final String INVOKE_OPERATOR = "Do";
 
-    // private ImageInfoCache cache = new ImageInfoCache();
-    private Map<String, Float> resolutions = new HashMap<String, Float>();
+    private ImageRegistry registry = new ImageRegistry();
     private int currentPage = 0;
     
     /**
@@ -56,18 +55,18 @@ public class ResolutionAnalyzer extends PDFStreamEngine {
                 "org/apache/pdfbox/resources/PDFTextStripper.properties", true));
     }
 
-    public Map<String, Float> analyze(PDDocument document) throws IOException {
-        resolutions.clear();
+    public ImageRegistry analyze(PDDocument document) throws IOException {
+        registry.clear();
 
         List<?> allPages = document.getDocumentCatalog().getAllPages();
         for (int i = 0; i < allPages.size(); i++) {
             PDPage page = (PDPage) allPages.get(i);
             currentPage = i + 1;
-            System.out.println("Processing page: " + i);
+            Log.println("Processing page: " + i);
             processStream(page, page.findResources(), page.getContents().getStream());
         }
 
-        return resolutions;
+        return registry;
     }
 
     protected void processOperator(PDFOperator operator, List<COSBase> arguments) throws IOException {
@@ -81,52 +80,59 @@ public class ResolutionAnalyzer extends PDFStreamEngine {
                 PDPage page = getCurrentPage();
                 int imageWidth = image.getWidth();
                 int imageHeight = image.getHeight();
-                System.out.println("***************************************************************");
-
                 String imageName = currentPage + objectName.getName();
 
-                System.out.println("Found image [" + imageName + "]");
-
                 Matrix ctmNew = getGraphicsState().getCurrentTransformationMatrix();
 
                 float imageXScale = ctmNew.getXScale() / 72;
                 float imageYScale = ctmNew.getYScale() / 72;
-                // size in pixel
-                System.out.println("  size: " + imageWidth + " x " + imageHeight + " px");
-                // size in page units
-                System.out.print("  size_on_page: " + imageXScale + " x " + imageYScale + " in ");
-                System.out.println("( = " + (imageXScale * 25.4) + " x " + (imageYScale * 25.4)
-                        + " mm)");
-                System.out.println("  dpi: " + (imageWidth / imageXScale) + " x "
-                        + (imageHeight / imageYScale) + " dpi");
-
-                System.out.println("  filters: " + image.getPDStream().getFilters());
-                System.out.println("  compressed_size: " + image.getPDStream().getLength());
-
-                COSBase userUnit = page.getCOSDictionary().getDictionaryObject("UserUnit");
-                System.out.println("  userunit: " + userUnit);
-                System.out.println("***************************************************************");
+
+                if (Log.enabled()) {
+                    System.out.println("***************************************************************");
+                    System.out.println("Found image [" + imageName + "]");
+                    // size in pixel
+                    System.out.println("  size: " + imageWidth + " x " + imageHeight + " px");
+                    // size in page units
+                    System.out.print("  size_on_page: " + imageXScale + " x " + imageYScale + " in ");
+                    System.out.println("( = " + (imageXScale * 25.4) + " x " + (imageYScale * 25.4)
+                            + " mm)");
+                    System.out.println("  dpi: " + (imageWidth / imageXScale) + " x "
+                            + (imageHeight / imageYScale) + " dpi");
+
+                    System.out.println("  filters: " + image.getPDStream().getFilters());
+                    System.out.println("  compressed_size: " + image.getPDStream().getLength());
+
+                    COSBase userUnit = page.getCOSDictionary().getDictionaryObject("UserUnit");
+                    System.out.println("  userunit: " + userUnit);
+                    System.out.println("***************************************************************");
+                }
 
                 float dpiX = imageWidth / imageXScale;
                 float dpiY = imageHeight / imageYScale;
                 float dpi = 0.5f * (dpiX + dpiY);
 
                 if (Math.abs((dpiX - dpiY) / dpi) > 0.05) {
-                    System.out.println("warning: resolution of image " + imageName
+                    Log.println("warning: resolution of image " + imageName
                             + "is not square: dpiX=" + dpiX + " dpiY=" + dpiY);
                 }
 
-                if (resolutions.containsKey(imageName)) {
-                    float dpiOld = resolutions.get(imageName);
-                    System.out.println("re-used image name=" + imageName + " dpi=" + dpi
+                Float dpiOld = registry.getResolution(image.getCOSStream());
+                if (dpiOld != null) {
+                    Log.println("re-used image name=" + imageName + " dpi=" + dpi
                             + " dpiOld=" + dpiOld);
-
-                    if (dpiOld > dpi) {
-                        resolutions.put(imageName, dpi);
-                    }
-                } else {
-                    resolutions.put(imageName, dpi);
                 }
+                // the text stripper operators do not track clipping paths, only the page is known
+                int[] visible = null;
+                PDRectangle cropBox = page.findCropBox();
+                if (cropBox != null) {
+                    double[] ctm = new double[] { ctmNew.getValue(0, 0), ctmNew.getValue(0, 1),
+                            ctmNew.getValue(1, 0), ctmNew.getValue(1, 1),
+                            ctmNew.getValue(2, 0), ctmNew.getValue(2, 1) };
+                    double[] clip = new double[] { cropBox.getLowerLeftX(), cropBox.getLowerLeftY(),
+                            cropBox.getUpperRightX(), cropBox.getUpperRightY() };
+                    visible = PlacementAnalyzer.visibleRegion(ctm, clip, imageWidth, imageHeight);
+                }
+                registry.addPlacement(image.getCOSStream(), currentPage, objectName.getName(), dpi, visible);
             } else if (xobject instanceof PDXObjectForm) {
                 // save the graphics state
                 getGraphicsStack().push((PDGraphicsState) getGraphicsState().clone());
@@ -0,0 +1,42 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+
+/**
+ * An image that is read one row at a time, top to bottom. Rows are 8 bit
+ * gray values or RGB triples; sources for {@link AlphaSplitter} add an
+ * alpha value to each pixel.
+ */
+public interface RowSource
+{
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return 1 for gray, 3 for RGB, 2 or 4 with alpha
+     */
+    int getComponents();
+
+    /**
+     * Reads the next row into row, which holds at least width * components bytes.
+     */
+    void readRow(byte[] row) throws IOException;
+}
@@ -0,0 +1,127 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Collects the output of an encoder in memory, up to a limit. The write that
+ * would go past the limit throws {@link LimitExceededException}, which ends
+ * the encoder before it spends more time on a result that is thrown away.
+ */
+public class SizeCappedOutputStream extends OutputStream
+{
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    /**
+     * Thrown when the output grows beyond the limit.
+     */
+    public static class LimitExceededException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(long limit)
+        {
+            super("output is larger than " + limit + " bytes");
+        }
+    }
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final long limit;
+
+    /**
+     * @param limit largest number of bytes that may be written, {@link #NO_LIMIT} for any
+     */
+    public SizeCappedOutputStream(long limit)
+    {
+        this.limit = limit;
+    }
+
+    public void write(int b) throws IOException
+    {
+        check(1);
+        bytes.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        check(len);
+        bytes.write(b, off, len);
+    }
+
+    public int size()
+    {
+        return bytes.size();
+    }
+
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    public byte[] toByteArray()
+    {
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a view for ImageIO writers that write sequentially (like the
+     *         jpeg writer), without the cache that ImageIO would put in
+     *         between and that would only pass the data on at the end.
+     */
+    public ImageOutputStream asImageOutputStream()
+    {
+        return new ImageOutputStreamImpl()
+        {
+            public void write(int b) throws IOException
+            {
+                SizeCappedOutputStream.this.write(b);
+                streamPos++;
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                SizeCappedOutputStream.this.write(b, off, len);
+                streamPos += len;
+            }
+
+            public int read() throws IOException
+            {
+                throw new IOException("write only");
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                throw new IOException("write only");
+            }
+        };
+    }
+
+    private void check(int len) throws LimitExceededException
+    {
+        if (bytes.size() + (long) len > limit)
+        {
+            throw new LimitExceededException(limit);
+        }
+    }
+}
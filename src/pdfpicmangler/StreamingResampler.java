@@ -0,0 +1,108 @@
+/*  This file is part of PDFPicMangler, an image resampling tool for pdf documents.
+ *  Copyright (C) 2017  Ingo Kresse
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pdfpicmangler;
+
+import java.io.IOException;
+
+/**
+ * Resamples a {@link RowSource} while it is being read.
+ *
+ * Uses the same filters and weights as {@link Resampler}, but only keeps
+ * the horizontally resampled source rows that the vertical filter still
+ * needs, so memory depends on the filter size, not on the image height.
+ */
+public class StreamingResampler implements RowSource
+{
+    private final RowSource source;
+    private final int width, height;
+    private final int components;
+
+    private final Resampler.Weights horizontal;
+    private final Resampler.Weights vertical;
+
+    private final byte[] sourceRow;
+    private final byte[][] ring;
+    private final int[] acc;
+
+    private int rowsRead;
+    private int y;
+
+    public StreamingResampler(RowSource source, int width, int height, Resampler.Filter filter)
+    {
+        this.source = source;
+        this.width = width;
+        this.height = height;
+        this.components = source.getComponents();
+
+        horizontal = new Resampler.Weights(filter, source.getWidth(), width);
+        vertical = new Resampler.Weights(filter, source.getHeight(), height);
+
+        sourceRow = new byte[source.getWidth() * components];
+        ring = new byte[vertical.taps][width * components];
+        acc = new int[width * components];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getComponents()
+    {
+        return components;
+    }
+
+    public void readRow(byte[] row) throws IOException
+    {
+        int first = vertical.first[y];
+        int count = vertical.count[y];
+
+        while (rowsRead < first + count)
+        {
+            source.readRow(sourceRow);
+            Resampler.resampleRow(horizontal, sourceRow, components, ring[rowsRead % ring.length], 0);
+            rowsRead++;
+        }
+
+        int rowLength = width * components;
+        for (int i = 0; i < rowLength; i++)
+        {
+            acc[i] = 0;
+        }
+        int base = y * vertical.taps;
+        for (int k = 0; k < count; k++)
+        {
+            int weight = vertical.weights[base + k];
+            byte[] in = ring[(first + k) % ring.length];
+            for (int i = 0; i < rowLength; i++)
+            {
+                acc[i] += (in[i] & 0xff) * weight;
+            }
+        }
+        for (int i = 0; i < rowLength; i++)
+        {
+            row[i] = (byte) Resampler.clamp(acc[i]);
+        }
+        y++;
+    }
+}